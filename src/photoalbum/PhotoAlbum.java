@@ -1,15 +1,12 @@
 package photoalbum;
 
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.util.HashMap;
 import java.util.Set;
+import java.util.TreeSet;
 
 import javafx.application.Application;
+import javafx.application.Platform;
 import javafx.fxml.FXMLLoader;
 import javafx.scene.Parent;
 import javafx.scene.Scene;
@@ -18,6 +15,10 @@ import photoalbum.controller.MasterController;
 import photoalbum.model.Album;
 import photoalbum.model.Photo;
 import photoalbum.model.User;
+import photoalbum.storage.SaveScheduler;
+import photoalbum.storage.UserStore;
+import photoalbum.util.FolderImporter;
+import photoalbum.util.Services;
 
 /**
  * A GUI Photo application written in java and javafx that allows users to store, tag, search
@@ -28,10 +29,16 @@ import photoalbum.model.User;
 public class PhotoAlbum extends Application {
 	
 	/**
-	 * A HashMap instance that stores all user data
+	 * A HashMap instance that stores the data of all users currently loaded. Users are loaded
+	 * when they are first needed and released again when they log out.
 	 */
 	private HashMap<String, User> users = new HashMap<String,User>();
 	
+	/**
+	 * The names of all users in the system, whether or not they are loaded.
+	 */
+	private TreeSet<String> usernames = new TreeSet<String>();
+	
 	/**
 	 * The currently logged in user. This is null if no one is logged on or admin is logged in.
 	 */
@@ -48,10 +55,34 @@ public class PhotoAlbum extends Application {
 	 */
 	private Photo currentPhoto;
 	
+	/**
+	 * The folder import started from the current scene, or null if there is none. It is cancelled
+	 * when the scene changes or its user is released, so it never adds photos to a user that has
+	 * already been saved and dropped from memory.
+	 */
+	private FolderImporter importer;
+	
 	/**
 	 * The path where we store our users
 	 */
 	String savePath = "./users";
+	
+	/**
+	 * Reads and writes all user data.
+	 */
+	private UserStore store = new UserStore("./userdata", savePath);
+	
+	/**
+	 * Saves user data in the background whenever it has changed. Saves wait for half a second
+	 * without new changes, but never longer than five seconds in total. Every loaded user marks it
+	 * dirty whenever the user, one of its albums or one of its photos changes. Changed users are
+	 * only captured on the JavaFX thread; they are encoded and written on the saver's own thread.
+	 */
+	private SaveScheduler saver = new SaveScheduler(() -> {
+		UserStore.Commit c = store.prepare(users, usernames);
+		return c.isEmpty() ? null : c::write;
+	}, Platform::runLater, 500, 5000,
+			(e) -> Services.createAlert("Your changes could not be saved, trying again shortly: " + e.getMessage()));
 
 	public static void main(String[] args)  {
 		launch(args);
@@ -64,6 +95,11 @@ public class PhotoAlbum extends Application {
 		switchScene(primaryStage, "login");
 	}
 	
+	@Override
+	public void stop() {
+		saveState(); // also reached through Platform.exit(), which skips the close request
+	}
+	
 	/**
 	 * Load a new scene specified by fxmlFile on the stage primaryStage, as well as initalizing
 	 * that new scene's initial state
@@ -72,7 +108,8 @@ public class PhotoAlbum extends Application {
 	 */
 	
 	public void switchScene(Stage primaryStage, String fxmlFile) {
-		saveState();
+		cancelImport();
+		saver.markDirty();
 		FXMLLoader loader = new FXMLLoader();
 		loader.setLocation(getClass().getResource("/view/"+fxmlFile+".fxml"));
 		Parent root;
@@ -100,17 +137,28 @@ public class PhotoAlbum extends Application {
 	 * @param u
 	 */
 	public void setUser(String s, User u) {
+		u.setOnChange(saver::markDirty);
 		users.put(s, u);
+		usernames.add(s);
+		saver.markDirty();
 	}
 	
 	
 	/**
-	 * get the user with the given username
+	 * get the user with the given username, loading it if it isn't loaded yet.
 	 * @param username the name of the user
-	 * @return a User object
+	 * @return a User object, or null if there is no user with that name
 	 */
 	public User getUser(String username) {
-		return users.get(username);
+		User u = users.get(username);
+		if (u == null && usernames.contains(username)) {
+			u = store.load(username);
+			if (u != null) {
+				u.setOnChange(saver::markDirty);
+				users.put(username, u);
+			}
+		}
+		return u;
 	}
 	
 	
@@ -119,7 +167,7 @@ public class PhotoAlbum extends Application {
 	 * @return A set of strings containing all users currently stored by the system.
 	 */
 	public Set<String> getAllUsers() {
-		return users.keySet();
+		return usernames;
 	}
 	
 	/**
@@ -145,44 +193,68 @@ public class PhotoAlbum extends Application {
 	 */
 	public void removeUser(String userName) {
 		users.remove(userName);
+		usernames.remove(userName);
+		saver.markDirty();
 	}
 	
 	/**
-	 * Save the state of the program including all user data. This is performed whenever the window
-	 * is closed.
+	 * Save the state of the program including all user data, and wait for it to be written. This is
+	 * performed whenever the window is closed. Only users that changed since the last save are written.
 	 */
 	private void saveState() {
-			try {
-				ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(savePath));
-				oos.writeObject(users);
-				oos.close();
-			} catch (IOException e) {
-				e.printStackTrace();
-			} 
+		saver.flush();
 	}
 	
 	/**
-	 * Load all saved user data into the program.
+	 * Load the names of all saved users. The users themselves are loaded when they are first needed.
 	 */
-	@SuppressWarnings("unchecked")
 	private void loadState() {
-		try {
-			ObjectInputStream iis = new ObjectInputStream(new FileInputStream(savePath));
-			users = (HashMap<String, User>)iis.readObject();
-			iis.close();
-		} catch (FileNotFoundException e) {
-			users = new HashMap<String, User>();
-		} 
-		catch (ClassNotFoundException e) {} 
-		catch (IOException e) {}
+		usernames = store.open();
 	}
 	
 	/**
-	 * Set currentUser to the user with the given username.
+	 * Set currentUser to the user with the given username, loading it if necessary. The previous
+	 * user, if any, is saved and released from memory.
 	 * @param username The name of the user we want to switch to.
 	 */
 	public void setCurrentUser(String username) {
-		currentUser = users.get(username);
+		if (currentUser != null && !currentUser.getUsername().equals(username)) {
+			releaseUser(currentUser);
+		}
+		currentUser = username == null ? null : getUser(username);
+	}
+	
+	/**
+	 * Save any changes to the given user and drop it from memory. It is loaded again the next time
+	 * it is needed.
+	 * @param u The user to release.
+	 */
+	private void releaseUser(User u) {
+		cancelImport();
+		saver.saveNow();
+		u.setOnChange(null);
+		users.remove(u.getUsername());
+	}
+	
+	/**
+	 * Remember a folder import started from the current scene, so it can be cancelled when the
+	 * scene changes or the user logs out.
+	 * @param importer The import.
+	 */
+	public void setImporter(FolderImporter importer) {
+		cancelImport();
+		this.importer = importer;
+	}
+	
+	/**
+	 * Cancel the folder import started from the current scene, if any. Photos it has already
+	 * added stay in their album and are saved with the user.
+	 */
+	private void cancelImport() {
+		if (importer != null) {
+			importer.cancel();
+			importer = null;
+		}
 	}
 	
 	/**
@@ -202,9 +274,7 @@ public class PhotoAlbum extends Application {
 	 */
 	public void setCurrentAlbum(String name, Set<Photo> photos) {
 		Album anon = new Album(name);
-		for (Photo p : photos) {
-			anon.addPhoto(p);
-		}
+		anon.addAll(photos);
 		currentAlbum = anon;
 	}
 	
@@ -1,5 +1,7 @@
 package photoalbum.controller;
 
+import java.util.List;
+
 import javafx.collections.FXCollections;
 import javafx.collections.ObservableList;
 import javafx.event.Event;
@@ -14,6 +16,9 @@ import javafx.scene.input.MouseEvent;
 import javafx.stage.Stage;
 import javafx.util.Callback;
 import photoalbum.model.Album;
+import photoalbum.model.Photo;
+import photoalbum.model.User;
+import photoalbum.util.DuplicateFinder;
 import photoalbum.util.Services;
 
 /**
@@ -30,6 +35,12 @@ public class Albums extends SearchableController {
 	@FXML
 	Button addButton;
 	
+	/**
+	 * Button to look for copies of the same photo.
+	 */
+	@FXML
+	Button duplicatesButton;
+	
 	/**
 	 * ListView containing all of a users albums.
 	 */
@@ -63,10 +74,6 @@ public class Albums extends SearchableController {
 		super.init();
 		
 		setupAlbumList();
-		for (Album a: app.getCurrentUser().getAllAlbums()) {
-			a.findNewestDate();
-			a.findOldestDate();
-		}
 	}
 	
 	/**
@@ -207,6 +214,43 @@ public class Albums extends SearchableController {
 		}
 	}
 	
+	/**
+	 * Look for photos in the user's albums with exactly the same contents in the background, then
+	 * offer to merge each set of copies into one photo.
+	 * @param e
+	 */
+	@FXML
+	private void findDuplicates(MouseEvent e) {
+		if (!leftClick(e))
+			return;
+		User u = user;
+		duplicatesButton.setDisable(true);
+		duplicatesButton.setText("Finding duplicates...");
+		DuplicateFinder.getInstance().findLater(u.getAllPhotos(), (groups) -> {
+			duplicatesButton.setDisable(false);
+			duplicatesButton.setText("Find duplicates");
+			if (!stillShowing(duplicatesButton, u))
+				return; // the user logged out or left this view while the search ran
+			if (groups.isEmpty()) {
+				Services.createAlert("No duplicate photos were found.");
+				return;
+			}
+			int copies = 0;
+			for (List<Photo> group : groups) {
+				copies += group.size() - 1;
+			}
+			Services.openConfirmationDialog(copies + " photos are copies of other photos in your albums. "
+					+ "Merge each set of copies into one photo?", (b) -> {
+				if (b && stillShowing(duplicatesButton, u)) { // merges mark the user for saving
+					for (List<Photo> group : groups) {
+						u.mergePhotos(group);
+					}
+					refreshAlbums();
+				}
+			});
+		});
+	}
+	
 	/**
 	 * A custom class for showing an album in a ListView. Albums are displayed with
 	 * their name, and have tooltip giving information about that album.
@@ -1,8 +1,11 @@
 package photoalbum.controller;
 
+import javafx.scene.Node;
+import javafx.scene.Scene;
 import javafx.scene.input.MouseButton;
 import javafx.scene.input.MouseEvent;
 import photoalbum.PhotoAlbum;
+import photoalbum.model.User;
 
 /**
  * The base class for all controllers. This class exists less to allow code reuse,
@@ -53,6 +56,19 @@ public abstract class MasterController {
 		return e.getButton() == MouseButton.SECONDARY;
 	}
 	
+	/**
+	 * Check that a background job started from this controller may still show its result: the
+	 * user who started it is still logged in and the view hasn't been replaced since.
+	 * @param node Any node of this controller's view.
+	 * @param u The user who started the job.
+	 * @return Whether the view is still showing for that user.
+	 */
+	protected boolean stillShowing(Node node, User u) {
+		Scene scene = node.getScene();
+		return app.getCurrentUser() == u && scene != null && scene.getWindow() != null
+				&& scene.getWindow().getScene() == scene;
+	}
+	
 	/**
 	 * Initializes the controller and UI state before it is shown. In effect, it acts like each 
 	 * controller's own main method.
@@ -1,7 +1,7 @@
 package photoalbum.controller;
 
 import java.io.File;
-import java.util.ArrayList;
+import java.util.Set;
 
 import javafx.beans.value.ChangeListener;
 import javafx.beans.value.ObservableValue;
@@ -12,19 +12,23 @@ import javafx.scene.control.Button;
 import javafx.scene.control.ChoiceBox;
 import javafx.scene.control.ContextMenu;
 import javafx.scene.control.Label;
-import javafx.scene.control.ListCell;
-import javafx.scene.control.ListView;
 import javafx.scene.control.MenuItem;
+import javafx.scene.control.ProgressBar;
+import javafx.scene.image.Image;
 import javafx.scene.image.ImageView;
 import javafx.scene.input.MouseEvent;
 import javafx.scene.layout.HBox;
 import javafx.scene.layout.Pane;
 import javafx.scene.layout.StackPane;
+import javafx.stage.DirectoryChooser;
 import javafx.stage.FileChooser;
 import javafx.stage.FileChooser.ExtensionFilter;
 import javafx.stage.Stage;
-import javafx.util.Callback;
+import photoalbum.model.Album;
 import photoalbum.model.Photo;
+import photoalbum.util.FolderImporter;
+import photoalbum.util.ImageCache;
+import photoalbum.util.ImagePrefetcher;
 
 /**
  * Here the user can view, manage and delete a set of photos.
@@ -64,10 +68,10 @@ public class PhotoController extends MasterController {
 	private ImageView slideshowView;
 	
 	/**
-	 * A ListView used to show the photos when in thumbnail view.
+	 * A grid used to show the photos when in thumbnail view.
 	 */
 	@FXML
-	private ListView<Photo> thumbnailView;
+	private ThumbnailGrid thumbnailView;
 	
 	/**
 	 * button used to advance the slideshow forward by one.
@@ -119,6 +123,29 @@ public class PhotoController extends MasterController {
 	ChoiceBox<String> viewChooser;
 	
 	
+	/**
+	 * Box showing the progress of a folder import.
+	 */
+	@FXML
+	HBox importBox;
+	
+	/**
+	 * Bar showing how much of a folder import is done.
+	 */
+	@FXML
+	ProgressBar importProgress;
+	
+	/**
+	 * Label showing how many photos a folder import has found and added.
+	 */
+	@FXML
+	Label importLabel;
+	
+	/**
+	 * The folder import running in this view, or null if there is none.
+	 */
+	private FolderImporter importer;
+	
 	/**
 	 * obslist storing all photos currently being viewed.
 	 */
@@ -128,6 +155,21 @@ public class PhotoController extends MasterController {
 	 * Store whether or not this controller is working within a storage box.
 	 */
 	private boolean isSearchResults; // ADDED VARIABLE TO DETERMINE IF THIS VIEW IS SHOWING SEARCH RESULTS
+	
+	/**
+	 * Width and height of the images shown in the thumbnail view.
+	 */
+	static final int THUMBNAIL_SIZE = 100;
+	
+	/**
+	 * Number of photos after the current one that the slideshow decodes ahead of time.
+	 */
+	private int prefetchAhead = 2;
+	
+	/**
+	 * Number of photos before the current one that the slideshow decodes ahead of time.
+	 */
+	private int prefetchBehind = 1;
 
 	/**
 	 * Select a new file to add to the album.
@@ -147,13 +189,76 @@ public class PhotoController extends MasterController {
 		File file = filechooser.showOpenDialog(thumbnailView.getScene().getWindow());
 		
 			if(file != null) {
-				Photo p = new Photo(file.toString());
+				Photo p = app.getCurrentUser().importPhoto(file.toString());
 				app.getCurrentAlbum().addPhoto(p);
 			}
 		
 		obslist.setAll(app.getCurrentAlbum().getPhotos());
 	}
 	
+	/**
+	 * Select a folder and import every picture in it and its subfolders into the album in the background.
+	 * @param e
+	 */
+	@FXML
+	public void importFolder(MouseEvent e) {
+		if (!leftClick(e) || importer != null)
+			return;
+		DirectoryChooser chooser = new DirectoryChooser();
+		chooser.setTitle("import folder");
+		File dir = chooser.showDialog(thumbnailView.getScene().getWindow());
+		if (dir == null)
+			return;
+		Album album = app.getCurrentAlbum();
+		importer = new FolderImporter(app.getCurrentUser(), album, dir, THUMBNAIL_SIZE);
+		app.setImporter(importer);
+		showImportProgress(true);
+		updateImportProgress();
+		importer.start(() -> {
+			obslist.setAll(album.getPhotos());
+			updateImportProgress();
+		}, () -> {
+			int added = importer.getAdded();
+			boolean cancelled = importer.isCancelled();
+			importer = null;
+			showImportProgress(false);
+			if (!cancelled && added == 0)
+				photoalbum.util.Services.createAlert("No new photos were found in " + dir.getName());
+		});
+	}
+	
+	/**
+	 * Stop the running folder import. Photos it has already added stay in the album.
+	 * @param e
+	 */
+	@FXML
+	private void cancelImport(MouseEvent e) {
+		if (importer != null)
+			importer.cancel();
+	}
+	
+	/**
+	 * Show how far the running folder import has got.
+	 */
+	private void updateImportProgress() {
+		int found = importer.getFound();
+		if (importer.isWalked() && found > 0)
+			importProgress.setProgress((double)importer.getPrepared() / found);
+		else
+			importProgress.setProgress(ProgressBar.INDETERMINATE_PROGRESS);
+		importLabel.setText("Added " + importer.getAdded() + " of " + found + " photos found"
+				+ (importer.isWalked() ? "" : " so far"));
+	}
+	
+	/**
+	 * Show or hide the folder import progress box.
+	 * @param show Whether the box should be shown.
+	 */
+	private void showImportProgress(boolean show) {
+		importBox.setVisible(show);
+		importBox.setManaged(show);
+	}
+	
 	/**
 	 * Even run when a user tries to delete photo. Calls confirmDelete to deal with result.
 	 */
@@ -168,7 +273,7 @@ public class PhotoController extends MasterController {
 	 */
 	public void confirmDelete(boolean b) {
 		if (b == true) {
-			Photo p = thumbnailView.getSelectionModel().getSelectedItem();
+			Photo p = thumbnailView.getSelectedItem();
 			if (p != null) {
 				app.getCurrentAlbum().removePhoto(p);
 				obslist.setAll(app.getCurrentAlbum().getPhotos());
@@ -204,18 +309,19 @@ public class PhotoController extends MasterController {
 		
 		// DECIDE TO SHOW SEARCH RESULT CONTROLS OR ALBUM CONTROLS
 		hideAlbumControls(isSearchResults);
+		showImportProgress(false);
 		
 		userLabel.setText(this.app.getCurrentUser().getUsername());
 		
 		obslist = FXCollections.observableArrayList();
+		ImagePrefetcher.getInstance().cancelAll(); // left over from the last album
 		
-		ArrayList<Photo> s = app.getCurrentAlbum().getPhotos();
+		Set<Photo> s = app.getCurrentAlbum().getPhotos();
 		
 		obslist.setAll(s);
 		
 		setupThumbnailView();
 		setupSlideshow();
-		thumbnailView.setContextMenu(null);
 		
 		viewChooser.getSelectionModel().selectedIndexProperty().addListener(
 				new ChangeListener<Number> () {
@@ -265,19 +371,11 @@ public class PhotoController extends MasterController {
 	 * Perform initial setup for the thumbnail view.
 	 */
 	private void setupThumbnailView() {
-		thumbnailView.setCellFactory(new Callback<ListView<Photo>, ListCell<Photo>> () {
-
-		@Override
-		public ListCell<Photo> call(ListView<Photo> arg0) {
-			return new ThumbnailCell();
-		}
-		
-		});
-		
+		thumbnailView.setThumbnailSize(THUMBNAIL_SIZE);
 		thumbnailView.setItems(obslist);
 		
 		if (obslist.size() > 0) {
-			thumbnailView.getSelectionModel().select(0);
+			thumbnailView.select(0);
 		}
 	}
 	
@@ -285,17 +383,40 @@ public class PhotoController extends MasterController {
 	 * Get the currently selected item in the thumbnail view and select that image in the slideshow.
 	 */
 	private void selectSlideshowImage() {
-		Photo p = thumbnailView.getSelectionModel().getSelectedItem();
+		Photo p = thumbnailView.getSelectedItem();
 		if (p == null) {
-			thumbnailView.getSelectionModel().select(0);
-			p = thumbnailView.getSelectionModel().getSelectedItem();
+			thumbnailView.select(0);
+			p = thumbnailView.getSelectedItem();
 			if (p == null)
 				return;
 		}
-		slideshowView.setImage(p.getImage());
+		final Photo selected = p;
+		ImagePrefetcher.getInstance().metadata(p, (meta) -> {
+			if (thumbnailView.getSelectedItem() == selected)
+				meta.orient(slideshowView);
+		});
+		Image thumb = ImageCache.getInstance().getIfPresent(p, THUMBNAIL_SIZE, THUMBNAIL_SIZE);
+		if (thumb != null)
+			slideshowView.setImage(thumb); // shown until the full image is ready
+		ImagePrefetcher.getInstance().load(p, (img) -> {
+			if (thumbnailView.getSelectedItem() == selected)
+				slideshowView.setImage(img);
+		});
+		ImagePrefetcher.getInstance().prefetch(obslist, thumbnailView.getSelectedIndex(),
+				prefetchAhead, prefetchBehind);
 		disableDirectionalButtons();
 	}
 	
+	/**
+	 * Set how many photos around the current one the slideshow decodes ahead of time.
+	 * @param ahead Number of photos after the current one.
+	 * @param behind Number of photos before the current one.
+	 */
+	public void setPrefetchWindow(int ahead, int behind) {
+		prefetchAhead = Math.max(0, ahead);
+		prefetchBehind = Math.max(0, behind);
+	}
+	
 	/**
 	 * Perform initial setup for the slideshow view.
 	 */
@@ -305,30 +426,6 @@ public class PhotoController extends MasterController {
 		disableDirectionalButtons();
 	}
 	
-	/**
-	 * A class used to to display a Photo in a thumbnail cell.
-	 * @author Paul Warner & Kenny Zhang
-	 *
-	 */
-	private class ThumbnailCell extends ListCell<Photo> {
-		@Override
-		public void updateItem(Photo item, boolean empty) {
-			super.updateItem(item, empty);
-			if (empty == true) {
-				setGraphic(null);
-				setText(null);
-			} else {
-				setText(item.getCaption());	
-				
-	            ImageView v = new ImageView(item.getImage());
-	            v.setPreserveRatio(true);
-	            v.setFitWidth(100);
-	            v.setFitHeight(100);
-	            setGraphic(v);	
-			}
-		}
-	}
-	
 	/**
 	 * Handle a click on either the thumbnail view or the slideshow view to open the edit menu
 	 * if they are double left clicked.
@@ -357,7 +454,7 @@ public class PhotoController extends MasterController {
 	 * Switch to the single photo view.
 	 */
 	private void switchToPhotoView() {
-		Photo p = thumbnailView.getSelectionModel().getSelectedItem();
+		Photo p = thumbnailView.getSelectedItem();
 		if (p == null)
 			return;
 		this.app.setCurrentPhoto(p);
@@ -370,7 +467,7 @@ public class PhotoController extends MasterController {
 	 */
 	@FXML
 	void disableDirectionalButtons() {
-		int i = thumbnailView.getSelectionModel().getSelectedIndex();
+		int i = thumbnailView.getSelectedIndex();
 		if (i == 0) {
 			backwardButton.setDisable(true);
 		} else {
@@ -390,9 +487,9 @@ public class PhotoController extends MasterController {
 	@FXML
 	public void forwardClicked(MouseEvent e) {
 		if (leftClick(e)) {
-			int i = thumbnailView.getSelectionModel().getSelectedIndex();
+			int i = thumbnailView.getSelectedIndex();
 			i = i == -1 ? 0 : ++i;
-			thumbnailView.getSelectionModel().clearAndSelect(i);
+			thumbnailView.select(i);
 			selectSlideshowImage();
 		}
 	}
@@ -404,9 +501,9 @@ public class PhotoController extends MasterController {
 	@FXML
 	public void backwardClicked(MouseEvent e) {
 		if (leftClick(e)) {
-			int i = thumbnailView.getSelectionModel().getSelectedIndex();
+			int i = thumbnailView.getSelectedIndex();
 			i = i == -1 ? 0 : --i;
-			thumbnailView.getSelectionModel().clearAndSelect(i);
+			thumbnailView.select(i);
 			selectSlideshowImage();
 		}
 	}
@@ -4,25 +4,47 @@ import javafx.collections.FXCollections;
 import javafx.collections.ObservableList;
 import javafx.event.Event;
 import javafx.fxml.FXML;
+import javafx.geometry.Rectangle2D;
 import javafx.scene.control.Button;
 import javafx.scene.control.Label;
 import javafx.scene.control.ListView;
 import javafx.scene.control.TextField;
+import javafx.scene.image.Image;
 import javafx.scene.image.ImageView;
 import javafx.scene.input.MouseEvent;
+import javafx.scene.input.ScrollEvent;
+import javafx.stage.Screen;
 import javafx.stage.Stage;
 import photoalbum.model.Album;
 import photoalbum.model.Photo;
+import photoalbum.util.ImageCache;
+import photoalbum.util.ImageMetadata;
+import photoalbum.util.ImagePrefetcher;
 import photoalbum.util.Services;
+import photoalbum.util.ThumbnailLoader;
+import photoalbum.util.TilePyramid;
 
 /**
  * A view that allows a user to view and manage a single photo. Actions include 
  * editing and deleting tags, re-captioning, deleting, and moving to a different album.
+ * The cached thumbnail is shown at once while a screen sized image is decoded in the background.
+ * The full size image is only decoded once the user zooms in (ctrl + scroll) past that.
+ * Very large pictures are never decoded whole; they are shown from a TilePyramid instead.
  * @author Paul Warner & Kenny Zhang
  *
  */
 public class PhotoViewController extends MasterController {
 
+	/**
+	 * Factor the photo is zoomed by for each step of the mouse wheel.
+	 */
+	private static final double ZOOM_STEP = 1.25;
+
+	/**
+	 * Largest zoom, relative to the size the photo is first shown at.
+	 */
+	private static final double MAX_ZOOM = 8;
+
 	/**
 	 * Photo currently being viewed
 	 */
@@ -39,6 +61,12 @@ public class PhotoViewController extends MasterController {
 	 */
 	@FXML
 	ImageView photoViewer;
+
+	/**
+	 * Viewer very large photos are shown in instead of photoViewer.
+	 */
+	@FXML
+	TiledImageView tiledViewer;
 	
 	/**
 	 * Displays all tags on the curret image.
@@ -121,11 +149,50 @@ public class PhotoViewController extends MasterController {
 	 * The last item selected on the list of tags.
 	 */
 	private String lastSelection;
+
+	/**
+	 * Current zoom, relative to the size the photo is first shown at.
+	 */
+	private double zoom = 1;
+
+	/**
+	 * Size of the photo viewer before it is zoomed.
+	 */
+	private double baseWidth, baseHeight;
+
+	/**
+	 * Whether the stored picture is on its side, so that it is turned by 90 or 270 degrees when shown.
+	 */
+	private boolean sideways;
+
+	/**
+	 * Whether the screen sized image has been shown.
+	 */
+	private boolean screenSizeShown;
+
+	/**
+	 * Whether the full size image has been shown or asked for.
+	 */
+	private boolean fullSize;
 	
 	@Override
 	public void init() {
 		currentPhoto = this.app.getCurrentPhoto();
-		photoViewer.setImage(currentPhoto.getImage());
+		baseWidth = photoViewer.getFitWidth();
+		baseHeight = photoViewer.getFitHeight();
+		Photo p = currentPhoto;
+		ImagePrefetcher.getInstance().metadata(p, (meta) -> {
+			if (p != currentPhoto)
+				return;
+			meta.orient(photoViewer);
+			sideways = meta.getRotation() % 180 != 0;
+			fit();
+			if (TilePyramid.isLarge(meta))
+				loadTiles(meta);
+			else
+				loadImage(meta);
+		});
+		photoViewer.setOnScroll(this::zoom);
 		photoViewer.maxHeight(600);
 		photoViewer.maxWidth(600);
         
@@ -145,6 +212,144 @@ public class PhotoViewController extends MasterController {
         tagList.setItems(tags);
 	}
 	
+	/**
+	 * Show the best image of the current photo that is already cached, and decode one the size
+	 * of the screen in the background if that isn't the full size image.
+	 * @param meta The metadata of the photo.
+	 */
+	private void loadImage(ImageMetadata meta) {
+		Photo p = currentPhoto;
+		Image full = ImageCache.getInstance().getIfPresent(p, 0, 0);
+		if (full != null) {
+			photoViewer.setImage(full);
+			screenSizeShown = fullSize = true;
+			ImagePrefetcher.getInstance().checkChanged(p, () -> {
+				if (p != currentPhoto || !photoViewer.isVisible())
+					return;
+				photoViewer.setImage(null); // the file changed, so start over from its new thumbnail
+				screenSizeShown = fullSize = false;
+				loadImage(meta);
+			});
+			return;
+		}
+		showThumbnail(p);
+		Rectangle2D screen = Screen.getPrimary().getVisualBounds();
+		double width = screen.getWidth(), height = screen.getHeight();
+		if (meta.getRotation() % 180 != 0) { // the stored picture is on its side
+			width = screen.getHeight();
+			height = screen.getWidth();
+		}
+		if (meta.getWidth() > 0 && meta.getWidth() <= width && meta.getHeight() <= height) {
+			width = height = 0; // no bigger than the screen anyway
+			fullSize = true;
+		}
+		ImagePrefetcher.getInstance().load(p, width, height, (img) -> {
+			screenSizeShown = true;
+			show(p, img);
+		});
+	}
+
+	/**
+	 * Show the cached thumbnail of the current photo while its tile pyramid is opened or built in
+	 * the background, then switch to the tiled viewer. If the pyramid can't be built, the photo
+	 * is loaded the normal way instead.
+	 * @param meta The metadata of the photo.
+	 */
+	private void loadTiles(ImageMetadata meta) {
+		Photo p = currentPhoto;
+		showThumbnail(p);
+		TilePyramid.open(p, (pyramid) -> {
+			if (p != currentPhoto)
+				return;
+			if (pyramid == null) {
+				loadImage(meta);
+				return;
+			}
+			tiledViewer.setRotate(meta.getRotation());
+			tiledViewer.setScaleX(meta.isMirrored() ? -1 : 1);
+			tiledViewer.setPyramid(pyramid);
+			tiledViewer.setVisible(true);
+			tiledViewer.setManaged(true);
+			photoViewer.setImage(null);
+			photoViewer.setVisible(false);
+			photoViewer.setManaged(false);
+		});
+	}
+
+	/**
+	 * Show the thumbnail of a photo until a sharper image is ready. If it isn't in memory, it is
+	 * read from the thumbnail store, or decoded at thumbnail size, in the background, which is
+	 * much quicker than decoding the image itself.
+	 * @param p The photo.
+	 */
+	private void showThumbnail(Photo p) {
+		int thumbnailSize = PhotoController.THUMBNAIL_SIZE;
+		Image thumb = ImageCache.getInstance().getIfPresent(p, thumbnailSize, thumbnailSize);
+		if (thumb != null) {
+			photoViewer.setImage(thumb);
+			return;
+		}
+		ThumbnailLoader.getInstance().load(p, thumbnailSize, thumbnailSize, (img) -> {
+			if (photoViewer.isVisible())
+				show(p, img);
+		});
+	}
+
+	/**
+	 * Show a newly decoded image of a photo, unless the viewer has moved on or already shows a
+	 * sharper one.
+	 * @param p The photo the image is of.
+	 * @param img The image.
+	 */
+	private void show(Photo p, Image img) {
+		Image shown = photoViewer.getImage();
+		if (p != currentPhoto || (shown != null && shown.getWidth() >= img.getWidth()))
+			return;
+		photoViewer.setImage(img);
+		checkResolution();
+	}
+
+	/**
+	 * Zoom the photo in or out when the mouse wheel is turned with ctrl held down.
+	 * @param e The scroll event.
+	 */
+	private void zoom(ScrollEvent e) {
+		if (!e.isControlDown() || e.getDeltaY() == 0)
+			return;
+		e.consume();
+		zoom = e.getDeltaY() > 0 ? zoom * ZOOM_STEP : zoom / ZOOM_STEP;
+		zoom = Math.max(1, Math.min(MAX_ZOOM, zoom));
+		fit();
+		checkResolution();
+	}
+
+	/**
+	 * Size the photo viewer for the current zoom. The size of an image view applies to the picture
+	 * before it is turned, so a picture on its side gets the width and height swapped.
+	 */
+	private void fit() {
+		double width = baseWidth * zoom, height = baseHeight * zoom;
+		photoViewer.setFitWidth(sideways ? height : width);
+		photoViewer.setFitHeight(sideways ? width : height);
+	}
+
+	/**
+	 * Decode the full size image once the screen sized one is shown larger than its own size.
+	 */
+	private void checkResolution() {
+		Image img = photoViewer.getImage();
+		if (fullSize || !screenSizeShown || img == null)
+			return;
+		double width = sideways ? img.getHeight() : img.getWidth(); // as it is shown, after turning
+		double height = sideways ? img.getWidth() : img.getHeight();
+		double scale = Math.min(baseWidth * zoom / width, baseHeight * zoom / height);
+		if (scale <= 1)
+			return;
+		fullSize = true;
+		Photo p = currentPhoto;
+		ImagePrefetcher.getInstance().load(p, (full) -> show(p, full));
+	}
+
 	/**
 	 * Move backward to view the containing album.
 	 * @param e
@@ -350,7 +555,7 @@ public class PhotoViewController extends MasterController {
 	 * @param a The album the photo will be moved to.
 	 */
 	private void moveToAlbum(Album a) {
-		this.app.getCurrentAlbum().getPhotos().remove(currentPhoto);
+		this.app.getCurrentAlbum().removePhoto(currentPhoto);
 		a.addPhoto(currentPhoto);
 		app.switchScene((Stage)moveToButton.getScene().getWindow(),"photos");
 	}
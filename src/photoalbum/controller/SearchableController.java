@@ -1,16 +1,15 @@
 package photoalbum.controller;
 
+import java.io.File;
 import java.io.IOException;
 import java.time.LocalDate;
-import java.time.ZoneId;
-import java.util.Date;
-import java.util.HashSet;
 import java.util.Set;
 
 import javafx.beans.value.ChangeListener;
 import javafx.beans.value.ObservableValue;
 import javafx.collections.FXCollections;
 import javafx.collections.ObservableList;
+import javafx.event.ActionEvent;
 import javafx.fxml.FXML;
 import javafx.fxml.FXMLLoader;
 import javafx.scene.control.Button;
@@ -18,13 +17,18 @@ import javafx.scene.control.ChoiceBox;
 import javafx.scene.control.DatePicker;
 import javafx.scene.control.Label;
 import javafx.scene.control.ListView;
+import javafx.scene.control.TextField;
 import javafx.scene.input.MouseEvent;
 import javafx.scene.layout.Pane;
 import javafx.scene.layout.VBox;
+import javafx.stage.FileChooser;
+import javafx.stage.FileChooser.ExtensionFilter;
 import javafx.stage.Stage;
 import photoalbum.model.Album;
 import photoalbum.model.Photo;
+import photoalbum.model.Query;
 import photoalbum.model.User;
+import photoalbum.util.SimilarityFinder;
 
 /**
  * This class splits off all code dealing with searching sets of photos.
@@ -88,6 +92,29 @@ public abstract class SearchableController extends MasterController {
 	@FXML
 	DatePicker endDate;
 	
+	/**
+	 * Field for typing a query combining several conditions.
+	 */
+	@FXML
+	TextField queryField;
+	
+	/**
+	 * Allows user to choose how closely photos must match when searching for similar photos.
+	 */
+	@FXML
+	ChoiceBox<String> similarityChooser;
+	
+	/**
+	 * Names shown in similarityChooser.
+	 */
+	private static final String[] SIMILARITY_NAMES = { "nearly identical", "close", "loose" };
+	
+	/**
+	 * Largest number of bits in which the visual hash of a similar photo may differ, for each
+	 * entry of SIMILARITY_NAMES.
+	 */
+	private static final int[] SIMILARITY_DISTANCES = { 4, 8, 12 };
+	
 	/**
 	 * List of all tags on all photos.
 	 */
@@ -150,8 +177,10 @@ public abstract class SearchableController extends MasterController {
 	 * Setup the ChoiceBox used to choose a search method.
 	 */
 	private void chooseSearchSetup() {
-		chooseSearch.setItems(FXCollections.observableArrayList("search by...", "date", "tags"));
+		chooseSearch.setItems(FXCollections.observableArrayList("search by...", "date", "tags", "query", "similar"));
 		chooseSearch.getSelectionModel().select("search by...");
+		similarityChooser.setItems(FXCollections.observableArrayList(SIMILARITY_NAMES));
+		similarityChooser.getSelectionModel().select(1);
 		chooseSearch.getSelectionModel().selectedIndexProperty().addListener( new 
 				ChangeListener<Number>() {	
 			@SuppressWarnings("rawtypes")
@@ -207,8 +236,6 @@ public abstract class SearchableController extends MasterController {
 	 * Refresh the values displayed by valueChooser.
 	 */
 	private void refreshValues() {
-		Set<Photo> photos = user.getAllPhotos();
-		HashSet<String> set = new HashSet<String>();
 		String key = keyChooser.getSelectionModel().getSelectedItem();
 		String value = valueChooser.getSelectionModel().getSelectedItem();
 		if (key == null)
@@ -218,14 +245,9 @@ public abstract class SearchableController extends MasterController {
 			allValues.add("VALUE");
 			valueChooser.getSelectionModel().select(0);
 		} else {
-			for (Photo  p : photos) {
-				if (p.hasTag(key)) {
-					set.add(p.getTagValue(key));
-				}
-			}
 			allValues.clear();
 			allValues.add("ANY");
-			allValues.addAll(set);
+			allValues.addAll(user.getTagValues(key));
 			if (allValues.contains(value)) 
 				valueChooser.getSelectionModel().select(value);
 			else
@@ -252,6 +274,16 @@ public abstract class SearchableController extends MasterController {
 			valueChooser.setVisible(true);
 			searchButton.setVisible(true);
 			searchButton.setManaged(true);
+		} else if (v == 3) { // search by query
+			queryField.setManaged(true);
+			queryField.setVisible(true);
+			searchButton.setVisible(true);
+			searchButton.setManaged(true);
+		} else if (v == 4) { // search for similar photos
+			similarityChooser.setManaged(true);
+			similarityChooser.setVisible(true);
+			searchButton.setVisible(true);
+			searchButton.setManaged(true);
 		}
 	}
 	
@@ -265,6 +297,10 @@ public abstract class SearchableController extends MasterController {
 		keyChooser.setManaged(false);
 		valueChooser.setManaged(false);
 		valueChooser.setVisible(false);
+		queryField.setVisible(false);
+		queryField.setManaged(false);
+		similarityChooser.setVisible(false);
+		similarityChooser.setManaged(false);
 		searchButton.setVisible(false);
 		searchButton.setManaged(false);
 	}
@@ -320,11 +356,32 @@ public abstract class SearchableController extends MasterController {
 	private void searchButtonClicked(MouseEvent e) {
 		if (!leftClick(e))
 			return;
+		search();
+	}
+	
+	/**
+	 * Handler for when enter is pressed in queryField. Runs the typed query.
+	 * @param e
+	 */
+	@FXML
+	private void queryEntered(ActionEvent e) {
+		search();
+	}
+	
+	/**
+	 * Do the search shown on screen and display the results.
+	 */
+	private void search() {
 		Set<Photo> results;
 		if (keyChooser.isManaged()) {
 			results = getTagResults();
 		} else if (dateChoosers.isManaged()) {
 			results = getDateResults();
+		} else if (queryField.isManaged()) {
+			results = getQueryResults();
+		} else if (similarityChooser.isManaged()) {
+			findSimilar();
+			return;
 		} else 
 			return;
 		if (results != null) {
@@ -340,28 +397,61 @@ public abstract class SearchableController extends MasterController {
 	 * @return
 	 */
 	private Set<Photo> getTagResults() {
-		HashSet<Photo> results = new HashSet<Photo>();
 		String key = keyChooser.getSelectionModel().getSelectedItem();
 		String value = valueChooser.getSelectionModel().getSelectedItem();
 		if (key == null || value == null)
 			System.out.println("getTagResults Error: either keyChooser or valueChooser currently have no value");
-		Set<Photo> allphotos = app.getCurrentUser().getAllPhotos();
-		for (Photo p : allphotos) {
-			if (key.equals("KEY")) {
-				results.add(p);
-			}
-			if (value.equals("ANY") || value.equals("VALUE")) { // find all that have that tag
-				if (p.hasTag(key)) {
-					results.add(p);
-				}
-			}
-			else {
-				if (p.hasTag(key) && p.isTaggedsAs(key, value))
-					results.add(p);
-			}
+		User u = app.getCurrentUser();
+		if (key.equals("KEY"))
+			return u.getAllPhotos();
+		if (value.equals("ANY") || value.equals("VALUE")) // find all that have that tag
+			return u.findTagged(key);
+		return u.findTagged(key, value);
+	}
+	
+	/**
+	 * Get the results of the query typed into queryField.
+	 * @return The matching photos, or null if the query could not be parsed.
+	 */
+	private Set<Photo> getQueryResults() {
+		Query q;
+		try {
+			q = Query.parse(queryField.getText());
+		} catch (IllegalArgumentException e) {
+			photoalbum.util.Services.createAlert(e.getMessage());
+			return null;
 		}
-		
-		return results;
+		return app.getCurrentUser().search(q);
+	}
+	
+	/**
+	 * Ask for a picture and search for photos that look like it in the background, showing the
+	 * results once the search is done. Photos that haven't been searched before have to be read
+	 * first, which can take a while.
+	 */
+	private void findSimilar() {
+		FileChooser filechooser = new FileChooser();
+		filechooser.setTitle("find photos similar to");
+		filechooser.getExtensionFilters().addAll(
+				new ExtensionFilter("Image Files", "*.png", "*.jpg", "*.jpeg","*.gif", "*jpe")
+		);
+		File file = filechooser.showOpenDialog(searchButton.getScene().getWindow());
+		if (file == null)
+			return;
+		int distance = SIMILARITY_DISTANCES[Math.max(0, similarityChooser.getSelectionModel().getSelectedIndex())];
+		searchButton.setDisable(true);
+		User u = app.getCurrentUser();
+		SimilarityFinder.getInstance().findLater(u, file, distance, (results) -> {
+			searchButton.setDisable(false);
+			if (!stillShowing(searchButton, u))
+				return; // the user logged out or left this view while the search ran
+			if (results == null)
+				photoalbum.util.Services.createAlert("Could not read " + file.getName());
+			else if (results.size() == 0)
+				photoalbum.util.Services.createAlert("No photos were found with the matching criteria");
+			else
+				showResults(results);
+		});
 	}
 	
 	/**
@@ -380,11 +470,7 @@ public abstract class SearchableController extends MasterController {
 			photoalbum.util.Services.createAlert("Please enter a start date that is before the end date");
 			return null;
 		}
-		Date start = Date.from(sd.atStartOfDay(ZoneId.systemDefault()).toInstant());
-		Date end = Date.from(ed.atStartOfDay(ZoneId.systemDefault()).toInstant());
-		System.out.println("ED: "+end+" SD: "+start);
-		
-		return app.getCurrentUser().findWithinRange(start, end);	
+		return app.getCurrentUser().findWithinRange(sd, ed);	
 	}
 	
 	/**
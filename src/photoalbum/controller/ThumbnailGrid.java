@@ -0,0 +1,435 @@
+package photoalbum.controller;
+
+import java.util.ArrayList;
+import java.util.concurrent.Future;
+
+import javafx.collections.FXCollections;
+import javafx.collections.ListChangeListener;
+import javafx.collections.ObservableList;
+import javafx.geometry.Orientation;
+import javafx.geometry.Pos;
+import javafx.scene.control.Label;
+import javafx.scene.control.ScrollBar;
+import javafx.scene.image.Image;
+import javafx.scene.image.ImageView;
+import javafx.scene.input.KeyEvent;
+import javafx.scene.input.MouseEvent;
+import javafx.scene.input.ScrollEvent;
+import javafx.scene.layout.Pane;
+import javafx.scene.layout.Region;
+import javafx.scene.layout.VBox;
+import javafx.scene.shape.Rectangle;
+import photoalbum.model.Photo;
+import photoalbum.util.ImageCache;
+import photoalbum.util.ThumbnailLoader;
+
+/**
+ * A scrolling grid of photo thumbnails with as many columns as fit its width. Only the rows in
+ * view, plus a row of overscan above and below, have cells, and the same few cells are reused as
+ * the grid scrolls, so the number of nodes stays the same however many photos there are.
+ * Photo i is always shown by cell i modulo the number of cells, so scrolling by a row only
+ * changes the cells of the rows that came into view. Thumbnails are only loaded for photos that
+ * have a cell.
+ * @author Paul Warner & Kenny Zhang
+ *
+ */
+public class ThumbnailGrid extends Region {
+
+	/**
+	 * Rows of cells kept above and below the ones in view, so that thumbnails are loading
+	 * before they are scrolled to.
+	 */
+	private static final int OVERSCAN_ROWS = 1;
+
+	/**
+	 * Space around each cell, in pixels.
+	 */
+	private static final double GAP = 4;
+
+	/**
+	 * Height of the caption under each thumbnail, in pixels.
+	 */
+	private static final double CAPTION_HEIGHT = 18;
+
+	/**
+	 * Style of the cell of the selected photo.
+	 */
+	private static final String SELECTED_STYLE = "-fx-background-color: #0096c9;";
+
+	/**
+	 * Style of every other cell.
+	 */
+	private static final String CELL_STYLE = "-fx-background-color: transparent;";
+
+	/**
+	 * Width and height of the thumbnails.
+	 */
+	private int thumbnailSize = 100;
+
+	/**
+	 * The photos shown.
+	 */
+	private ObservableList<Photo> items = FXCollections.observableArrayList();
+
+	/**
+	 * Lays the grid out again when the photos change.
+	 */
+	private final ListChangeListener<Photo> itemsListener = (c) -> itemsChanged();
+
+	/**
+	 * Scroll bar on the right of the grid, measured in pixels of the full grid.
+	 */
+	private final ScrollBar scrollBar = new ScrollBar();
+
+	/**
+	 * Holds the cells, clipped to the part of the grid in view.
+	 */
+	private final Pane sheet = new Pane();
+
+	/**
+	 * The clip of the sheet.
+	 */
+	private final Rectangle clip = new Rectangle();
+
+	/**
+	 * All cells of the grid.
+	 */
+	private final ArrayList<Cell> cells = new ArrayList<Cell>();
+
+	/**
+	 * Number of columns in the last layout.
+	 */
+	private int columns = 1;
+
+	/**
+	 * Index of the selected photo, or -1 if none is selected.
+	 */
+	private int selectedIndex = -1;
+
+	/**
+	 * Create an empty grid.
+	 */
+	public ThumbnailGrid() {
+		scrollBar.setOrientation(Orientation.VERTICAL);
+		scrollBar.setMin(0);
+		scrollBar.valueProperty().addListener((o, oldValue, newValue) -> updateCells());
+		sheet.setClip(clip);
+		getChildren().addAll(sheet, scrollBar);
+		setFocusTraversable(true);
+		items.addListener(itemsListener);
+		addEventHandler(ScrollEvent.SCROLL, (e) -> {
+			scrollBar.setValue(clamp(scrollBar.getValue() - e.getDeltaY(), 0, scrollBar.getMax()));
+			e.consume();
+		});
+		addEventHandler(MouseEvent.MOUSE_PRESSED, (e) -> {
+			requestFocus();
+			int i = indexAt(e.getX(), e.getY());
+			if (i >= 0)
+				select(i);
+		});
+		addEventHandler(KeyEvent.KEY_PRESSED, this::keyPressed);
+	}
+
+	/**
+	 * @param size Width and height of the thumbnails shown in the grid.
+	 */
+	public void setThumbnailSize(int size) {
+		thumbnailSize = size;
+		for (Cell c : cells) {
+			c.clear();
+		}
+		sheet.getChildren().clear();
+		cells.clear();
+		requestLayout();
+	}
+
+	/**
+	 * Show the given photos. The grid follows any later changes to the list.
+	 * @param list The photos.
+	 */
+	public void setItems(ObservableList<Photo> list) {
+		items.removeListener(itemsListener);
+		items = list;
+		items.addListener(itemsListener);
+		itemsChanged();
+	}
+
+	/**
+	 * @return The photos shown.
+	 */
+	public ObservableList<Photo> getItems() {
+		return items;
+	}
+
+	/**
+	 * @return Index of the selected photo, or -1 if none is selected.
+	 */
+	public int getSelectedIndex() {
+		return selectedIndex;
+	}
+
+	/**
+	 * @return The selected photo, or null if none is selected.
+	 */
+	public Photo getSelectedItem() {
+		return selectedIndex < 0 ? null : items.get(selectedIndex);
+	}
+
+	/**
+	 * Select a photo and scroll it into view. Indexes past either end select the first or last photo.
+	 * @param index Index of the photo.
+	 */
+	public void select(int index) {
+		int old = selectedIndex;
+		selectedIndex = items.isEmpty() ? -1 : (int)clamp(index, 0, items.size() - 1);
+		if (old == selectedIndex)
+			return;
+		updateCells();
+		scrollTo(selectedIndex);
+	}
+
+	/**
+	 * Scroll so that the given photo is in view.
+	 * @param index Index of the photo.
+	 */
+	public void scrollTo(int index) {
+		if (index < 0)
+			return;
+		double top = GAP + (index / columns) * cellHeight();
+		if (top - GAP < scrollBar.getValue())
+			scrollBar.setValue(top - GAP);
+		else if (top + cellHeight() > scrollBar.getValue() + getHeight())
+			scrollBar.setValue(Math.min(scrollBar.getMax(), top + cellHeight() - getHeight()));
+	}
+
+	/**
+	 * @return Width each cell takes up, with its gap.
+	 */
+	private double cellWidth() {
+		return thumbnailSize + 2 * GAP;
+	}
+
+	/**
+	 * @return Height each cell takes up, with its gap.
+	 */
+	private double cellHeight() {
+		return thumbnailSize + CAPTION_HEIGHT + 2 * GAP;
+	}
+
+	@Override
+	protected double computePrefWidth(double height) {
+		return cellWidth() * 4 + GAP + scrollBar.prefWidth(-1);
+	}
+
+	@Override
+	protected double computePrefHeight(double width) {
+		return cellHeight() * 2 + GAP;
+	}
+
+	@Override
+	protected void layoutChildren() {
+		double w = getWidth();
+		double h = getHeight();
+		double barWidth = scrollBar.prefWidth(-1);
+		double sheetWidth = Math.max(0, w - barWidth);
+		scrollBar.resizeRelocate(sheetWidth, 0, barWidth, h);
+		sheet.resizeRelocate(0, 0, sheetWidth, h);
+		clip.setWidth(sheetWidth);
+		clip.setHeight(h);
+
+		columns = Math.max(1, (int)((sheetWidth - GAP) / cellWidth()));
+		int rows = (items.size() + columns - 1) / columns;
+		double content = rows * cellHeight() + GAP;
+		double max = Math.max(0, content - h);
+		scrollBar.setMax(max);
+		scrollBar.setVisibleAmount(content > 0 ? h * max / content : 0);
+		scrollBar.setUnitIncrement(cellHeight() / 2);
+		scrollBar.setBlockIncrement(Math.max(cellHeight(), h - cellHeight()));
+		scrollBar.setDisable(max == 0);
+
+		int poolRows = (int)Math.ceil(h / cellHeight()) + 1 + 2 * OVERSCAN_ROWS;
+		int pool = Math.min(poolRows * columns, items.size());
+		boolean resized = pool != cells.size();
+		while (cells.size() > pool) {
+			Cell c = cells.remove(cells.size() - 1);
+			c.clear();
+			sheet.getChildren().remove(c);
+		}
+		while (cells.size() < pool) {
+			Cell c = new Cell();
+			cells.add(c);
+			sheet.getChildren().add(c);
+		}
+		if (resized) {
+			for (Cell c : cells) {
+				c.clear(); // the photo each cell shows depends on the number of cells
+			}
+		}
+		if (scrollBar.getValue() > max)
+			scrollBar.setValue(max); // updates the cells
+		else
+			updateCells();
+	}
+
+	/**
+	 * Give each cell the photo it shows at the current scroll position and move it into place.
+	 */
+	private void updateCells() {
+		if (cells.isEmpty())
+			return;
+		double offset = scrollBar.getValue();
+		int firstRow = Math.max(0, (int)(offset / cellHeight()) - OVERSCAN_ROWS);
+		int first = firstRow * columns;
+		int last = Math.min(items.size(), first + cells.size());
+		for (int i = first; i < last; i++) {
+			Cell c = cells.get(i % cells.size());
+			c.show(i, items.get(i));
+			c.relocate(GAP + (i % columns) * cellWidth(), GAP + (i / columns) * cellHeight() - offset);
+		}
+		for (int i = last; i < first + cells.size(); i++) {
+			cells.get(i % cells.size()).clear();
+		}
+	}
+
+	/**
+	 * Keep the selection valid and lay the grid out again after the photos changed.
+	 */
+	private void itemsChanged() {
+		if (selectedIndex >= items.size())
+			selectedIndex = items.size() - 1;
+		for (Cell c : cells) {
+			c.clear();
+		}
+		requestLayout();
+	}
+
+	/**
+	 * @param x A position in the grid.
+	 * @param y A position in the grid.
+	 * @return Index of the photo at that position, or -1 if there is none.
+	 */
+	private int indexAt(double x, double y) {
+		int column = (int)((x - GAP) / cellWidth());
+		int row = (int)((y + scrollBar.getValue() - GAP) / cellHeight());
+		if (x < GAP || x >= sheet.getWidth() || column >= columns || row < 0)
+			return -1;
+		int i = row * columns + column;
+		return i < items.size() ? i : -1;
+	}
+
+	/**
+	 * Move the selection with the arrow, home and end keys.
+	 * @param e The key event.
+	 */
+	private void keyPressed(KeyEvent e) {
+		int i = selectedIndex;
+		switch (e.getCode()) {
+		case LEFT: i--; break;
+		case RIGHT: i++; break;
+		case UP: i -= columns; break;
+		case DOWN: i += columns; break;
+		case HOME: i = 0; break;
+		case END: i = items.size() - 1; break;
+		default: return;
+		}
+		select(i);
+		e.consume();
+	}
+
+	/**
+	 * @param v A value.
+	 * @param min The lowest value allowed.
+	 * @param max The highest value allowed.
+	 * @return The value moved into the range.
+	 */
+	private static double clamp(double v, double min, double max) {
+		return Math.max(min, Math.min(max, v));
+	}
+
+	/**
+	 * A single thumbnail with its caption. Thumbnails are decoded in the background by the
+	 * ThumbnailLoader, and a placeholder is shown until they are ready.
+	 * @author Paul Warner & Kenny Zhang
+	 *
+	 */
+	private class Cell extends VBox {
+
+		/**
+		 * The view the thumbnail is displayed in. Reused whenever the cell is given a new photo.
+		 */
+		private final ImageView view = new ImageView();
+
+		/**
+		 * The caption of the photo.
+		 */
+		private final Label caption = new Label();
+
+		/**
+		 * The photo shown, or null if the cell is not in use.
+		 */
+		private Photo photo;
+
+		/**
+		 * The thumbnail currently being loaded for this cell, or null if there is none.
+		 */
+		private Future<?> pending;
+
+		Cell() {
+			setAlignment(Pos.TOP_CENTER);
+			view.setPreserveRatio(true);
+			view.setFitWidth(thumbnailSize);
+			view.setFitHeight(thumbnailSize);
+			caption.setMaxWidth(thumbnailSize);
+			caption.setPrefHeight(CAPTION_HEIGHT);
+			getChildren().addAll(view, caption);
+			setPrefSize(thumbnailSize + GAP, cellHeight() - GAP);
+			setStyle(CELL_STYLE);
+		}
+
+		/**
+		 * Show a photo in this cell, loading its thumbnail unless it is already shown.
+		 * @param index Index of the photo in the grid.
+		 * @param p The photo.
+		 */
+		void show(int index, Photo p) {
+			setVisible(true);
+			setStyle(index == selectedIndex ? SELECTED_STYLE : CELL_STYLE);
+			if (p == photo)
+				return;
+			cancelPending();
+			photo = p;
+			caption.setText(p.getCaption());
+			Image cached = ImageCache.getInstance().getIfPresent(p, thumbnailSize, thumbnailSize);
+			if (cached != null) {
+				view.setImage(cached);
+				return;
+			}
+			view.setImage(ThumbnailLoader.getPlaceholder(thumbnailSize));
+			pending = ThumbnailLoader.getInstance().load(p, thumbnailSize, thumbnailSize, (img) -> {
+				// the cell may have been given another photo while this one was loading
+				if (photo == p)
+					view.setImage(img);
+			});
+		}
+
+		/**
+		 * Hide this cell and stop loading its thumbnail.
+		 */
+		void clear() {
+			cancelPending();
+			photo = null;
+			view.setImage(null);
+			setVisible(false);
+		}
+
+		/**
+		 * Cancel the thumbnail currently being loaded, if any.
+		 */
+		private void cancelPending() {
+			if (pending != null) {
+				pending.cancel(false);
+				pending = null;
+			}
+		}
+	}
+}
@@ -0,0 +1,354 @@
+package photoalbum.controller;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Future;
+
+import javafx.geometry.Rectangle2D;
+import javafx.scene.image.Image;
+import javafx.scene.image.ImageView;
+import javafx.scene.input.MouseEvent;
+import javafx.scene.input.ScrollEvent;
+import javafx.scene.layout.Region;
+import javafx.scene.shape.Rectangle;
+import photoalbum.util.TilePyramid;
+
+/**
+ * Shows a very large picture from its TilePyramid. Only the tiles in view are loaded, from the
+ * level whose resolution is just enough for the current zoom, and only a few screens' worth of
+ * tiles are kept in memory, so memory use depends on the size of the view and not of the
+ * picture. While a tile loads, the part of a coarser tile that is already loaded is stretched
+ * over it. The picture is dragged to pan and zoomed with ctrl + scroll.
+ * @author Paul Warner & Kenny Zhang
+ *
+ */
+public class TiledImageView extends Region {
+
+	/**
+	 * Factor the picture is zoomed by for each step of the mouse wheel.
+	 */
+	private static final double ZOOM_STEP = 1.25;
+
+	/**
+	 * Largest zoom, in pixels of the view per pixel of the original.
+	 */
+	private static final double MAX_SCALE = 4;
+
+	/**
+	 * Fewest tiles kept in memory, however few are in view.
+	 */
+	private static final int MIN_CACHED_TILES = 64;
+
+	/**
+	 * The pyramid shown, or null if there is none.
+	 */
+	private TilePyramid pyramid;
+
+	/**
+	 * Pixels of the view per pixel of the original.
+	 */
+	private double scale = 1;
+
+	/**
+	 * Point of the original at the top left corner of the view.
+	 */
+	private double originX, originY;
+
+	/**
+	 * Whether the picture is fitted to the view, which stops as soon as the user zooms.
+	 */
+	private boolean fitted = true;
+
+	/**
+	 * Where the mouse was when the picture was last dragged.
+	 */
+	private double dragX, dragY;
+
+	/**
+	 * The single tile of the coarsest level, kept so there is always something to show.
+	 */
+	private Image overview;
+
+	/**
+	 * Recently shown tiles by key, from least to most recently used.
+	 */
+	private final LinkedHashMap<Long, Image> tiles = new LinkedHashMap<Long, Image>(16, 0.75f, true);
+
+	/**
+	 * Tiles being loaded, by key.
+	 */
+	private final HashMap<Long, Future<?>> pending = new HashMap<Long, Future<?>>();
+
+	/**
+	 * Views of the tiles in view, reused as the picture is panned and zoomed.
+	 */
+	private final ArrayList<ImageView> views = new ArrayList<ImageView>();
+
+	/**
+	 * Number of tiles in view in the last update.
+	 */
+	private int visibleCount;
+
+	/**
+	 * The clip of the view.
+	 */
+	private final Rectangle clip = new Rectangle();
+
+	/**
+	 * Create an empty view.
+	 */
+	public TiledImageView() {
+		setClip(clip);
+		addEventHandler(ScrollEvent.SCROLL, (e) -> {
+			if (!e.isControlDown() || e.getDeltaY() == 0 || pyramid == null)
+				return;
+			e.consume();
+			zoom(e.getDeltaY() > 0 ? ZOOM_STEP : 1 / ZOOM_STEP, e.getX(), e.getY());
+		});
+		addEventHandler(MouseEvent.MOUSE_PRESSED, (e) -> {
+			dragX = e.getX();
+			dragY = e.getY();
+		});
+		addEventHandler(MouseEvent.MOUSE_DRAGGED, (e) -> {
+			if (pyramid == null)
+				return;
+			originX -= (e.getX() - dragX) / scale;
+			originY -= (e.getY() - dragY) / scale;
+			dragX = e.getX();
+			dragY = e.getY();
+			fitted = false;
+			clampOrigin();
+			update();
+		});
+	}
+
+	/**
+	 * Show a picture, fitted to the view.
+	 * @param p The pyramid of the picture, or null to show nothing.
+	 */
+	public void setPyramid(TilePyramid p) {
+		for (Future<?> f : pending.values()) {
+			f.cancel(false);
+		}
+		pending.clear();
+		tiles.clear();
+		overview = null;
+		pyramid = p;
+		fitted = true;
+		if (p != null) {
+			int top = p.getLevels() - 1;
+			p.loadTile(top, 0, 0, (img) -> {
+				if (pyramid == p) {
+					overview = img;
+					update();
+				}
+			});
+		}
+		requestLayout();
+	}
+
+	/**
+	 * @return The pyramid shown, or null if there is none.
+	 */
+	public TilePyramid getPyramid() {
+		return pyramid;
+	}
+
+	@Override
+	protected double computePrefWidth(double height) {
+		return 600;
+	}
+
+	@Override
+	protected double computePrefHeight(double width) {
+		return 450;
+	}
+
+	@Override
+	protected void layoutChildren() {
+		clip.setWidth(getWidth());
+		clip.setHeight(getHeight());
+		if (pyramid == null) {
+			update();
+			return;
+		}
+		if (fitted) {
+			scale = minScale();
+			originX = originY = 0;
+		}
+		scale = Math.max(scale, minScale());
+		clampOrigin();
+		update();
+	}
+
+	/**
+	 * Zoom in or out, keeping the point under the mouse where it is.
+	 * @param factor Factor to multiply the zoom by.
+	 * @param x Horizontal position of the mouse in the view.
+	 * @param y Vertical position of the mouse in the view.
+	 */
+	private void zoom(double factor, double x, double y) {
+		double s = Math.max(minScale(), Math.min(MAX_SCALE, scale * factor));
+		originX += x / scale - x / s;
+		originY += y / scale - y / s;
+		scale = s;
+		fitted = false;
+		clampOrigin();
+		update();
+	}
+
+	/**
+	 * @return The zoom at which the whole picture fits in the view. Pictures smaller than the view aren't stretched.
+	 */
+	private double minScale() {
+		if (pyramid == null || getWidth() <= 0 || getHeight() <= 0)
+			return 1;
+		return Math.min(1, Math.min(getWidth() / pyramid.getWidth(), getHeight() / pyramid.getHeight()));
+	}
+
+	/**
+	 * Keep the picture in view, centring it along any side where it is smaller than the view.
+	 */
+	private void clampOrigin() {
+		originX = clampOrigin(originX, pyramid.getWidth(), getWidth() / scale);
+		originY = clampOrigin(originY, pyramid.getHeight(), getHeight() / scale);
+	}
+
+	/**
+	 * @param origin The position of the view along one side of the picture.
+	 * @param size The length of the picture along that side.
+	 * @param visible The length of the picture that fits in the view.
+	 * @return The closest position that keeps the picture in view.
+	 */
+	private static double clampOrigin(double origin, double size, double visible) {
+		if (visible >= size)
+			return (size - visible) / 2;
+		return Math.max(0, Math.min(size - visible, origin));
+	}
+
+	/**
+	 * Show the tiles in view, load the ones that aren't in memory and stop loading the ones that
+	 * went out of view.
+	 */
+	private void update() {
+		int used = 0;
+		HashSet<Long> wanted = new HashSet<Long>();
+		if (pyramid != null && getWidth() > 0 && getHeight() > 0) {
+			int level = (int)Math.floor(Math.log(1 / scale) / Math.log(2));
+			level = Math.max(0, Math.min(pyramid.getLevels() - 1, level));
+			double span = (double)TilePyramid.TILE_SIZE * (1 << level); // pixels of the original per tile
+			int firstColumn = Math.max(0, (int)(originX / span));
+			int lastColumn = Math.min(pyramid.getColumns(level) - 1, (int)((originX + getWidth() / scale) / span));
+			int firstRow = Math.max(0, (int)(originY / span));
+			int lastRow = Math.min(pyramid.getRows(level) - 1, (int)((originY + getHeight() / scale) / span));
+			for (int row = firstRow; row <= lastRow; row++) {
+				for (int column = firstColumn; column <= lastColumn; column++) {
+					long key = key(level, column, row);
+					wanted.add(key);
+					if (show(used, level, column, row, span))
+						used++;
+					if (!tiles.containsKey(key) && !pending.containsKey(key))
+						load(level, column, row);
+				}
+			}
+		}
+		visibleCount = wanted.size();
+		for (int i = used; i < views.size(); i++) {
+			views.get(i).setVisible(false);
+			views.get(i).setImage(null);
+		}
+		Iterator<Map.Entry<Long, Future<?>>> it = pending.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<Long, Future<?>> e = it.next();
+			if (!wanted.contains(e.getKey())) {
+				e.getValue().cancel(false);
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * Show a tile, or the part of the closest coarser tile in memory that covers it.
+	 * @param index Index of the view to show it in.
+	 * @param level The level of the tile.
+	 * @param column The column of the tile.
+	 * @param row The row of the tile.
+	 * @param span Pixels of the original per tile at this level.
+	 * @return Whether anything was shown.
+	 */
+	private boolean show(int index, int level, int column, int row, double span) {
+		Image img = null;
+		Rectangle2D viewport = null;
+		int coarsest = pyramid.getLevels() - 1;
+		for (int l = level; l <= coarsest && img == null; l++) {
+			int d = l - level;
+			img = l == coarsest && overview != null ? overview : tiles.get(key(l, column >> d, row >> d));
+			if (img != null && d > 0) {
+				double size = (double)TilePyramid.TILE_SIZE / (1 << d);
+				double x = (column - ((column >> d) << d)) * size;
+				double y = (row - ((row >> d) << d)) * size;
+				double w = Math.min(size, img.getWidth() - x), h = Math.min(size, img.getHeight() - y);
+				if (w <= 0 || h <= 0)
+					img = null;
+				else
+					viewport = new Rectangle2D(x, y, w, h);
+			}
+		}
+		if (img == null)
+			return false;
+		while (views.size() <= index) {
+			ImageView v = new ImageView();
+			v.setPreserveRatio(false);
+			views.add(v);
+			getChildren().add(v);
+		}
+		ImageView v = views.get(index);
+		double left = column * span, top = row * span;
+		double right = Math.min(pyramid.getWidth(), left + span), bottom = Math.min(pyramid.getHeight(), top + span);
+		v.setImage(img);
+		v.setViewport(viewport);
+		v.setFitWidth((right - left) * scale);
+		v.setFitHeight((bottom - top) * scale);
+		v.relocate((left - originX) * scale, (top - originY) * scale);
+		v.setVisible(true);
+		return true;
+	}
+
+	/**
+	 * Load a tile and show it once it arrives.
+	 * @param level The level of the tile.
+	 * @param column The column of the tile.
+	 * @param row The row of the tile.
+	 */
+	private void load(int level, int column, int row) {
+		long key = key(level, column, row);
+		TilePyramid p = pyramid;
+		pending.put(key, p.loadTile(level, column, row, (img) -> {
+			if (pyramid != p)
+				return;
+			pending.remove(key);
+			tiles.put(key, img);
+			int cap = Math.max(MIN_CACHED_TILES, 2 * visibleCount);
+			Iterator<Long> it = tiles.keySet().iterator();
+			while (tiles.size() > cap && it.hasNext()) {
+				it.next();
+				it.remove();
+			}
+			update();
+		}));
+	}
+
+	/**
+	 * @param level The level of a tile.
+	 * @param column The column of the tile.
+	 * @param row The row of the tile.
+	 * @return A key unique to the tile.
+	 */
+	private static long key(int level, int column, int row) {
+		return ((long)level << 48) | ((long)column << 24) | row;
+	}
+}
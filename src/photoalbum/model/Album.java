@@ -4,8 +4,10 @@ import java.io.IOException;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
-import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.Set;
 
 /**
@@ -23,14 +25,11 @@ public class Album implements Serializable, Comparable<Album> {
 	String albumName;
 	
 	/**
-	 * All photos stored in this album.
+	 * All photos stored in this album in the order they were added, or null if they are still only
+	 * in the catalogue. A linked set keeps that order while finding and removing a photo in
+	 * constant time.
 	 */
-	ArrayList<Photo> photos;
-	
-	/**
-	 * Date of the oldest photo in this album.
-	 */
-	Calendar oldestDate;
+	LinkedHashSet<Photo> photos;
 	
 	/**
 	 * Date of oldest photo in this album represented as a string.
@@ -43,14 +42,41 @@ public class Album implements Serializable, Comparable<Album> {
 	String newestDateString = "";
 	
 	/**
-	 * Date of the newest photo in this album.
+	 * String array that stores the newest and oldest date.
 	 */
-	Calendar newestDate; 
+	String[] dateRange = { "", "" };
 	
 	/**
-	 * String array that stores the newest and oldest date.
+	 * The user this album is stored in, or null if it isn't stored in a user (as with search results).
+	 */
+	transient User owner;
+	
+	/**
+	 * The catalogue this album's photos are read from the first time they are needed, or null if
+	 * the album was not loaded from one.
+	 */
+	transient Catalogue catalogue;
+	
+	/**
+	 * Index of this album in its catalogue.
+	 */
+	transient int catalogueIndex;
+	
+	/**
+	 * Epoch day of the oldest photo in this album, or Photo.NO_DATE if it has no dated photos.
+	 */
+	transient int oldestDay = Photo.NO_DATE;
+	
+	/**
+	 * Epoch day of the newest photo in this album, or Photo.NO_DATE if it has no dated photos.
+	 */
+	transient int newestDay = Photo.NO_DATE;
+	
+	/**
+	 * Whether the date range fields match the photos in this album. They are kept up to date as
+	 * photos are added, and only worked out again after the oldest or newest photo is removed.
 	 */
-	String[] dateRange = new String[2];
+	transient boolean datesKnown;
 	
 	/*
 	 * create a new album with the name albumName
@@ -58,67 +84,121 @@ public class Album implements Serializable, Comparable<Album> {
 	public Album(String albumName) {
 		super();
 		this.albumName = albumName;
-		photos = new ArrayList<Photo>();
+		photos = new LinkedHashSet<Photo>();
+		datesKnown = true;
 	}
 	
 	/**
-	 * This method returns the number of photos currently in the album by accessing the photos arraylist
+	 * This method returns the number of photos currently in the album by accessing the photos set
 	 * @return the number of photos in the album
 	 */
 	
 	public int getPhotoCount() {
+		if (photos == null)
+			return catalogue.albumPhotoCount(catalogueIndex);
 		return photos.size();
 	}
 	
 	/**
-	 * This method searchs through the list of photos stored in this album and finds the oldest date present.
+	 * Get the set of photos, reading it from the catalogue the first time it is needed.
+	 * @return The photos in this album, in order.
 	 */
-	// FIXED THIS METHOD SO THAT IT WILL CORRECTLY SET OLDEST DATE IF OLDEST IS FIRST	
-	public void findOldestDate() {
-		Calendar oldestTemp = Calendar.getInstance();
-		photoalbum.util.Services.setExtrasToZero(oldestTemp);
-		boolean first = true;
-		for(Photo p:photos) {
-			if(first) {
-				oldestTemp = p.getDate();
-				first = false;
-				oldestDateString = p.getDateString();
-				continue;
-			}
-			
-			if(!oldestTemp.before(p.getDate())) {
-				oldestTemp = p.getDate();
-				oldestDateString = p.getDateString();
-			} 	
-		}
-		oldestDate = oldestTemp; 
-		dateRange[0] = oldestDateString; 
+	LinkedHashSet<Photo> photos() {
+		if (photos == null)
+			photos = catalogue.albumPhotos(catalogueIndex);
+		return photos;
 	}
 	
 	/**
-	 * This method searches through the list of photos and finds the newest date present. 
+	 * Make sure the oldest date of this album is known. Dates are kept up to date as photos are
+	 * added and removed, so this only looks at the photos if the oldest or newest one was removed.
 	 */
+	public void findOldestDate() {
+		updateDates();
+	}
 	
-	// FIXED THIS METHOD SO THAT IT WILL CORRECTLY SET NEWEST DATE IF NEWEST IS FIRST
+	/**
+	 * Make sure the newest date of this album is known. Dates are kept up to date as photos are
+	 * added and removed, so this only looks at the photos if the oldest or newest one was removed.
+	 */
 	public void findNewestDate() {
-		Calendar newestTemp = Calendar.getInstance();
-		photoalbum.util.Services.setExtrasToZero(newestTemp);
-		boolean first = true;
-		for(Photo p: photos) {
-			if(first) {
-				newestTemp = p.getDate();
-				first = false;
-				newestDateString = p.getDateString();
-				continue;
-			}
-			
-			if(!newestTemp.after(p.getDate())) {
-				newestTemp = p.getDate();
-				newestDateString = p.getDateString();
-			}
+		updateDates();
+	}
+	
+	/**
+	 * Work out the date range again if it is out of date. An album still only in the catalogue
+	 * takes its range from there without reading its photos.
+	 */
+	private void updateDates() {
+		if (datesKnown)
+			return;
+		datesKnown = true;
+		if (photos == null) {
+			setOldest(catalogue.albumOldestDay(catalogueIndex));
+			setNewest(catalogue.albumNewestDay(catalogueIndex));
+			return;
+		}
+		setOldest(Photo.NO_DATE);
+		setNewest(Photo.NO_DATE);
+		for (Photo p : photos) {
+			includeDate(p);
 		}
-		newestDate = newestTemp;
-		dateRange[1] = newestDateString; 
+	}
+	
+	/**
+	 * Widen the date range to take in a photo added to this album.
+	 * @param p The photo.
+	 */
+	void includeDate(Photo p) {
+		int day = p.getDay();
+		if (!datesKnown || day == Photo.NO_DATE)
+			return;
+		if (oldestDay == Photo.NO_DATE || day < oldestDay)
+			setOldest(day);
+		if (newestDay == Photo.NO_DATE || day > newestDay)
+			setNewest(day);
+	}
+	
+	/**
+	 * Note that a photo was removed from this album. The date range is only worked out again,
+	 * the next time it is needed, if the photo was on one of its ends.
+	 * @param p The photo.
+	 */
+	private void excludeDate(Photo p) {
+		int day = p.getDay();
+		if (!datesKnown || day == Photo.NO_DATE)
+			return;
+		if (day == oldestDay || day == newestDay)
+			datesKnown = false;
+	}
+	
+	/**
+	 * Forget the date range, so that it is worked out the next time it is needed.
+	 */
+	void forgetDates() {
+		datesKnown = false;
+	}
+	
+	/**
+	 * @param day Epoch day of the oldest photo, or Photo.NO_DATE.
+	 */
+	private void setOldest(int day) {
+		if (day == oldestDay && oldestDateString != null)
+			return;
+		oldestDay = day;
+		oldestDateString = Photo.formatDay(day);
+		dateRange[0] = oldestDateString;
+	}
+	
+	/**
+	 * @param day Epoch day of the newest photo, or Photo.NO_DATE.
+	 */
+	private void setNewest(int day) {
+		if (day == newestDay && newestDateString != null)
+			return;
+		newestDay = day;
+		newestDateString = Photo.formatDay(day);
+		dateRange[1] = newestDateString;
 	}
 	
 	/**
@@ -127,6 +207,7 @@ public class Album implements Serializable, Comparable<Album> {
 	 */
 	
 	public String[] getDateRange() {
+		updateDates();
 		return dateRange; 
 	}
 	
@@ -136,6 +217,7 @@ public class Album implements Serializable, Comparable<Album> {
 	 */
 	
 	public String getOldestDate() {
+		updateDates();
 		return oldestDateString; 
 	}
 	
@@ -145,6 +227,7 @@ public class Album implements Serializable, Comparable<Album> {
 	 */
 	
 	public String getNewestDate() {
+		updateDates();
 		return newestDateString;
 	}
 
@@ -156,11 +239,12 @@ public class Album implements Serializable, Comparable<Album> {
 	// CHANGED SERIALIZATION OBJECTS TO WORK WITH NEW FIELDS
 	private void writeObject(ObjectOutputStream out) throws IOException {
 		out.writeObject(albumName);
-		out.writeObject(photos);
-		out.writeObject(oldestDate);
+		out.writeObject(new ArrayList<Photo>(photos()));
+		updateDates();
+		out.writeObject(oldestDay == Photo.NO_DATE ? null : UserCodec.fromEpochDay(oldestDay));
 		out.writeObject(oldestDateString);
 		out.writeObject(newestDateString);
-		out.writeObject(newestDate);
+		out.writeObject(newestDay == Photo.NO_DATE ? null : UserCodec.fromEpochDay(newestDay));
 		out.writeObject(dateRange);
 	}
 	
@@ -173,11 +257,11 @@ public class Album implements Serializable, Comparable<Album> {
 	@SuppressWarnings("unchecked")
 	private void readObject(java.io.ObjectInputStream in) throws IOException, ClassNotFoundException {
 		albumName = (String)in.readObject();
-		photos = (ArrayList<Photo>)in.readObject();
-		oldestDate = (Calendar)in.readObject();
+		photos = new LinkedHashSet<Photo>((ArrayList<Photo>)in.readObject());
+		in.readObject(); // oldest date, worked out again when needed
 		oldestDateString = (String)in.readObject();
 		newestDateString = (String)in.readObject();
-		newestDate = (Calendar)in.readObject();
+		in.readObject(); // newest date
 		dateRange  = (String[])in.readObject();
 	}
 
@@ -195,16 +279,40 @@ public class Album implements Serializable, Comparable<Album> {
 	 */
 	public void setAlbumName(String albumName) {
 		this.albumName = albumName;
+		if (owner != null)
+			owner.modified();
 	}
 	
 	/**
-	 * Return all this album's photos.
-	 * @return all photos in this album
+	 * Set the user this album is stored in. All photos in this album are stored in that user as well.
+	 * @param owner The user this album has been added to.
 	 */
-	public ArrayList<Photo> getPhotos() {
-		return photos;
+	void setOwner(User owner) {
+		this.owner = owner;
+		if (owner != null && photos != null) { // photos read from the catalogue get their owner there
+			for (Photo p : photos) {
+				p.setOwner(owner);
+			}
+		}
+	}
+	
+	/**
+	 * Return all this album's photos. The set can't be changed; use addPhoto and removePhoto.
+	 * @return all photos in this album, in the order they were added
+	 */
+	public Set<Photo> getPhotos() {
+		return Collections.unmodifiableSet(photos());
 	}	
 	
+	/**
+	 * Check whether a photo is in this album.
+	 * @param p The photo.
+	 * @return True if the photo is in this album.
+	 */
+	public boolean contains(Photo p) {
+		return photos().contains(p);
+	}
+	
 	/**
 	 * Add the given photo object to this album. If the photo is already contained in this album,
 	 * it is not added and false is returned. Otherwise return true.
@@ -212,12 +320,44 @@ public class Album implements Serializable, Comparable<Album> {
 	 * @return True of the photo was added successfully, false otherwise.
 	 */
 	public boolean addPhoto(Photo p) {
-		if (!photos.contains(p)) {
-			photos.add(p);
-			return true;
-		} else {
+		if (!added(p))
 			return false;
+		if (owner != null)
+			owner.modified();
+		return true;
+	}
+	
+	/**
+	 * Add several photos to this album, in order. Photos already in it are skipped. The owner is
+	 * told about the change once rather than once per photo.
+	 * @param ps The photos to add.
+	 * @return The number of photos that were added.
+	 */
+	public int addAll(Collection<Photo> ps) {
+		int count = 0;
+		for (Photo p : ps) {
+			if (added(p))
+				count++;
 		}
+		if (count > 0 && owner != null)
+			owner.modified();
+		return count;
+	}
+	
+	/**
+	 * Add a photo to the set and to the owner's index, without marking the owner modified.
+	 * @param p The photo.
+	 * @return False if the photo was already in this album.
+	 */
+	private boolean added(Photo p) {
+		if (!photos().add(p))
+			return false;
+		includeDate(p);
+		if (owner != null) {
+			p.setOwner(owner);
+			owner.photoAdded(this, p);
+		}
+		return true;
 	}
 	
 	@Override
@@ -235,6 +375,8 @@ public class Album implements Serializable, Comparable<Album> {
 	 * @return All unique tags on photos in this album.
 	 */
 	public Set<String> getAllTags() {
+		if (photos == null)
+			return owner != null ? owner.albumTags(this) : catalogue.albumTags(catalogueIndex);
 		HashSet<String> s = new HashSet<String>();
 		for (Photo p : photos) {
 			s.addAll(p.getTags());
@@ -247,7 +389,78 @@ public class Album implements Serializable, Comparable<Album> {
 	 * @param p
 	 */
 	public void removePhoto(Photo p) {
-		photos.remove(p);
+		if (removed(p) && owner != null)
+			owner.modified();
+	}
+	
+	/**
+	 * Remove several photos from this album. Photos that aren't in it are skipped. The owner is
+	 * told about the change once rather than once per photo.
+	 * @param ps The photos to remove.
+	 * @return The number of photos that were removed.
+	 */
+	public int removeAll(Collection<Photo> ps) {
+		int count = 0;
+		for (Photo p : ps) {
+			if (removed(p))
+				count++;
+		}
+		if (count > 0 && owner != null)
+			owner.modified();
+		return count;
+	}
+	
+	/**
+	 * Remove a photo from the set and from the owner's index, without marking the owner modified.
+	 * @param p The photo.
+	 * @return False if the photo wasn't in this album.
+	 */
+	private boolean removed(Photo p) {
+		if (!photos().remove(p))
+			return false;
+		excludeDate(p);
+		if (owner != null)
+			owner.photoRemoved(this, p);
+		return true;
+	}
+	
+	/**
+	 * Put a photo in the place of another one in this album. If the album already holds the new
+	 * photo, the old one is just removed. The set is rebuilt to keep the order, which is fine for
+	 * the rare merges that need this.
+	 * @param old The photo to replace.
+	 * @param p The photo to put in its place.
+	 */
+	void replacePhoto(Photo old, Photo p) {
+		boolean found = false;
+		boolean has = false;
+		for (Photo q : photos()) {
+			if (q == old)
+				found = true;
+			else if (q == p)
+				has = true;
+		}
+		if (!found)
+			return;
+		LinkedHashSet<Photo> set = new LinkedHashSet<Photo>();
+		for (Photo q : photos) {
+			if (q != old)
+				set.add(q);
+			else if (!has)
+				set.add(p);
+		}
+		photos = set;
+		excludeDate(old);
+		if (!has)
+			includeDate(p);
+		if (owner != null) {
+			owner.photoRemoved(this, old);
+			if (!has) {
+				p.setOwner(owner);
+				owner.photoAdded(this, p);
+			}
+			owner.modified();
+		}
 	}
 	
 }
@@ -0,0 +1,351 @@
+package photoalbum.model;
+
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Read access to a user record in the fixed layout written by UserCodec, usually backed by a segment
+ * file mapped into memory. Strings and photos are found through offset tables, so a single photo
+ * or album can be read without reading anything before it, and nothing is copied onto the heap
+ * until it is asked for.
+ * <p>
+ * Photos read from the catalogue are remembered only weakly. While any album holds a photo,
+ * reading it again returns the same object, so photos shared between albums stay shared, but
+ * photos no one holds any more can be collected and are simply read again when next needed.
+ * A photo that has been changed no longer matches the record, so from then on it is held for
+ * as long as the catalogue is, and an album opened later sees the change rather than a fresh
+ * copy. The user's PhotoIndex is built from the record as well, without reading the photos of
+ * albums that haven't been opened, so heap use grows with the albums opened and the photos
+ * changed or found by searches rather than with the size of the catalogue.
+ * @author Paul Warner & Kenny Zhang
+ *
+ */
+final class Catalogue {
+
+	/**
+	 * Number of ints in each entry of the album table.
+	 */
+	static final int ALBUM_INTS = 6;
+
+	/**
+	 * Stored in place of the oldest and newest date of an album that has no dated photos.
+	 */
+	static final int NO_DATE = Photo.NO_DATE;
+
+	/**
+	 * The record, with position 0 at its first byte.
+	 */
+	private final ByteBuffer record;
+
+	/**
+	 * Version of the format the record was written in.
+	 */
+	private final int version;
+
+	/**
+	 * The user the record belongs to, which every photo read is stored in.
+	 */
+	private final User owner;
+
+	/**
+	 * Number of strings in the string table.
+	 */
+	private final int stringCount;
+
+	/**
+	 * Number of photos in the record.
+	 */
+	private final int photoCount;
+
+	/**
+	 * Offset of the string offset table.
+	 */
+	private final int stringTable;
+
+	/**
+	 * Offset of the photo offset table.
+	 */
+	private final int photoTable;
+
+	/**
+	 * Offset of the album table.
+	 */
+	private final int albumTable;
+
+	/**
+	 * Photos that have been read, by index: a weak reference to each photo that is unchanged, the
+	 * photo itself once it has changed, or null for photos not read yet.
+	 */
+	private final Object[] photos;
+
+	/**
+	 * Number of photos that have changed since they were read.
+	 */
+	private int changedCount;
+
+	/**
+	 * Open a record and create its user. Only the header and the album table are read; each album
+	 * reads its photos from the catalogue the first time they are needed.
+	 * @param record The record, from its first byte to its last.
+	 * @throws IOException If the header is damaged.
+	 */
+	Catalogue(ByteBuffer record) throws IOException {
+		this.record = record.slice();
+		version = UserCodec.version(this.record);
+		stringCount = this.record.getInt(UserCodec.HEADER_BYTES);
+		photoCount = this.record.getInt(UserCodec.HEADER_BYTES + 4);
+		int albumCount = this.record.getInt(UserCodec.HEADER_BYTES + 8);
+		stringTable = UserCodec.HEADER_BYTES + 16;
+		photoTable = stringTable + 4 * (stringCount + 1);
+		albumTable = photoTable + 4 * (photoCount + 1);
+		if (stringCount < 0 || photoCount < 0 || albumCount < 0
+				|| (long)albumTable + 4L * ALBUM_INTS * albumCount > this.record.limit())
+			throw new IOException("damaged user record");
+		photos = new Object[photoCount];
+		owner = new User(string(this.record.getInt(UserCodec.HEADER_BYTES + 12)));
+		for (int a = 0; a < albumCount; a++) {
+			Album album = new Album(albumName(a));
+			album.photos = null;
+			album.catalogue = this;
+			album.catalogueIndex = a;
+			album.forgetDates();
+			owner.addAlbum(album);
+		}
+	}
+
+	/**
+	 * @return The user stored in the record.
+	 */
+	User getUser() {
+		return owner;
+	}
+
+	/**
+	 * @param i The index of a string.
+	 * @return The string.
+	 */
+	String string(int i) {
+		int start = record.getInt(stringTable + 4 * i);
+		int end = record.getInt(stringTable + 4 * (i + 1));
+		byte[] bytes = new byte[end - start];
+		ByteBuffer in = record.duplicate();
+		in.position(start);
+		in.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Get a photo, reading it if no one holds it already.
+	 * @param i The index of the photo.
+	 * @return The photo.
+	 */
+	Photo photo(int i) {
+		Photo p = loaded(i);
+		if (p == null) {
+			p = readPhoto(i);
+			photos[i] = new WeakReference<Photo>(p);
+			owner.photoRead(p);
+		}
+		return p;
+	}
+
+	/**
+	 * Get a photo only if it has already been read and is still held.
+	 * @param i The index of the photo.
+	 * @return The photo, or null.
+	 */
+	Photo loaded(int i) {
+		Object o = photos[i];
+		if (o instanceof WeakReference)
+			return (Photo)((WeakReference<?>)o).get();
+		return (Photo)o;
+	}
+
+	/**
+	 * Keep a photo read from this catalogue for as long as the catalogue, since it has changed
+	 * and no longer matches the record.
+	 * @param p The photo.
+	 */
+	void changed(Photo p) {
+		if (photos[p.catalogueIndex] != p) {
+			photos[p.catalogueIndex] = p;
+			changedCount++;
+		}
+	}
+
+	/**
+	 * Read a photo from the record.
+	 * @param i The index of the photo.
+	 * @return A new photo object.
+	 */
+	private Photo readPhoto(int i) {
+		UserCodec.PhotoState state = readState(i);
+		Photo p = new Photo(state.path, state.day, state.caption, owner);
+		for (int t = 0; t < state.tags.length; t += 2) {
+			p.loadTag(state.tags[t], state.tags[t + 1]);
+		}
+		if (state.hashed)
+			p.loadVisualHash(state.hash);
+		p.catalogue = this;
+		p.catalogueIndex = i;
+		return p;
+	}
+
+	/**
+	 * Read the fields of a photo from the record without creating it. Only reads the record, so
+	 * it may be called on any thread.
+	 * @param i The index of the photo.
+	 * @return The photo's fields.
+	 */
+	UserCodec.PhotoState readState(int i) {
+		ByteBuffer in = at(record.getInt(photoTable + 4 * i));
+		try {
+			String path = string(UserCodec.readVarint(in)) + string(UserCodec.readVarint(in));
+			int day = UserCodec.readVarint(in);
+			int caption = UserCodec.readVarint(in);
+			String[] tags = new String[2 * UserCodec.readVarint(in)];
+			for (int t = 0; t < tags.length; t++) {
+				tags[t] = string(UserCodec.readVarint(in));
+			}
+			boolean hashed = version >= 3 && in.get() != 0;
+			return new UserCodec.PhotoState(path, day == 0 ? Photo.NO_DATE : UserCodec.unzigzag(day - 1),
+					caption == 0 ? null : string(caption - 1), tags, hashed, hashed ? in.getLong() : 0);
+		} catch (IOException e) {
+			throw new IllegalStateException("damaged photo " + i + " of " + owner, e);
+		}
+	}
+
+	/**
+	 * @return Number of photos in the record.
+	 */
+	int photoCount() {
+		return photoCount;
+	}
+
+	/**
+	 * @param a The index of an album.
+	 * @return The album's name.
+	 */
+	String albumName(int a) {
+		return string(albumInt(a, 0));
+	}
+
+	/**
+	 * @param a The index of an album.
+	 * @return Number of photos in the album.
+	 */
+	int albumPhotoCount(int a) {
+		return albumInt(a, 1);
+	}
+
+	/**
+	 * @param a The index of an album.
+	 * @return Epoch day of the album's oldest photo, or NO_DATE.
+	 */
+	int albumOldestDay(int a) {
+		return albumInt(a, 2);
+	}
+
+	/**
+	 * @param a The index of an album.
+	 * @return Epoch day of the album's newest photo, or NO_DATE.
+	 */
+	int albumNewestDay(int a) {
+		return albumInt(a, 3);
+	}
+
+	/**
+	 * Get all photos in an album, reading the ones not read yet.
+	 * @param a The index of an album.
+	 * @return The album's photos, in order.
+	 */
+	LinkedHashSet<Photo> albumPhotos(int a) {
+		int count = albumPhotoCount(a);
+		LinkedHashSet<Photo> list = new LinkedHashSet<Photo>(count * 4 / 3 + 1);
+		ByteBuffer in = at(albumInt(a, 4));
+		try {
+			for (int i = 0; i < count; i++) {
+				list.add(photo(UserCodec.readVarint(in)));
+			}
+		} catch (IOException e) {
+			throw new IllegalStateException("damaged album " + a + " of " + owner, e);
+		}
+		return list;
+	}
+
+	/**
+	 * Get the photos in an album without reading them.
+	 * @param a The index of an album.
+	 * @return The index of each photo in the album, in order.
+	 */
+	int[] albumPhotoIndices(int a) {
+		int[] list = new int[albumPhotoCount(a)];
+		ByteBuffer in = at(albumInt(a, 4));
+		try {
+			for (int i = 0; i < list.length; i++) {
+				list[i] = UserCodec.readVarint(in);
+			}
+		} catch (IOException e) {
+			throw new IllegalStateException("damaged album " + a + " of " + owner, e);
+		}
+		return list;
+	}
+
+	/**
+	 * Get the tag keys used in an album without creating its photos. The keys stored with the
+	 * album are used unless a photo has changed since it was read, in which case the photos of
+	 * the album are read from the record, and the changed ones looked at instead.
+	 * @param a The index of an album.
+	 * @return All unique tag keys on photos in the album.
+	 */
+	Set<String> albumTags(int a) {
+		HashSet<String> tags = new HashSet<String>();
+		if (changedCount > 0) {
+			for (int i : albumPhotoIndices(a)) {
+				if (photos[i] instanceof Photo) {
+					tags.addAll(((Photo)photos[i]).getTags());
+					continue;
+				}
+				String[] pairs = readState(i).tags;
+				for (int t = 0; t < pairs.length; t += 2) {
+					tags.add(pairs[t]);
+				}
+			}
+			return tags;
+		}
+		ByteBuffer in = at(albumInt(a, 5));
+		try {
+			int count = UserCodec.readVarint(in);
+			for (int i = 0; i < count; i++) {
+				tags.add(string(UserCodec.readVarint(in)));
+			}
+		} catch (IOException e) {
+			throw new IllegalStateException("damaged album " + a + " of " + owner, e);
+		}
+		return tags;
+	}
+
+	/**
+	 * @param a The index of an album.
+	 * @param field The index of the int within the album's table entry.
+	 * @return The value of that int.
+	 */
+	private int albumInt(int a, int field) {
+		return record.getInt(albumTable + 4 * (ALBUM_INTS * a + field));
+	}
+
+	/**
+	 * @param offset An offset in the record.
+	 * @return A view of the record positioned at that offset.
+	 */
+	private ByteBuffer at(int offset) {
+		ByteBuffer in = record.duplicate();
+		in.position(offset);
+		return in;
+	}
+}
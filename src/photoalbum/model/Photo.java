@@ -6,17 +6,26 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
-import java.text.SimpleDateFormat;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 import java.util.Calendar;
-import java.util.Date;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
 import java.util.Set;
 
 import javafx.scene.image.Image;
+import photoalbum.util.ImageMetadata;
 
 /**
- * Represents a photo. A photo is not unique, and there can be multiple photo objects
- * pointing to the same file on the filesystem.
+ * Represents a photo. Two photos are equal when their canonical paths are, so the same file is
+ * one photo however its path is written. Photos added through {@link User#importPhoto(String)}
+ * are stored under their canonical path and shared by every album of the user that holds the
+ * file, so each file has one set of tags and one caption.
  * @author Paul Warner & Kenny Zhang
  *
  */
@@ -24,20 +33,41 @@ public class Photo implements Serializable {
 	
 	private static final long serialVersionUID = -8750705225265712462L;
 	
+	/**
+	 * Day number of a photo whose date is unknown.
+	 */
+	public static final int NO_DATE = Integer.MIN_VALUE;
+	
+	/**
+	 * Format dates are shown in.
+	 */
+	private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("dd-MM-yyyy");
+	
+	/**
+	 * Tags of a photo that has none, shared by all such photos.
+	 */
+	private static final int[] NO_TAGS = new int[0];
+	
 	/**
 	 * Path to this photo.
 	 */
 	private String photoPath;
 	
 	/**
-	 * tags represented as (key, value) pairs.
+	 * tags represented as (key, value) pairs, each a number in the symbol table of the owner,
+	 * stored one after the other in the order they were set.
 	 */
-	private HashMap<String, String> tags;
+	private int[] tags = NO_TAGS;
 	
 	/**
-	 * Date this photo was taken.
+	 * Day this photo was taken, as the number of days since 1970-01-01, or NO_DATE.
 	 */
-	private Calendar date;
+	private int day = NO_DATE;
+	
+	/**
+	 * The day this photo was taken as shown to the user, made the first time it is needed.
+	 */
+	private transient String dateString;
 	
 	/**
 	 * This photo's caption
@@ -45,10 +75,134 @@ public class Photo implements Serializable {
 	private String caption;
 	
 	/**
-	 * @return A set of all tag keys this photo has.
+	 * Perceptual hash of this photo's picture, valid if hasVisualHash is set.
+	 */
+	private long visualHash;
+	
+	/**
+	 * Whether the visual hash has been worked out.
+	 */
+	private boolean hasVisualHash;
+	
+	/**
+	 * The user whose albums this photo is stored in, or null if it hasn't been added to one yet.
+	 */
+	transient User owner;
+	
+	/**
+	 * One more than this photo's id in its owner's PhotoIndex, or 0 if it has none. Stored off by
+	 * one so that photos read by java serialization, which leaves transient fields at 0, start
+	 * out without an id.
+	 */
+	transient int indexId;
+	
+	/**
+	 * Canonical form of photoPath, or null if it hasn't been worked out yet.
+	 */
+	transient String canonicalPath;
+	
+	/**
+	 * The catalogue this photo was read from, or null if it wasn't read from one.
+	 */
+	transient Catalogue catalogue;
+	
+	/**
+	 * Index of this photo in its catalogue.
+	 */
+	transient int catalogueIndex;
+	
+	/**
+	 * Table this photo's tags are numbered in while it has no owner, or null if it has an owner or
+	 * hasn't needed one. Each unowned photo has its own, so strings used by photos that are never
+	 * added to a user, or that have since moved to their owner's table, aren't kept forever.
+	 */
+	private transient SymbolTable unownedSymbols;
+	
+	/**
+	 * @return The table this photo's tags are numbered in.
+	 */
+	private SymbolTable symbols() {
+		if (owner != null)
+			return owner.symbols();
+		if (unownedSymbols == null)
+			unownedSymbols = new SymbolTable();
+		return unownedSymbols;
+	}
+	
+	/**
+	 * Set the user this photo is stored in, moving its tags to that user's symbol table.
+	 * @param u The user.
+	 */
+	void setOwner(User u) {
+		if (u == owner)
+			return;
+		SymbolTable from = symbols();
+		owner = u;
+		SymbolTable to = symbols();
+		unownedSymbols = null;
+		if (from == to || tags.length == 0)
+			return;
+		int[] moved = new int[tags.length];
+		for (int i = 0; i < tags.length; i++) {
+			moved[i] = to.intern(from.get(tags[i]));
+		}
+		tags = moved;
+	}
+	
+	/**
+	 * @param key The number of a tag key.
+	 * @return The position of the key in tags, or -1 if this photo doesn't have it.
+	 */
+	private int indexOf(int key) {
+		for (int i = 0; i < tags.length; i += 2) {
+			if (tags[i] == key)
+				return i;
+		}
+		return -1;
+	}
+	
+	/**
+	 * @param key A tag key.
+	 * @return The position of the key in tags, or -1 if this photo doesn't have it.
+	 */
+	private int indexOf(String key) {
+		int k = symbols().find(key);
+		return k < 0 ? -1 : indexOf(k);
+	}
+	
+	/**
+	 * @return A set of all tag keys this photo has, in the order they were set.
 	 */
 	public Set<String> getTags() {
-		return tags.keySet();
+		SymbolTable symbols = symbols();
+		LinkedHashSet<String> keys = new LinkedHashSet<String>();
+		for (int i = 0; i < tags.length; i += 2) {
+			keys.add(symbols.get(tags[i]));
+		}
+		return keys;
+	}
+	
+	/**
+	 * @return The number of tags this photo has.
+	 */
+	int getTagCount() {
+		return tags.length / 2;
+	}
+	
+	/**
+	 * @param i The position of a tag, less than getTagCount.
+	 * @return The key of that tag.
+	 */
+	String getTagKey(int i) {
+		return symbols().get(tags[2 * i]);
+	}
+	
+	/**
+	 * @param i The position of a tag, less than getTagCount.
+	 * @return The value of that tag.
+	 */
+	String getTagValue(int i) {
+		return symbols().get(tags[2 * i + 1]);
 	}
 	
 	/**
@@ -57,7 +211,7 @@ public class Photo implements Serializable {
 	 * @return true if the photo a value for that tag.
 	 */
 	public boolean hasTag(String tag) {
-		return tags.containsKey(tag);
+		return indexOf(tag) >= 0;
 	}
 	
 	/**
@@ -67,7 +221,8 @@ public class Photo implements Serializable {
 	 * @return true if photo's tag key is value, false otherwise.
 	 */
 	public boolean isTaggedsAs(String key, String value) {
-		return hasTag(key) && tags.get(key).equals(value);
+		int i = indexOf(key);
+		return i >= 0 && tags[i + 1] == symbols().find(value);
 	}
 	
 	/**
@@ -76,7 +231,34 @@ public class Photo implements Serializable {
 	 * @param val
 	 */
 	public void setTag(String key, String val) {
-		tags.put(key, val);
+		SymbolTable symbols = symbols();
+		int k = symbols.intern(key);
+		int v = symbols.intern(val);
+		int i = indexOf(k);
+		String old = null;
+		if (i >= 0) {
+			old = symbols.get(tags[i + 1]);
+			tags[i + 1] = v;
+		} else {
+			tags = Arrays.copyOf(tags, tags.length + 2);
+			tags[tags.length - 2] = k;
+			tags[tags.length - 1] = v;
+		}
+		if (owner != null)
+			owner.tagChanged(this, key, old, val);
+		modified();
+	}
+	
+	/**
+	 * Set a tag read from storage, without telling the owner.
+	 * @param key The tag key.
+	 * @param val The tag value.
+	 */
+	void loadTag(String key, String val) {
+		SymbolTable symbols = symbols();
+		tags = Arrays.copyOf(tags, tags.length + 2);
+		tags[tags.length - 2] = symbols.intern(key);
+		tags[tags.length - 1] = symbols.intern(val);
 	}
 	
 	/**
@@ -84,7 +266,17 @@ public class Photo implements Serializable {
 	 * @param key
 	 */
 	public void removeTag(String key) {
-		tags.remove(key);
+		int i = indexOf(key);
+		if (i < 0)
+			return;
+		String old = symbols().get(tags[i + 1]);
+		int[] left = new int[tags.length - 2];
+		System.arraycopy(tags, 0, left, 0, i);
+		System.arraycopy(tags, i + 2, left, i, left.length - i);
+		tags = left.length == 0 ? NO_TAGS : left;
+		if (owner != null)
+			owner.tagChanged(this, key, old, null);
+		modified();
 	}
 	
 	/**
@@ -93,7 +285,8 @@ public class Photo implements Serializable {
 	 * @return The value of the given tag.
 	 */
 	public String getTagValue(String key) {
-		return tags.get(key);
+		int i = indexOf(key);
+		return i < 0 ? null : symbols().get(tags[i + 1]);
 	}
 	
 	/**
@@ -111,30 +304,107 @@ public class Photo implements Serializable {
 	 */
 	public void setCaption(String caption) {
 		this.caption = caption.equals("") ? null : caption;
+		modified();
+	}
+	
+	/**
+	 * @return Whether the perceptual hash of this photo's picture has been worked out.
+	 */
+	public boolean hasVisualHash() {
+		return hasVisualHash;
+	}
+	
+	/**
+	 * @return The perceptual hash of this photo's picture. Only valid if hasVisualHash returns true.
+	 */
+	public long getVisualHash() {
+		return visualHash;
+	}
+	
+	/**
+	 * Store the perceptual hash of this photo's picture, used to find similar photos.
+	 * @param hash The hash.
+	 */
+	public void setVisualHash(long hash) {
+		loadVisualHash(hash);
+		if (owner != null)
+			owner.visualHashChanged(this);
+		modified();
+	}
+	
+	/**
+	 * Set the perceptual hash read from storage, without marking the photo as changed.
+	 * @param hash The hash.
+	 */
+	void loadVisualHash(long hash) {
+		visualHash = hash;
+		hasVisualHash = true;
 	}
 	
+	/**
+	 * Tell the user this photo is stored in, and the catalogue it was read from, that it has changed.
+	 */
+	private void modified() {
+		if (catalogue != null)
+			catalogue.changed(this);
+		if (owner != null)
+			owner.modified();
+	}
+	
+	/**
+	 * Create a photo of a file. The date it was taken is read from the file's EXIF data if it has
+	 * any, otherwise the date the file was last changed is used.
+	 * @param path Path to the photo.
+	 */
 	public Photo(String path) {
 		File file = new File(path);
 		if (file.exists()) {
-			Date modDate = new Date(file.lastModified());
-			date = Calendar.getInstance();
-			date.setTime(modDate);
-			photoalbum.util.Services.setExtrasToZero(date);
-		} else {
-			
+			LocalDateTime taken = ImageMetadata.read(file).getDateTaken();
+			LocalDate date = taken != null ? taken.toLocalDate()
+					: Instant.ofEpochMilli(file.lastModified()).atZone(ZoneId.systemDefault()).toLocalDate();
+			day = (int)date.toEpochDay();
 		}
 		this.photoPath = path;
-		this.tags = new HashMap<String, String>();
 	}
 	
 	/**
-	 * @return A string in the format dd-mm-yyyy for the date this photo was taken.
+	 * Create a photo from stored data, without looking at the file it points to.
+	 * @param path Path to the photo.
+	 * @param day Day the photo was taken, as the number of days since 1970-01-01, or NO_DATE.
+	 * @param caption The photo's caption, or null if it has none.
+	 * @param owner The user the photo is stored in. Its tags are added with loadTag.
+	 */
+	Photo(String path, int day, String caption, User owner) {
+		this.photoPath = path;
+		this.day = day;
+		this.caption = caption;
+		this.owner = owner;
+	}
+	
+	/**
+	 * @return The caption exactly as stored, which is null if the photo has no caption.
+	 */
+	String getStoredCaption() {
+		return caption;
+	}
+	
+	/**
+	 * @return A string in the format dd-mm-yyyy for the date this photo was taken, or an empty
+	 * string if the date is unknown.
 	 */
 	public String getDateString() {
-		SimpleDateFormat d = new SimpleDateFormat("dd-MM-yyyy");
-		d.setTimeZone(date.getTimeZone());
-		d.setCalendar(date);
-		return d.format(date.getTime());
+		String s = dateString;
+		if (s == null)
+			dateString = s = formatDay(day);
+		return s;
+	}
+	
+	/**
+	 * @param day A day, as the number of days since 1970-01-01, or NO_DATE.
+	 * @return The day in the format dd-mm-yyyy, or an empty string for NO_DATE.
+	 */
+	static String formatDay(int day) {
+		return day == NO_DATE ? "" : LocalDate.ofEpochDay(day).format(DATE_FORMAT);
 	}
 	
 	/**
@@ -144,15 +414,62 @@ public class Photo implements Serializable {
 		return photoPath;
 	}
 	
+	/**
+	 * @return The canonical form of the photo path, used to find the photo in its owner's catalogue.
+	 * Worked out the first time it is asked for, which may ask the file system.
+	 */
+	public String getCanonicalPath() {
+		if (canonicalPath == null)
+			canonicalPath = canonicalize(photoPath);
+		return canonicalPath;
+	}
+	
+	/**
+	 * @param path A path to a file.
+	 * @return The canonical form of the path, or its absolute form if the file system can't be asked.
+	 */
+	static String canonicalize(String path) {
+		File file = new File(path);
+		try {
+			return file.getCanonicalPath();
+		} catch (IOException e) {
+			return file.getAbsolutePath();
+		}
+	}
+	
+	@Override
+	public boolean equals(Object o) {
+		return o == this || o instanceof Photo && getCanonicalPath().equals(((Photo)o).getCanonicalPath());
+	}
+	
+	@Override
+	public int hashCode() {
+		return getCanonicalPath().hashCode();
+	}
+	
 	/**
 	 * Load the image stored at photoPath and return it.
 	 * @return Image stored in the given file path.
 	 */
 	public Image getImage() {
-		try {
-			return new Image(new FileInputStream(photoPath));
+		return getImage(0, 0);
+	}
+	
+	/**
+	 * Load the image stored at photoPath, decoding it so that it fits within the given bounds.
+	 * Decoding at the requested size keeps only the scaled pixels in memory rather than the full
+	 * bitmap. A width or height of zero means that dimension is not constrained.
+	 * @param width The maximum width of the decoded image.
+	 * @param height The maximum height of the decoded image.
+	 * @return Image stored in the given file path, or null if the file could not be read.
+	 */
+	public Image getImage(double width, double height) {
+		try (FileInputStream in = new FileInputStream(photoPath)) {
+			return new Image(in, width, height, true, true);
 		} catch (FileNotFoundException e) {
 			return null;
+		} catch (IOException e) {
+			return null;
 		}
 	}
 	
@@ -163,8 +480,12 @@ public class Photo implements Serializable {
 	 */
 	private void writeObject(ObjectOutputStream out) throws IOException {
 		out.writeObject(photoPath);
-		out.writeObject(tags);
-		out.writeObject(date);
+		HashMap<String, String> map = new HashMap<String, String>();
+		for (int i = 0; i < getTagCount(); i++) {
+			map.put(getTagKey(i), getTagValue(i));
+		}
+		out.writeObject(map);
+		out.writeObject(day == NO_DATE ? null : UserCodec.fromEpochDay(day));
 		out.writeObject(caption);
 	}
 	
@@ -177,15 +498,27 @@ public class Photo implements Serializable {
 	@SuppressWarnings("unchecked")
 	private void readObject(java.io.ObjectInputStream in) throws IOException, ClassNotFoundException {
 		photoPath = (String)in.readObject();
-		tags = (HashMap<String, String>)in.readObject();
-		date = (Calendar)in.readObject();
+		tags = NO_TAGS; // numbered in this photo's own table until its album sets its owner
+		for (Map.Entry<String, String> e : ((HashMap<String, String>)in.readObject()).entrySet()) {
+			loadTag(e.getKey(), e.getValue());
+		}
+		Calendar date = (Calendar)in.readObject();
+		day = date == null ? NO_DATE : UserCodec.toEpochDay(date);
 		caption = (String)in.readObject();
 	}
 	
 	/**
-	 * @return The date this photo was taken.
+	 * @return The day this photo was taken, as the number of days since 1970-01-01, or NO_DATE
+	 * if it is unknown.
+	 */
+	public int getDay() {
+		return day;
+	}
+	
+	/**
+	 * @return The date this photo was taken, or null if it is unknown.
 	 */
-	public Calendar getDate() {
-		return date; 
+	public LocalDate getDate() {
+		return day == NO_DATE ? null : LocalDate.ofEpochDay(day);
 	}
 }
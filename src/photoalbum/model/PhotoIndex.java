@@ -0,0 +1,594 @@
+package photoalbum.model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PrimitiveIterator;
+import java.util.Set;
+import java.util.TreeMap;
+
+import photoalbum.util.BKTree;
+import photoalbum.util.IdBitmap;
+
+/**
+ * Indexes of a user's photos used for searching. Every photo in one of the user's albums gets a
+ * small integer id, and the index keeps compressed bitmaps of those ids: for each value of each
+ * tag key, for each day photos were taken, and for each album. Searches combine the bitmaps and
+ * only look up the photos in the result. The index counts how many of the user's albums hold each
+ * photo, so a photo keeps its id until it has been removed from the last of them, after which the
+ * id is given to the next new photo. The index also serves as the user's catalogue of photos by
+ * canonical path, so a file imported into a second album reuses the photo already stored.
+ * Photos with a visual hash are kept in a BK-tree for finding similar pictures.
+ * <p>
+ * Albums of a user loaded from a catalogue that haven't been opened are indexed straight from
+ * the record, without creating their photos. The index then only knows such a photo by its
+ * position in the catalogue, and reads it from there when a search returns it.
+ * @author Paul Warner & Kenny Zhang
+ *
+ */
+final class PhotoIndex {
+
+	/**
+	 * Photos tagged with each value of each key.
+	 */
+	private final HashMap<String, HashMap<String, IdBitmap>> tags = new HashMap<String, HashMap<String, IdBitmap>>();
+
+	/**
+	 * Photos taken on each day, by epoch day. Photos without a date are not in this index.
+	 */
+	private final TreeMap<Integer, IdBitmap> dates = new TreeMap<Integer, IdBitmap>();
+
+	/**
+	 * Photos in each album.
+	 */
+	private final IdentityHashMap<Album, IdBitmap> albums = new IdentityHashMap<Album, IdBitmap>();
+
+	/**
+	 * Every photo in the index, by id. Unused ids, and ids of photos only known by their position
+	 * in the catalogue, hold null.
+	 */
+	private final ArrayList<Photo> photos = new ArrayList<Photo>();
+
+	/**
+	 * The catalogue the user was loaded from, or null if there is none.
+	 */
+	private Catalogue catalogue;
+
+	/**
+	 * One more than the position in the catalogue of the photo with each id, or 0 for photos that
+	 * aren't in the catalogue.
+	 */
+	private int[] catalogueIds = new int[16];
+
+	/**
+	 * One more than the id of each photo in the catalogue, by position, or 0 for photos that
+	 * aren't in the index.
+	 */
+	private int[] indexIds = new int[0];
+
+	/**
+	 * Number of albums each photo is stored in, by id.
+	 */
+	private int[] albumCounts = new int[16];
+
+	/**
+	 * Ids of all photos in the index.
+	 */
+	private final IdBitmap all = new IdBitmap();
+
+	/**
+	 * Ids that were used by photos since removed, to be given out again first.
+	 */
+	private final IdBitmap free = new IdBitmap();
+	
+	/**
+	 * Ids of the photos in the index by canonical path, or null until the first lookup. Finding the
+	 * canonical paths of stored photos asks the file system, so searches that never import photos
+	 * skip it.
+	 */
+	private HashMap<String, Integer> paths;
+	
+	/**
+	 * Ids of the photos with a visual hash, by hash, or null until the next search for similar
+	 * photos. A BK-tree can't remove values, so it is dropped whenever a hashed photo comes or goes.
+	 */
+	private BKTree<Integer> similar;
+
+	/**
+	 * @param p A photo.
+	 * @return The photo's id in this index, or -1 if it isn't in it.
+	 */
+	int id(Photo p) {
+		int id = p.indexId - 1;
+		if (id < 0 || id >= photos.size())
+			return -1;
+		Photo stored = photos.get(id);
+		if (stored != null)
+			return stored == p ? id : -1;
+		return p.catalogue != null && p.catalogue == catalogue && catalogueIds[id] == p.catalogueIndex + 1 ? id : -1;
+	}
+
+	/**
+	 * Get a photo, reading it from the catalogue if the index only knows its position there.
+	 * @param id An id.
+	 * @return The photo with that id, or null if the id is not in use.
+	 */
+	Photo photo(int id) {
+		if (id >= photos.size())
+			return null;
+		Photo p = photos.get(id);
+		if (p == null && catalogueIds[id] > 0)
+			p = catalogue.photo(catalogueIds[id] - 1);
+		return p;
+	}
+
+	/**
+	 * @param id An id.
+	 * @return The photo with that id if it is in memory, otherwise null.
+	 */
+	private Photo loaded(int id) {
+		Photo p = photos.get(id);
+		if (p == null && catalogueIds[id] > 0)
+			p = catalogue.loaded(catalogueIds[id] - 1);
+		return p;
+	}
+
+	/**
+	 * Give a photo just read from the catalogue the id the index knows its position by.
+	 * @param p The photo.
+	 */
+	void photoRead(Photo p) {
+		if (p.catalogue != null && p.catalogue == catalogue && indexIds[p.catalogueIndex] > 0)
+			p.indexId = indexIds[p.catalogueIndex];
+	}
+
+	/**
+	 * @param canonicalPath The canonical path of a file.
+	 * @return The photo in the index pointing to that file, or null if there is none.
+	 */
+	Photo findByPath(String canonicalPath) {
+		if (paths == null) {
+			paths = new HashMap<String, Integer>();
+			PrimitiveIterator.OfInt it = all.iterator();
+			while (it.hasNext()) {
+				int id = it.nextInt();
+				Photo p = loaded(id);
+				String path = p != null ? p.getCanonicalPath()
+						: Photo.canonicalize(catalogue.readState(catalogueIds[id] - 1).path);
+				paths.putIfAbsent(path, id);
+			}
+		}
+		Integer id = paths.get(canonicalPath);
+		return id == null ? null : photo(id);
+	}
+
+	/**
+	 * Give out an id.
+	 * @param p The photo to hold under the id, or null if it is only known by its position in the catalogue.
+	 * @return The id.
+	 */
+	private int newId(Photo p) {
+		int id = free.first();
+		if (id < 0) {
+			id = photos.size();
+			photos.add(p);
+		} else {
+			free.remove(id);
+			photos.set(id, p);
+		}
+		if (id >= albumCounts.length) {
+			albumCounts = Arrays.copyOf(albumCounts, 2 * albumCounts.length);
+			catalogueIds = Arrays.copyOf(catalogueIds, albumCounts.length);
+		}
+		all.add(id);
+		return id;
+	}
+	
+	/**
+	 * Record that a photo was added to one of the user's albums.
+	 * @param a The album.
+	 * @param p The photo.
+	 */
+	void photoAdded(Album a, Photo p) {
+		int id = id(p);
+		boolean fromCatalogue = p.catalogue != null && p.catalogue == catalogue;
+		if (id < 0 && fromCatalogue && indexIds[p.catalogueIndex] > 0) { // known by its position
+			id = indexIds[p.catalogueIndex] - 1;
+			p.indexId = id + 1;
+		}
+		if (id < 0) {
+			id = newId(p);
+			p.indexId = id + 1;
+			if (fromCatalogue) {
+				catalogueIds[id] = p.catalogueIndex + 1;
+				indexIds[p.catalogueIndex] = id + 1;
+			}
+			for (int t = 0; t < p.getTagCount(); t++) {
+				add(id, p.getTagKey(t), p.getTagValue(t));
+			}
+			if (p.getDay() != Photo.NO_DATE)
+				dates.computeIfAbsent(p.getDay(), (d) -> new IdBitmap()).add(id);
+			if (paths != null)
+				paths.putIfAbsent(p.getCanonicalPath(), id);
+			if (p.hasVisualHash())
+				similar = null;
+		}
+		if (albums.computeIfAbsent(a, (x) -> new IdBitmap()).add(id))
+			albumCounts[id]++;
+	}
+
+	/**
+	 * Record that a photo of the catalogue is in an album that hasn't been opened, reading what is
+	 * indexed from the record without creating the photo.
+	 * @param a The album.
+	 * @param i The position of the photo in the catalogue.
+	 */
+	private void entryAdded(Album a, int i) {
+		int id = indexIds[i] - 1;
+		if (id < 0) {
+			UserCodec.PhotoState state = catalogue.readState(i);
+			id = newId(null);
+			catalogueIds[id] = i + 1;
+			indexIds[i] = id + 1;
+			for (int t = 0; t < state.tags.length; t += 2) {
+				add(id, state.tags[t], state.tags[t + 1]);
+			}
+			if (state.day != Photo.NO_DATE)
+				dates.computeIfAbsent(state.day, (d) -> new IdBitmap()).add(id);
+			if (paths != null)
+				paths.putIfAbsent(Photo.canonicalize(state.path), id);
+			if (state.hashed)
+				similar = null;
+		}
+		if (albums.computeIfAbsent(a, (x) -> new IdBitmap()).add(id))
+			albumCounts[id]++;
+	}
+
+	/**
+	 * Record that a photo was removed from one of the user's albums.
+	 * @param a The album.
+	 * @param p The photo.
+	 */
+	void photoRemoved(Album a, Photo p) {
+		int id = id(p);
+		IdBitmap album = albums.get(a);
+		if (id < 0 || album == null || !album.remove(id))
+			return;
+		if (--albumCounts[id] > 0)
+			return;
+		for (int t = 0; t < p.getTagCount(); t++) {
+			remove(id, p.getTagKey(t), p.getTagValue(t));
+		}
+		int day = p.getDay();
+		if (day != Photo.NO_DATE) {
+			IdBitmap ids = dates.get(day);
+			if (ids != null && ids.remove(id) && ids.isEmpty())
+				dates.remove(day);
+		}
+		if (paths != null)
+			paths.remove(p.getCanonicalPath(), id);
+		if (p.hasVisualHash())
+			similar = null;
+		all.remove(id);
+		photos.set(id, null);
+		if (catalogueIds[id] > 0) {
+			indexIds[catalogueIds[id] - 1] = 0;
+			catalogueIds[id] = 0;
+		}
+		free.add(id);
+		p.indexId = 0;
+	}
+
+	/**
+	 * Record that an album was removed from the user, along with all of its photos.
+	 * @param a The album.
+	 */
+	void albumRemoved(Album a) {
+		for (Photo p : a.photos()) {
+			photoRemoved(a, p);
+		}
+		albums.remove(a);
+	}
+
+	/**
+	 * Record that a tag on a photo changed.
+	 * @param p The photo.
+	 * @param key The tag key.
+	 * @param oldValue The value before the change, or null if the photo didn't have the tag.
+	 * @param newValue The value after the change, or null if the tag was removed.
+	 */
+	void tagChanged(Photo p, String key, String oldValue, String newValue) {
+		int id = id(p);
+		if (id < 0)
+			return;
+		if (oldValue != null)
+			remove(id, key, oldValue);
+		if (newValue != null)
+			add(id, key, newValue);
+	}
+
+	/**
+	 * Record that the visual hash of a photo changed.
+	 * @param p The photo.
+	 */
+	void visualHashChanged(Photo p) {
+		if (id(p) >= 0)
+			similar = null;
+	}
+	
+	/**
+	 * Find photos whose visual hash is close to the given one. Photos that haven't been hashed
+	 * are left out.
+	 * @param hash A visual hash.
+	 * @param maxDistance The largest number of bits that may differ.
+	 * @return The photos found, closest first.
+	 */
+	List<Photo> findSimilar(long hash, int maxDistance) {
+		if (similar == null) {
+			similar = new BKTree<Integer>();
+			PrimitiveIterator.OfInt it = all.iterator();
+			while (it.hasNext()) {
+				int id = it.nextInt();
+				Photo p = loaded(id);
+				if (p != null) {
+					if (p.hasVisualHash())
+						similar.add(p.getVisualHash(), id);
+					continue;
+				}
+				UserCodec.PhotoState state = catalogue.readState(catalogueIds[id] - 1);
+				if (state.hashed)
+					similar.add(state.hash, id);
+			}
+		}
+		List<Photo> found = new ArrayList<Photo>();
+		for (int id : similar.find(hash, maxDistance)) {
+			found.add(photo(id));
+		}
+		return found;
+	}
+	
+	/**
+	 * @return All tag keys in use.
+	 */
+	Set<String> keys() {
+		return Collections.unmodifiableSet(tags.keySet());
+	}
+
+	/**
+	 * @param a An album.
+	 * @return All tag keys in use on photos in the album.
+	 */
+	Set<String> keys(Album a) {
+		HashSet<String> keys = new HashSet<String>();
+		IdBitmap ids = albums.get(a);
+		if (ids == null)
+			return keys;
+		for (Map.Entry<String, HashMap<String, IdBitmap>> e : tags.entrySet()) {
+			for (IdBitmap values : e.getValue().values()) {
+				if (!IdBitmap.and(ids, values).isEmpty()) {
+					keys.add(e.getKey());
+					break;
+				}
+			}
+		}
+		return keys;
+	}
+
+	/**
+	 * @param key A tag key.
+	 * @return All values the key has on some photo.
+	 */
+	Set<String> values(String key) {
+		HashMap<String, IdBitmap> values = tags.get(key);
+		return values == null ? Collections.<String>emptySet() : Collections.unmodifiableSet(values.keySet());
+	}
+
+	/**
+	 * @return Ids of every photo in the index. Must not be changed.
+	 */
+	IdBitmap all() {
+		return all;
+	}
+
+	/**
+	 * @param key A tag key.
+	 * @return Ids of all photos with that tag, whatever its value.
+	 */
+	IdBitmap find(String key) {
+		IdBitmap result = new IdBitmap();
+		HashMap<String, IdBitmap> values = tags.get(key);
+		if (values != null) {
+			for (IdBitmap ids : values.values()) {
+				result = IdBitmap.or(result, ids);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @param key A tag key.
+	 * @param value A tag value.
+	 * @return Ids of all photos tagged with that key and value.
+	 */
+	IdBitmap find(String key, String value) {
+		HashMap<String, IdBitmap> values = tags.get(key);
+		IdBitmap ids = values == null ? null : values.get(value);
+		return ids == null ? new IdBitmap() : ids.copy();
+	}
+
+	/**
+	 * @param a An album.
+	 * @return Ids of all photos in the album.
+	 */
+	IdBitmap find(Album a) {
+		IdBitmap ids = albums.get(a);
+		return ids == null ? new IdBitmap() : ids.copy();
+	}
+
+	/**
+	 * @param a An album.
+	 * @param p A photo.
+	 * @return True if the photo is in the album.
+	 */
+	boolean contains(Album a, Photo p) {
+		IdBitmap ids = albums.get(a);
+		return ids != null && ids.contains(id(p));
+	}
+
+	/**
+	 * @param key A tag key.
+	 * @return Number of photos with that tag, whatever its value.
+	 */
+	int count(String key) {
+		HashMap<String, IdBitmap> values = tags.get(key);
+		int count = 0;
+		if (values != null) {
+			for (IdBitmap ids : values.values()) {
+				count += ids.cardinality();
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * @param key A tag key.
+	 * @param value A tag value.
+	 * @return Number of photos tagged with that key and value.
+	 */
+	int count(String key, String value) {
+		HashMap<String, IdBitmap> values = tags.get(key);
+		IdBitmap ids = values == null ? null : values.get(value);
+		return ids == null ? 0 : ids.cardinality();
+	}
+
+	/**
+	 * @param from The first day, as an epoch day.
+	 * @param to The last day, as an epoch day.
+	 * @return Number of photos taken on or between those days.
+	 */
+	int countBetween(int from, int to) {
+		int count = 0;
+		if (from <= to) {
+			for (IdBitmap ids : dates.subMap(from, true, to, true).values()) {
+				count += ids.cardinality();
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * @param from The first day, as an epoch day.
+	 * @param to The last day, as an epoch day.
+	 * @return Ids of all photos taken on or between those days.
+	 */
+	IdBitmap findBetween(int from, int to) {
+		IdBitmap result = new IdBitmap();
+		if (from <= to) {
+			for (IdBitmap ids : dates.subMap(from, true, to, true).values()) {
+				result = IdBitmap.or(result, ids);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Find all photos taken within a range of days, in the order they were taken.
+	 * @param from The first day, as an epoch day.
+	 * @param to The last day, as an epoch day.
+	 * @return All photos taken on or between those days, oldest first.
+	 */
+	Set<Photo> findBetweenInOrder(int from, int to) {
+		LinkedHashSet<Photo> result = new LinkedHashSet<Photo>();
+		if (from <= to) {
+			for (IdBitmap ids : dates.subMap(from, true, to, true).values()) {
+				PrimitiveIterator.OfInt it = ids.iterator();
+				while (it.hasNext()) {
+					result.add(photo(it.nextInt()));
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Add a photo under a single key and value.
+	 * @param id The photo's id.
+	 * @param key The tag key.
+	 * @param value The tag value.
+	 */
+	private void add(int id, String key, String value) {
+		tags.computeIfAbsent(key, (k) -> new HashMap<String, IdBitmap>())
+				.computeIfAbsent(value, (v) -> new IdBitmap()).add(id);
+	}
+
+	/**
+	 * Remove a photo from under a single key and value, dropping keys and values no photo has any more.
+	 * @param id The photo's id.
+	 * @param key The tag key.
+	 * @param value The tag value.
+	 */
+	private void remove(int id, String key, String value) {
+		HashMap<String, IdBitmap> values = tags.get(key);
+		if (values == null)
+			return;
+		IdBitmap ids = values.get(value);
+		if (ids == null)
+			return;
+		ids.remove(id);
+		if (ids.isEmpty()) {
+			values.remove(value);
+			if (values.isEmpty())
+				tags.remove(key);
+		}
+	}
+
+	/**
+	 * Build an index of all photos in the given albums. Albums that haven't been opened are
+	 * indexed from their catalogue without creating their photos, though photos already in
+	 * memory are used as they are, since they may have changed.
+	 * @param albums The albums of a user.
+	 * @return The index.
+	 */
+	static PhotoIndex build(Iterable<Album> albums) {
+		PhotoIndex index = new PhotoIndex();
+		for (Album a : albums) {
+			if (a.catalogue != null) {
+				index.catalogue = a.catalogue;
+				index.indexIds = new int[a.catalogue.photoCount()];
+				break;
+			}
+		}
+		for (Album a : albums) {
+			if (a.photos != null || a.catalogue == null || a.catalogue != index.catalogue) {
+				for (Photo p : a.photos()) {
+					index.photoAdded(a, p);
+				}
+				continue;
+			}
+			for (int i : a.catalogue.albumPhotoIndices(a.catalogueIndex)) {
+				Photo p = a.catalogue.loaded(i);
+				if (p != null)
+					index.photoAdded(a, p);
+				else
+					index.entryAdded(a, i);
+			}
+		}
+		return index;
+	}
+
+	@Override
+	public String toString() {
+		int values = 0;
+		for (Map<String, IdBitmap> v : tags.values()) {
+			values += v.size();
+		}
+		return "PhotoIndex[" + all.cardinality() + " photos, " + tags.size() + " keys, " + values + " values, "
+				+ dates.size() + " days, " + albums.size() + " albums]";
+	}
+}
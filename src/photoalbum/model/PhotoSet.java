@@ -0,0 +1,128 @@
+package photoalbum.model;
+
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+
+import photoalbum.util.IdBitmap;
+
+/**
+ * A set of a user's photos found through the user's index, as returned by searches. The photos
+ * are looked up once when the set is made and kept with their ids, so checking whether a photo is
+ * in the set only looks at the one photo. The set is a snapshot of a search: photos removed from
+ * every one of the user's albums afterwards are left out, both when iterating and when counting,
+ * and since ids are given out again, a photo added later under an old id is never mistaken for
+ * the one found.
+ * @author Paul Warner & Kenny Zhang
+ *
+ */
+public class PhotoSet extends AbstractSet<Photo> {
+
+	/**
+	 * The index the ids belong to.
+	 */
+	private final PhotoIndex index;
+
+	/**
+	 * Ids of the photos in this set, in increasing order.
+	 */
+	private final int[] ids;
+
+	/**
+	 * The photo each id belonged to when the set was made.
+	 */
+	private final Photo[] photos;
+
+	/**
+	 * @param index The index the ids belong to.
+	 * @param ids Ids of the photos in the set.
+	 */
+	PhotoSet(PhotoIndex index, IdBitmap ids) {
+		this.index = index;
+		this.ids = new int[ids.cardinality()];
+		this.photos = new Photo[this.ids.length];
+		int n = 0;
+		PrimitiveIterator.OfInt it = ids.iterator();
+		while (it.hasNext()) {
+			int id = it.nextInt();
+			this.ids[n] = id;
+			this.photos[n++] = index.photo(id);
+		}
+	}
+
+	/**
+	 * @return The number of photos found that are still in one of the user's albums. Counted
+	 * each time, since photos may have been removed since the search.
+	 */
+	@Override
+	public int size() {
+		int size = 0;
+		for (int i = 0; i < ids.length; i++) {
+			if (live(i))
+				size++;
+		}
+		return size;
+	}
+
+	@Override
+	public boolean isEmpty() {
+		for (int i = 0; i < ids.length; i++) {
+			if (live(i))
+				return false;
+		}
+		return true;
+	}
+
+	@Override
+	public boolean contains(Object o) {
+		if (!(o instanceof Photo))
+			return false;
+		int i = Arrays.binarySearch(ids, index.id((Photo)o));
+		return i >= 0 && photos[i] == o;
+	}
+
+	/**
+	 * @param i A position in the set.
+	 * @return Whether the photo found at that position is still in the index under the same id.
+	 */
+	private boolean live(int i) {
+		return photos[i] != null && index.id(photos[i]) == ids[i];
+	}
+
+	@Override
+	public Iterator<Photo> iterator() {
+		return new Iterator<Photo>() {
+			/**
+			 * Position in the set of the photo returned by the next call to next.
+			 */
+			private int next = advance(0);
+
+			/**
+			 * @param from A position in the set.
+			 * @return The first position from there whose photo is still in the index under the same id.
+			 */
+			private int advance(int from) {
+				while (from < ids.length && !live(from)) {
+					from++;
+				}
+				return from;
+			}
+
+			@Override
+			public boolean hasNext() {
+				return next < ids.length;
+			}
+
+			@Override
+			public Photo next() {
+				if (next >= ids.length)
+					throw new NoSuchElementException();
+				Photo p = photos[next];
+				next = advance(next + 1);
+				return p;
+			}
+		};
+	}
+}
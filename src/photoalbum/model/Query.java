@@ -0,0 +1,523 @@
+package photoalbum.model;
+
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.PrimitiveIterator;
+
+import photoalbum.util.IdBitmap;
+
+/**
+ * A search over a user's photos, built from tag, caption, date and album conditions combined with
+ * and, or and not. Queries are run with User.search. Every condition except a caption search can
+ * be answered from the user's index as a bitmap of photo ids, so most queries are answered with
+ * bitmap operations alone, starting from the most selective condition of an and. Caption
+ * conditions are checked against the photos the rest of the query finds, or against every photo
+ * if nothing else narrows the search down.
+ * <p>
+ * Queries can also be parsed from text, for example
+ * <pre>
+ * person=Jon and (location=Westeros or location="King's Landing") and not caption:sad
+ * has:location date:2015-01-01..2015-12-31 album:Holidays
+ * </pre>
+ * Conditions next to each other without an operator are combined with and.
+ * @author Paul Warner & Kenny Zhang
+ *
+ */
+public abstract class Query {
+
+	/**
+	 * Estimate of a condition that cannot be answered from an index.
+	 */
+	static final int UNINDEXED = Integer.MAX_VALUE;
+
+	/**
+	 * Check a single photo against this query.
+	 * @param u The user the photo belongs to.
+	 * @param index The user's index.
+	 * @param p The photo.
+	 * @return True if the photo matches.
+	 */
+	abstract boolean matches(User u, PhotoIndex index, Photo p);
+
+	/**
+	 * @param u The user being searched.
+	 * @param index The user's index.
+	 * @return How many photos find would return, or UNINDEXED if find cannot use the index.
+	 */
+	int estimate(User u, PhotoIndex index) {
+		return UNINDEXED;
+	}
+
+	/**
+	 * Find all matching photos using the index.
+	 * @param u The user being searched.
+	 * @param index The user's index.
+	 * @return Ids of the matching photos, or null if this query cannot be answered from the index.
+	 */
+	IdBitmap find(User u, PhotoIndex index) {
+		return null;
+	}
+
+	/**
+	 * @param key A tag key.
+	 * @param value A tag value.
+	 * @return A query for photos with the tag set to the value.
+	 */
+	public static Query tag(String key, String value) {
+		return new Query() {
+			@Override
+			boolean matches(User u, PhotoIndex index, Photo p) {
+				return p.isTaggedsAs(key, value);
+			}
+
+			@Override
+			int estimate(User u, PhotoIndex index) {
+				return index.count(key, value);
+			}
+
+			@Override
+			IdBitmap find(User u, PhotoIndex index) {
+				return index.find(key, value);
+			}
+		};
+	}
+
+	/**
+	 * @param key A tag key.
+	 * @return A query for photos with the tag, whatever its value.
+	 */
+	public static Query hasTag(String key) {
+		return new Query() {
+			@Override
+			boolean matches(User u, PhotoIndex index, Photo p) {
+				return p.hasTag(key);
+			}
+
+			@Override
+			int estimate(User u, PhotoIndex index) {
+				return index.count(key);
+			}
+
+			@Override
+			IdBitmap find(User u, PhotoIndex index) {
+				return index.find(key);
+			}
+		};
+	}
+
+	/**
+	 * @param text Text to look for, ignoring case.
+	 * @return A query for photos whose caption contains the text.
+	 */
+	public static Query caption(String text) {
+		String lower = text.toLowerCase(Locale.ROOT);
+		return new Query() {
+			@Override
+			boolean matches(User u, PhotoIndex index, Photo p) {
+				String caption = p.getStoredCaption();
+				return caption != null && caption.toLowerCase(Locale.ROOT).contains(lower);
+			}
+		};
+	}
+
+	/**
+	 * @param from The first day.
+	 * @param to The last day.
+	 * @return A query for photos taken on or between the two days.
+	 */
+	public static Query date(LocalDate from, LocalDate to) {
+		int first = (int)from.toEpochDay();
+		int last = (int)to.toEpochDay();
+		return new Query() {
+			@Override
+			boolean matches(User u, PhotoIndex index, Photo p) {
+				int day = p.getDay();
+				return day != Photo.NO_DATE && day >= first && day <= last;
+			}
+
+			@Override
+			int estimate(User u, PhotoIndex index) {
+				return index.countBetween(first, last);
+			}
+
+			@Override
+			IdBitmap find(User u, PhotoIndex index) {
+				return index.findBetween(first, last);
+			}
+		};
+	}
+
+	/**
+	 * @param albumName The name of one of the user's albums.
+	 * @return A query for photos in that album.
+	 */
+	public static Query album(String albumName) {
+		return new Query() {
+			@Override
+			boolean matches(User u, PhotoIndex index, Photo p) {
+				Album a = u.getAlbum(albumName);
+				return a != null && index.contains(a, p);
+			}
+
+			@Override
+			int estimate(User u, PhotoIndex index) {
+				Album a = u.getAlbum(albumName);
+				return a == null ? 0 : a.getPhotoCount();
+			}
+
+			@Override
+			IdBitmap find(User u, PhotoIndex index) {
+				Album a = u.getAlbum(albumName);
+				return a == null ? new IdBitmap() : index.find(a);
+			}
+		};
+	}
+
+	/**
+	 * @param queries The queries to combine.
+	 * @return A query for photos matching all of the queries.
+	 */
+	public static Query and(Query... queries) {
+		List<Query> all = Arrays.asList(queries);
+		return new Query() {
+			@Override
+			boolean matches(User u, PhotoIndex index, Photo p) {
+				for (Query q : all) {
+					if (!q.matches(u, index, p))
+						return false;
+				}
+				return true;
+			}
+
+			@Override
+			int estimate(User u, PhotoIndex index) {
+				int min = UNINDEXED;
+				for (Query q : all) {
+					min = Math.min(min, q.estimate(u, index));
+				}
+				return min;
+			}
+
+			@Override
+			IdBitmap find(User u, PhotoIndex index) {
+				ArrayList<Query> indexed = new ArrayList<Query>();
+				HashMap<Query, Integer> estimates = new HashMap<Query, Integer>();
+				for (Query q : all) {
+					int estimate = q.estimate(u, index);
+					if (estimate != UNINDEXED) {
+						indexed.add(q);
+						estimates.put(q, estimate);
+					}
+				}
+				if (indexed.isEmpty())
+					return null;
+				indexed.sort(Comparator.comparing(estimates::get));
+				IdBitmap result = indexed.get(0).find(u, index);
+				for (int i = 1; i < indexed.size() && !result.isEmpty(); i++) {
+					result = IdBitmap.and(result, indexed.get(i).find(u, index));
+				}
+				for (Query q : all) {
+					if (!estimates.containsKey(q))
+						result = filter(result, q, u, index);
+				}
+				return result;
+			}
+		};
+	}
+
+	/**
+	 * @param queries The queries to combine.
+	 * @return A query for photos matching any of the queries.
+	 */
+	public static Query or(Query... queries) {
+		List<Query> all = Arrays.asList(queries);
+		return new Query() {
+			@Override
+			boolean matches(User u, PhotoIndex index, Photo p) {
+				for (Query q : all) {
+					if (q.matches(u, index, p))
+						return true;
+				}
+				return false;
+			}
+
+			@Override
+			int estimate(User u, PhotoIndex index) {
+				long sum = 0;
+				for (Query q : all) {
+					int estimate = q.estimate(u, index);
+					if (estimate == UNINDEXED)
+						return UNINDEXED;
+					sum += estimate;
+				}
+				return (int)Math.min(sum, UNINDEXED - 1);
+			}
+
+			@Override
+			IdBitmap find(User u, PhotoIndex index) {
+				IdBitmap result = new IdBitmap();
+				for (Query q : all) {
+					IdBitmap ids = q.find(u, index);
+					if (ids == null)
+						return null;
+					result = IdBitmap.or(result, ids);
+				}
+				return result;
+			}
+		};
+	}
+
+	/**
+	 * @param query The query to negate.
+	 * @return A query for photos not matching the query.
+	 */
+	public static Query not(Query query) {
+		return new Query() {
+			@Override
+			boolean matches(User u, PhotoIndex index, Photo p) {
+				return !query.matches(u, index, p);
+			}
+
+			@Override
+			int estimate(User u, PhotoIndex index) {
+				int estimate = query.estimate(u, index);
+				return estimate == UNINDEXED ? UNINDEXED : Math.max(0, index.all().cardinality() - estimate);
+			}
+
+			@Override
+			IdBitmap find(User u, PhotoIndex index) {
+				IdBitmap ids = query.find(u, index);
+				return ids == null ? null : IdBitmap.andNot(index.all(), ids);
+			}
+		};
+	}
+
+	/**
+	 * Keep only the photos matching a query.
+	 * @param ids Ids of the photos to check.
+	 * @param q The query.
+	 * @param u The user being searched.
+	 * @param index The user's index.
+	 * @return Ids of the photos that match.
+	 */
+	static IdBitmap filter(IdBitmap ids, Query q, User u, PhotoIndex index) {
+		IdBitmap result = new IdBitmap();
+		PrimitiveIterator.OfInt it = ids.iterator();
+		while (it.hasNext()) {
+			int id = it.nextInt();
+			Photo p = index.photo(id);
+			if (p != null && q.matches(u, index, p))
+				result.add(id);
+		}
+		return result;
+	}
+
+	/**
+	 * Parse a query from text. Conditions are key=value, has:key, caption:text, album:name and
+	 * date:yyyy-mm-dd or date:yyyy-mm-dd..yyyy-mm-dd, combined with and, or, not and parentheses.
+	 * Keys and values containing spaces or symbols can be put in double quotes.
+	 * @param text The query text.
+	 * @return The parsed query.
+	 * @throws IllegalArgumentException If the text is not a valid query. The message says what is wrong.
+	 */
+	public static Query parse(String text) {
+		return new Parser(text).parse();
+	}
+
+	/**
+	 * Recursive descent parser for query text.
+	 */
+	private static class Parser {
+		/**
+		 * The text being parsed.
+		 */
+		private final String text;
+
+		/**
+		 * Index of the next character to read.
+		 */
+		private int pos;
+
+		Parser(String text) {
+			this.text = text;
+		}
+
+		/**
+		 * @return The query the whole text describes.
+		 */
+		Query parse() {
+			skipSpace();
+			if (pos == text.length())
+				throw new IllegalArgumentException("Please enter something to search for");
+			Query q = parseOr();
+			if (pos < text.length())
+				throw new IllegalArgumentException("Unexpected '" + text.charAt(pos) + "' at position " + (pos + 1));
+			return q;
+		}
+
+		/**
+		 * @return Conditions joined by or.
+		 */
+		private Query parseOr() {
+			Query q = parseAnd();
+			while (acceptWord("or")) {
+				q = or(q, parseAnd());
+			}
+			return q;
+		}
+
+		/**
+		 * @return Conditions joined by and, or simply written next to each other.
+		 */
+		private Query parseAnd() {
+			Query q = parseNot();
+			while (pos < text.length() && text.charAt(pos) != ')' && !peekWord("or")) {
+				acceptWord("and");
+				q = and(q, parseNot());
+			}
+			return q;
+		}
+
+		/**
+		 * @return A single condition, a negated one, or a parenthesized query.
+		 */
+		private Query parseNot() {
+			if (acceptWord("not"))
+				return not(parseNot());
+			if (accept('(')) {
+				Query q = parseOr();
+				if (!accept(')'))
+					throw new IllegalArgumentException("Missing ')'");
+				return q;
+			}
+			return parseCondition();
+		}
+
+		/**
+		 * @return A single condition.
+		 */
+		private Query parseCondition() {
+			int start = pos;
+			String word = readText();
+			if (accept('='))
+				return tag(word, readText());
+			if (!accept(':'))
+				throw new IllegalArgumentException("Expected key=value or field:value at position " + (start + 1));
+			String value = readText();
+			switch (word.toLowerCase(Locale.ROOT)) {
+			case "has":
+				return hasTag(value);
+			case "caption":
+				return caption(value);
+			case "album":
+				return album(value);
+			case "date":
+				return parseDate(value);
+			default:
+				throw new IllegalArgumentException("Unknown field '" + word + "', use has, caption, album or date");
+			}
+		}
+
+		/**
+		 * @param value A single date or two dates separated by "..".
+		 * @return A date query.
+		 */
+		private Query parseDate(String value) {
+			int split = value.indexOf("..");
+			try {
+				LocalDate from = LocalDate.parse(split < 0 ? value : value.substring(0, split));
+				LocalDate to = split < 0 ? from : LocalDate.parse(value.substring(split + 2));
+				if (from.isAfter(to))
+					throw new IllegalArgumentException("Please enter a start date that is before the end date");
+				return date(from, to);
+			} catch (DateTimeParseException e) {
+				throw new IllegalArgumentException("Dates must be written as yyyy-mm-dd, e.g. 2016-01-24");
+			}
+		}
+
+		/**
+		 * Read a word or a quoted string.
+		 * @return The text read, without quotes.
+		 */
+		private String readText() {
+			if (accept('"')) {
+				int end = text.indexOf('"', pos);
+				if (end < 0)
+					throw new IllegalArgumentException("Missing closing '\"'");
+				String s = text.substring(pos, end);
+				pos = end + 1;
+				skipSpace();
+				return s;
+			}
+			int start = pos;
+			while (pos < text.length() && !isDelimiter(text.charAt(pos))) {
+				pos++;
+			}
+			if (start == pos)
+				throw new IllegalArgumentException("Expected a word at position " + (start + 1));
+			String s = text.substring(start, pos);
+			skipSpace();
+			return s;
+		}
+
+		/**
+		 * @param word A keyword.
+		 * @return True if the next word is the keyword, ignoring case.
+		 */
+		private boolean peekWord(String word) {
+			int end = pos + word.length();
+			return text.regionMatches(true, pos, word, 0, word.length())
+					&& (end == text.length() || Character.isWhitespace(text.charAt(end)) || text.charAt(end) == '(');
+		}
+
+		/**
+		 * Skip the next word if it is the keyword.
+		 * @param word A keyword.
+		 * @return True if it was skipped.
+		 */
+		private boolean acceptWord(String word) {
+			if (!peekWord(word))
+				return false;
+			pos += word.length();
+			skipSpace();
+			return true;
+		}
+
+		/**
+		 * Skip the next character if it is c.
+		 * @param c A character.
+		 * @return True if it was skipped.
+		 */
+		private boolean accept(char c) {
+			if (pos < text.length() && text.charAt(pos) == c) {
+				pos++;
+				skipSpace();
+				return true;
+			}
+			return false;
+		}
+
+		/**
+		 * Move past any whitespace.
+		 */
+		private void skipSpace() {
+			while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) {
+				pos++;
+			}
+		}
+
+		/**
+		 * @param c A character.
+		 * @return True if c ends an unquoted word.
+		 */
+		private static boolean isDelimiter(char c) {
+			return Character.isWhitespace(c) || c == '(' || c == ')' || c == '=' || c == ':' || c == '"';
+		}
+	}
+}
@@ -0,0 +1,77 @@
+package photoalbum.model;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Gives every distinct tag key and value used by a user a small number, so that photos can store
+ * their tags as pairs of ints instead of each holding its own map of strings. Each string is
+ * kept once no matter how many photos use it, and two tags are equal exactly when their numbers
+ * are. Numbers are never reused; the table is rebuilt from scratch each time the user is loaded.
+ * A photo that hasn't been added to a user yet numbers its tags in a small table of its own.
+ * @author Paul Warner & Kenny Zhang
+ *
+ */
+final class SymbolTable {
+
+	/**
+	 * Number of each string in the table.
+	 */
+	private final HashMap<String, Integer> ids = new HashMap<String, Integer>();
+
+	/**
+	 * Every string in the table, by number.
+	 */
+	private String[] strings = new String[16];
+
+	/**
+	 * Number of strings in the table.
+	 */
+	private int size;
+
+	/**
+	 * Get the number of a string, adding it to the table if it isn't there yet.
+	 * @param s A string.
+	 * @return The number of the string.
+	 */
+	synchronized int intern(String s) {
+		Integer id = ids.get(s);
+		if (id != null)
+			return id;
+		if (size == strings.length)
+			strings = Arrays.copyOf(strings, 2 * size);
+		strings[size] = s;
+		ids.put(s, size);
+		return size++;
+	}
+
+	/**
+	 * Get the number of a string without adding it.
+	 * @param s A string.
+	 * @return The number of the string, or -1 if it isn't in the table.
+	 */
+	synchronized int find(String s) {
+		Integer id = ids.get(s);
+		return id == null ? -1 : id;
+	}
+
+	/**
+	 * @param id The number of a string in the table.
+	 * @return The string.
+	 */
+	synchronized String get(int id) {
+		return strings[id];
+	}
+
+	/**
+	 * @return The number of strings in the table.
+	 */
+	synchronized int size() {
+		return size;
+	}
+
+	@Override
+	public String toString() {
+		return "SymbolTable[" + size() + " strings]";
+	}
+}
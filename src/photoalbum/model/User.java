@@ -3,12 +3,15 @@ package photoalbum.model;
 import java.io.IOException;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
-import java.util.Calendar;
-import java.util.Date;
+import java.time.LocalDate;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Set;
 
+import photoalbum.util.IdBitmap;
+
 /**
  * Represents a single user in this program. A user is uniquely identified by the program
  * by his username, case sensitive. Each user contains zero or more albums that hold photos.
@@ -26,6 +29,27 @@ public class User implements Serializable {
 	 * All albums this user has stored according to their albumName.
 	 */
 	private HashMap<String, Album> albums;
+	
+	/**
+	 * Number of changes made to this user, its albums and its photos since it was created or loaded.
+	 * Used to tell whether the user needs to be saved again.
+	 */
+	private transient int modCount;
+	
+	/**
+	 * Run after every change to this user, its albums or its photos, or null.
+	 */
+	private transient Runnable onChange;
+	
+	/**
+	 * Index of the tags and dates of this user's photos, built the first time it is needed.
+	 */
+	private transient PhotoIndex photoIndex;
+	
+	/**
+	 * Numbers of the tag keys and values used by this user's photos, made the first time it is needed.
+	 */
+	private transient SymbolTable symbols;
 
 	@Override
 	public String toString() {
@@ -68,6 +92,116 @@ public class User implements Serializable {
 	private void readObject(java.io.ObjectInputStream in) throws IOException, ClassNotFoundException {
 		username = (String)in.readObject();
 		albums = (HashMap<String, Album>)in.readObject();
+		for (Album a : albums.values()) {
+			a.setOwner(this);
+		}
+	}
+	
+	/**
+	 * Record that this user, one of its albums or one of its photos has changed.
+	 */
+	void modified() {
+		modCount++;
+		if (onChange != null)
+			onChange.run();
+	}
+	
+	/**
+	 * @param onChange Run after every change to this user, its albums or its photos, such as to
+	 * schedule a save. May be null.
+	 */
+	public void setOnChange(Runnable onChange) {
+		this.onChange = onChange;
+	}
+	
+	/**
+	 * @return The number of changes made to this user since it was created or loaded. Two equal
+	 * values from the same User object mean nothing has changed in between.
+	 */
+	public int getModCount() {
+		return modCount;
+	}
+	
+	/**
+	 * @return The table this user's photos number their tags in.
+	 */
+	SymbolTable symbols() {
+		if (symbols == null)
+			symbols = new SymbolTable();
+		return symbols;
+	}
+	
+	/**
+	 * @return The index of this user's photos, building it if this is the first time it is needed.
+	 * Building it reads the records of every photo of the user, but only creates the photos of
+	 * albums that have been opened.
+	 */
+	private PhotoIndex photoIndex() {
+		if (photoIndex == null)
+			photoIndex = PhotoIndex.build(albums.values());
+		return photoIndex;
+	}
+	
+	/**
+	 * Record that a photo was read from this user's catalogue, giving it its id if it is in the index.
+	 * @param p The photo.
+	 */
+	void photoRead(Photo p) {
+		if (photoIndex != null)
+			photoIndex.photoRead(p);
+	}
+	
+	/**
+	 * Get the tag keys used in an album whose photos haven't been read, from the index if it has
+	 * been built, otherwise from the catalogue.
+	 * @param a The album.
+	 * @return All unique tag keys on photos in the album.
+	 */
+	Set<String> albumTags(Album a) {
+		if (photoIndex != null)
+			return photoIndex.keys(a);
+		return a.catalogue.albumTags(a.catalogueIndex);
+	}
+	
+	/**
+	 * Record that a photo was added to one of this user's albums.
+	 * @param a The album.
+	 * @param p The photo.
+	 */
+	void photoAdded(Album a, Photo p) {
+		if (photoIndex != null)
+			photoIndex.photoAdded(a, p);
+	}
+	
+	/**
+	 * Record that a photo was removed from one of this user's albums.
+	 * @param a The album.
+	 * @param p The photo.
+	 */
+	void photoRemoved(Album a, Photo p) {
+		if (photoIndex != null)
+			photoIndex.photoRemoved(a, p);
+	}
+	
+	/**
+	 * Record that a tag on one of this user's photos changed.
+	 * @param p The photo.
+	 * @param key The tag key.
+	 * @param oldValue The value before the change, or null if the photo didn't have the tag.
+	 * @param newValue The value after the change, or null if the tag was removed.
+	 */
+	void tagChanged(Photo p, String key, String oldValue, String newValue) {
+		if (photoIndex != null)
+			photoIndex.tagChanged(p, key, oldValue, newValue);
+	}
+	
+	/**
+	 * Record that the visual hash of one of this user's photos changed.
+	 * @param p The photo.
+	 */
+	void visualHashChanged(Photo p) {
+		if (photoIndex != null)
+			photoIndex.visualHashChanged(p);
 	}
 	
 	public Album getAlbum(String albumname) {
@@ -83,7 +217,10 @@ public class User implements Serializable {
 		if (getAlbum(albumname) != null || !albumname.matches(".*\\w.*")){
 			return false;
 		}
-		albums.put(albumname, new Album(albumname));
+		Album a = new Album(albumname);
+		a.setOwner(this);
+		albums.put(albumname, a);
+		modified();
 		return true;
 	}
 	
@@ -95,7 +232,14 @@ public class User implements Serializable {
 	public boolean addAlbum(Album newAlbum) {
 		if (albums.get(newAlbum.getAlbumName()) != null || newAlbum.getAlbumName().isEmpty())
 			return false;
+		newAlbum.setOwner(this);
 		albums.put(newAlbum.getAlbumName(), newAlbum);
+		if (photoIndex != null) {
+			for (Photo p : newAlbum.photos()) {
+				photoIndex.photoAdded(newAlbum, p);
+			}
+		}
+		modified();
 		return true;
 	}
 	
@@ -127,7 +271,39 @@ public class User implements Serializable {
 	 * @param albumname name of album to be removed
 	 */
 	public void removeAlbum(String albumname) {
-		albums.remove(albumname);
+		Album a = albums.remove(albumname);
+		if (a != null) {
+			if (photoIndex != null)
+				photoIndex.albumRemoved(a);
+			modified();
+		}
+	}
+	
+	/**
+	 * Merge copies of the same picture into one photo, such as the groups found by a
+	 * DuplicateFinder. The first photo takes the place of the others in every album, and gets
+	 * their tags and caption where it has none of its own.
+	 * @param copies The photos to merge, the one to keep first.
+	 */
+	public void mergePhotos(List<Photo> copies) {
+		if (copies.size() < 2)
+			return;
+		PhotoIndex index = photoIndex();
+		Photo keep = copies.get(0);
+		for (Photo p : copies.subList(1, copies.size())) {
+			if (p == keep)
+				continue;
+			for (String key : p.getTags()) {
+				if (!keep.hasTag(key))
+					keep.setTag(key, p.getTagValue(key));
+			}
+			if (keep.getStoredCaption() == null && p.getStoredCaption() != null)
+				keep.setCaption(p.getStoredCaption());
+			for (Album a : albums.values()) {
+				if (index.contains(a, p))
+					a.replacePhoto(p, keep);
+			}
+		}
 	}
 	
 	/**
@@ -135,6 +311,8 @@ public class User implements Serializable {
 	 * @return A set containing all unique tags.
 	 */
 	public Set<String> getAllTags() {
+		if (photoIndex != null)
+			return new HashSet<String>(photoIndex.keys());
 		HashSet<String> s = new HashSet<String>();
 		for (String a : albums.keySet()) {
 			s.addAll(albums.get(a).getAllTags());
@@ -142,48 +320,108 @@ public class User implements Serializable {
 		return s;
 	}
 	
+	/**
+	 * Find all values a tag has on this user's photos.
+	 * @param key The tag key.
+	 * @return All unique values of that tag.
+	 */
+	public Set<String> getTagValues(String key) {
+		return new HashSet<String>(photoIndex().values(key));
+	}
+	
+	/**
+	 * Find all photos with the given tag, whatever its value.
+	 * @param key The tag key.
+	 * @return All photos with that tag.
+	 */
+	public PhotoSet findTagged(String key) {
+		PhotoIndex index = photoIndex();
+		return new PhotoSet(index, index.find(key));
+	}
+	
+	/**
+	 * Find all photos tagged with the given key and value.
+	 * @param key The tag key.
+	 * @param value The tag value.
+	 * @return All photos with that tag set to that value.
+	 */
+	public PhotoSet findTagged(String key, String value) {
+		PhotoIndex index = photoIndex();
+		return new PhotoSet(index, index.find(key, value));
+	}
+	
+	/**
+	 * Find all photos matching a query. Queries that can be answered from this user's index only
+	 * look at the photos the index finds; any other query checks every photo.
+	 * @param q The query.
+	 * @return All photos matching the query.
+	 */
+	public PhotoSet search(Query q) {
+		PhotoIndex index = photoIndex();
+		IdBitmap result = q.find(this, index);
+		if (result == null)
+			result = Query.filter(index.all(), q, this, index);
+		return new PhotoSet(index, result);
+	}
+	
 	/**
 	 * Find and return all unique photos in albums owned by this user.
-	 * @return A set of all photos.
+	 * @return A set of all photos, each counted once however many albums hold it.
 	 */
 	public Set<Photo> getAllPhotos() {
-		Set<Photo> s = new HashSet<Photo>();
-		for (String al : albums.keySet()) {
-			s.addAll(albums.get(al).getPhotos());
+		PhotoIndex index = photoIndex();
+		return new PhotoSet(index, index.all());
+	}
+	
+	/**
+	 * Get the photo for a file, to add to one of this user's albums. If the file is already in one
+	 * of the albums the stored photo is returned, so that every album shares its tags and caption;
+	 * otherwise a new photo is created with the file's canonical path.
+	 * @param path Path to the file.
+	 * @return The photo for the file.
+	 */
+	public Photo importPhoto(String path) {
+		String canonical = Photo.canonicalize(path);
+		Photo p = photoIndex().findByPath(canonical);
+		if (p == null) {
+			p = new Photo(canonical);
+			p.canonicalPath = canonical;
 		}
-		return s;
+		return p;
+	}
+	
+	/**
+	 * Get the photo to add to one of this user's albums for a photo created elsewhere, such as by a
+	 * background import. If the same file is already in one of the albums the stored photo is
+	 * returned, otherwise the given photo is.
+	 * @param p A new photo.
+	 * @return The photo to add.
+	 */
+	public Photo importPhoto(Photo p) {
+		Photo stored = photoIndex().findByPath(p.getCanonicalPath());
+		return stored == null ? p : stored;
 	}
 	
 	/**
 	 * This find all photos within a specified date range and returns these photos in a set object 
 	 * @param date1 The lower date bound. (Older date) 
 	 * @param date2 The upper date bound. (Upper date)
-	 * @return A set of photos that fall within the specified date range defined by date1 and date2
-	 */
-	
-	public Set<Photo> findWithinRange(Date date1, Date date2) {
-		Set<Photo> photosInRange = new HashSet<Photo>();
-		Set<Photo> allPhotos = getAllPhotos();
-		Calendar calDate1 = Calendar.getInstance();
-		Calendar calDate2 = Calendar.getInstance(); 
-		
-		calDate1.setTime(date1);
-		photoalbum.util.Services.setExtrasToZero(calDate1);
-		calDate2.setTime(date2);
-		photoalbum.util.Services.setExtrasToZero(calDate2);
-		
-		for(Photo p:allPhotos) {
-			if (calDate1.equals(calDate2)) {
-				if (p.getDate().equals(calDate1))
-					photosInRange.add(p);
-			}  else {
-				if(p.getDate().before(calDate1) || p.getDate().after(calDate2)) {
-					continue;
-				}
-				photosInRange.add(p);
-			}
-		}
-		
-		return photosInRange; 
+	 * @return A set of photos that fall within the specified date range defined by date1 and date2,
+	 * ordered from oldest to newest.
+	 */
+	
+	public Set<Photo> findWithinRange(LocalDate date1, LocalDate date2) {
+		return photoIndex().findBetweenInOrder((int)date1.toEpochDay(), (int)date2.toEpochDay());
+	}
+	
+	/**
+	 * Find photos that look like a given picture, such as resized or re-encoded copies of it.
+	 * Only photos whose visual hash has been worked out are found.
+	 * @param hash The visual hash of the picture.
+	 * @param maxDistance The largest number of bits in which a photo's hash may differ.
+	 * @return The photos found, most similar first.
+	 */
+	public Set<Photo> findSimilar(long hash, int maxDistance) {
+		return new LinkedHashSet<Photo>(photoIndex().findSimilar(hash, maxDistance));
 	}
 }
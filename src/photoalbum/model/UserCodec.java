@@ -0,0 +1,535 @@
+package photoalbum.model;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+
+/**
+ * A compact binary format for a single user with all of its albums and photos. Compared to java
+ * serialization it writes no class descriptors, stores dates as a day number instead of a whole
+ * Calendar, and writes every distinct string (album names, tag keys and values, captions and the
+ * directories and file names photos are stored in) only once in a table, which the rest of the
+ * record refers to by index. Photos shared between albums are stored once.
+ * <p>
+ * The current version has a fixed layout that can be read in place by Catalogue: offset tables
+ * lead straight to any string or photo, and each album's entry holds its photo count, date range
+ * and tag keys, so albums can be listed without reading a single photo. All ints are big-endian,
+ * and every count and index outside the tables is an unsigned varint:
+ * <pre>
+ * int magic, byte version
+ * int string count, int photo count, int album count, int username
+ * int[string count + 1] offset of each string, then the offset just past the last one
+ * int[photo count + 1] offset of each photo, then the offset just past the last one
+ * int[album count][6] name, photo count, oldest day, newest day, offset of photo list, offset of tag list
+ * strings (UTF-8 bytes)
+ * photos (directory, file name, date, caption, tag count, key/value pairs, then visual hash)
+ * photo lists (the index of each photo) and tag lists (count, then the index of each key)
+ * </pre>
+ * A photo's date is its zigzag encoded epoch day plus one, or zero if the photo has no date. A
+ * caption is its string index plus one, or zero if the photo has no caption. A visual hash is a
+ * zero byte if the photo hasn't been hashed, otherwise a one followed by the 8 byte hash. Records
+ * written by version 2, which had no visual hashes, and version 1, which had no tables and stored
+ * strings inline, are still read.
+ * @author Paul Warner & Kenny Zhang
+ *
+ */
+public final class UserCodec {
+
+	/**
+	 * First four bytes of every record.
+	 */
+	public static final int MAGIC = 0x50415542; // "PAUB"
+
+	/**
+	 * Version of the format written by this class.
+	 */
+	public static final int VERSION = 3;
+
+	/**
+	 * Size of the magic number and version.
+	 */
+	static final int HEADER_BYTES = 5;
+
+	private UserCodec() {}
+
+	/**
+	 * Check which version of the format a record was written in, without moving the buffer.
+	 * @param data The record, starting at the buffer's position.
+	 * @return The version, or 0 if the data is not a record written by this class.
+	 */
+	public static int version(ByteBuffer data) {
+		if (data.remaining() < HEADER_BYTES || data.getInt(data.position()) != MAGIC)
+			return 0;
+		return data.get(data.position() + 4);
+	}
+
+	/**
+	 * Encode a user with all of its albums and photos. Albums whose photos have not been read yet
+	 * are copied from their catalogue without being kept in memory.
+	 * @param u The user.
+	 * @return The encoded record.
+	 */
+	public static byte[] encode(User u) {
+		return encode(snapshot(u));
+	}
+
+	/**
+	 * Capture everything that has to be encoded to save a user. This only copies references and a
+	 * few fields of each loaded photo, so it is much cheaper than encoding; photos still only in
+	 * the catalogue aren't read at all. The user may be changed again as soon as this returns, and
+	 * the snapshot can then be encoded on another thread.
+	 * @param u The user.
+	 * @return The snapshot.
+	 */
+	public static Snapshot snapshot(User u) {
+		Snapshot s = new Snapshot(u.getUsername());
+		IdentityHashMap<Photo, Integer> captured = new IdentityHashMap<Photo, Integer>();
+		HashMap<Catalogue, int[]> unread = new HashMap<Catalogue, int[]>();
+		for (Album a : u.getAllAlbums()) {
+			int[] list;
+			if (a.photos != null) {
+				list = new int[a.photos.size()];
+				int n = 0;
+				for (Photo p : a.photos) {
+					list[n++] = s.capture(captured, p);
+				}
+			} else {
+				Catalogue c = a.catalogue;
+				int[] positions = unread.computeIfAbsent(c, (k) -> new int[k.photoCount()]);
+				list = c.albumPhotoIndices(a.catalogueIndex);
+				for (int j = 0; j < list.length; j++) {
+					int i = list[j];
+					Photo p = c.loaded(i);
+					if (p != null) {
+						list[j] = s.capture(captured, p);
+						continue;
+					}
+					if (positions[i] == 0) { // read on the encoding thread
+						s.photos.add(new Unread(c, i));
+						positions[i] = s.photos.size();
+					}
+					list[j] = positions[i] - 1;
+				}
+			}
+			s.albumNames.add(a.getAlbumName());
+			s.albumLists.add(list);
+		}
+		return s;
+	}
+
+	/**
+	 * Encode a user captured by snapshot. May be called on any thread.
+	 * @param snapshot The snapshot.
+	 * @return The encoded record.
+	 */
+	public static byte[] encode(Snapshot snapshot) {
+		LinkedHashMap<String, Integer> strings = new LinkedHashMap<String, Integer>();
+		PhotoState[] photos = new PhotoState[snapshot.photos.size()];
+		for (int i = 0; i < photos.length; i++) {
+			Object o = snapshot.photos.get(i);
+			photos[i] = o instanceof PhotoState ? (PhotoState)o : ((Unread)o).read();
+		}
+		int username = intern(strings, snapshot.username);
+
+		int[] photoOffsets = new int[photos.length + 1];
+		ByteArrayOutputStream photoBytes = new ByteArrayOutputStream();
+		for (int i = 0; i < photos.length; i++) {
+			PhotoState p = photos[i];
+			photoOffsets[i] = photoBytes.size();
+			int split = Math.max(p.path.lastIndexOf('/'), p.path.lastIndexOf('\\')) + 1;
+			writeVarint(photoBytes, intern(strings, p.path.substring(0, split)));
+			writeVarint(photoBytes, intern(strings, p.path.substring(split)));
+			writeVarint(photoBytes, p.day == Photo.NO_DATE ? 0 : zigzag(p.day) + 1);
+			writeVarint(photoBytes, p.caption == null ? 0 : intern(strings, p.caption) + 1);
+			writeVarint(photoBytes, p.tags.length / 2);
+			for (String t : p.tags) {
+				writeVarint(photoBytes, intern(strings, t));
+			}
+			if (p.hashed) {
+				photoBytes.write(1);
+				for (int shift = 56; shift >= 0; shift -= 8) {
+					photoBytes.write((int)(p.hash >>> shift));
+				}
+			} else {
+				photoBytes.write(0);
+			}
+		}
+		photoOffsets[photos.length] = photoBytes.size();
+
+		int albumCount = snapshot.albumNames.size();
+		int[][] albumTable = new int[albumCount][Catalogue.ALBUM_INTS];
+		ByteArrayOutputStream listBytes = new ByteArrayOutputStream();
+		for (int i = 0; i < albumCount; i++) {
+			int[] list = snapshot.albumLists.get(i);
+			int[] entry = albumTable[i];
+			entry[0] = intern(strings, snapshot.albumNames.get(i));
+			entry[1] = list.length;
+			entry[2] = Catalogue.NO_DATE;
+			entry[3] = Catalogue.NO_DATE;
+			entry[4] = listBytes.size();
+			LinkedHashSet<String> tags = new LinkedHashSet<String>();
+			for (int index : list) {
+				writeVarint(listBytes, index);
+				PhotoState p = photos[index];
+				for (int t = 0; t < p.tags.length; t += 2) {
+					tags.add(p.tags[t]);
+				}
+				if (p.day != Photo.NO_DATE) {
+					entry[2] = entry[2] == Catalogue.NO_DATE ? p.day : Math.min(entry[2], p.day);
+					entry[3] = entry[3] == Catalogue.NO_DATE ? p.day : Math.max(entry[3], p.day);
+				}
+			}
+			entry[5] = listBytes.size();
+			writeVarint(listBytes, tags.size());
+			for (String key : tags) {
+				writeVarint(listBytes, intern(strings, key));
+			}
+		}
+
+		int[] stringOffsets = new int[strings.size() + 1];
+		ByteArrayOutputStream stringBytes = new ByteArrayOutputStream();
+		int n = 0;
+		for (String s : strings.keySet()) {
+			stringOffsets[n++] = stringBytes.size();
+			byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+			stringBytes.write(bytes, 0, bytes.length);
+		}
+		stringOffsets[n] = stringBytes.size();
+
+		int stringBase = HEADER_BYTES + 16 + 4 * (stringOffsets.length + photoOffsets.length)
+				+ 4 * Catalogue.ALBUM_INTS * albumCount;
+		int photoBase = stringBase + stringBytes.size();
+		int listBase = photoBase + photoBytes.size();
+		ByteBuffer out = ByteBuffer.allocate(listBase + listBytes.size());
+		out.putInt(MAGIC).put((byte)VERSION);
+		out.putInt(strings.size()).putInt(photos.length).putInt(albumCount).putInt(username);
+		for (int offset : stringOffsets) {
+			out.putInt(stringBase + offset);
+		}
+		for (int offset : photoOffsets) {
+			out.putInt(photoBase + offset);
+		}
+		for (int[] entry : albumTable) {
+			entry[4] += listBase;
+			entry[5] += listBase;
+			for (int v : entry) {
+				out.putInt(v);
+			}
+		}
+		out.put(stringBytes.toByteArray()).put(photoBytes.toByteArray()).put(listBytes.toByteArray());
+		return out.array();
+	}
+
+	/**
+	 * A user captured by snapshot, waiting to be encoded.
+	 */
+	public static final class Snapshot {
+		/**
+		 * The user's name.
+		 */
+		private final String username;
+
+		/**
+		 * Name of each album.
+		 */
+		private final ArrayList<String> albumNames = new ArrayList<String>();
+
+		/**
+		 * Photos of each album, as indexes into photos.
+		 */
+		private final ArrayList<int[]> albumLists = new ArrayList<int[]>();
+
+		/**
+		 * Every photo of the user once: a PhotoState for photos that were captured, or an Unread for
+		 * photos still only in a catalogue.
+		 */
+		private final ArrayList<Object> photos = new ArrayList<Object>();
+
+		private Snapshot(String username) {
+			this.username = username;
+		}
+
+		/**
+		 * Capture a photo unless it has been captured already.
+		 * @param captured Position of every photo captured so far.
+		 * @param p The photo.
+		 * @return The position of the photo in photos.
+		 */
+		private int capture(IdentityHashMap<Photo, Integer> captured, Photo p) {
+			Integer i = captured.get(p);
+			if (i == null) {
+				i = photos.size();
+				photos.add(new PhotoState(p));
+				captured.put(p, i);
+			}
+			return i;
+		}
+	}
+
+	/**
+	 * The fields of a photo that are saved, copied so they can be encoded on another thread.
+	 */
+	static final class PhotoState {
+		/**
+		 * Path of the photo's file.
+		 */
+		final String path;
+
+		/**
+		 * Epoch day the photo was taken, or Photo.NO_DATE.
+		 */
+		final int day;
+
+		/**
+		 * The caption, or null if the photo has none.
+		 */
+		final String caption;
+
+		/**
+		 * Tag keys and values, alternating.
+		 */
+		final String[] tags;
+
+		/**
+		 * Whether the visual hash is known.
+		 */
+		final boolean hashed;
+
+		/**
+		 * The visual hash, if it is known.
+		 */
+		final long hash;
+
+		/**
+		 * Copy the saved fields of a photo.
+		 * @param p The photo.
+		 */
+		PhotoState(Photo p) {
+			path = p.getPhotoPath();
+			day = p.getDay();
+			caption = p.getStoredCaption();
+			tags = new String[2 * p.getTagCount()];
+			for (int t = 0; t < p.getTagCount(); t++) {
+				tags[2 * t] = p.getTagKey(t);
+				tags[2 * t + 1] = p.getTagValue(t);
+			}
+			hashed = p.hasVisualHash();
+			hash = hashed ? p.getVisualHash() : 0;
+		}
+
+		/**
+		 * @param path Path of the photo's file.
+		 * @param day Epoch day the photo was taken, or Photo.NO_DATE.
+		 * @param caption The caption, or null.
+		 * @param tags Tag keys and values, alternating.
+		 * @param hashed Whether the visual hash is known.
+		 * @param hash The visual hash.
+		 */
+		PhotoState(String path, int day, String caption, String[] tags, boolean hashed, long hash) {
+			this.path = path;
+			this.day = day;
+			this.caption = caption;
+			this.tags = tags;
+			this.hashed = hashed;
+			this.hash = hash;
+		}
+	}
+
+	/**
+	 * A photo that is still only in a catalogue, read when the snapshot is encoded.
+	 */
+	private static final class Unread {
+		/**
+		 * The catalogue.
+		 */
+		private final Catalogue catalogue;
+
+		/**
+		 * Index of the photo in the catalogue.
+		 */
+		private final int index;
+
+		Unread(Catalogue catalogue, int index) {
+			this.catalogue = catalogue;
+			this.index = index;
+		}
+
+		/**
+		 * @return The saved fields of the photo, read from the catalogue.
+		 */
+		PhotoState read() {
+			return catalogue.readState(index);
+		}
+	}
+
+	/**
+	 * Decode a user written by encode.
+	 * @param data The encoded record.
+	 * @return The user, with all of its albums and photos.
+	 * @throws IOException If data is not a valid record, or was written by a newer version.
+	 */
+	public static User decode(byte[] data) throws IOException {
+		return decode(ByteBuffer.wrap(data));
+	}
+
+	/**
+	 * Decode a user written by encode, reading from the buffer's current position. The user's
+	 * albums keep a view of the buffer and read their photos from it when they are first needed,
+	 * so the buffer must not change afterwards.
+	 * @param in The buffer holding the record.
+	 * @return The user, with all of its albums.
+	 * @throws IOException If the buffer does not hold a valid record, or it was written by a newer version.
+	 */
+	public static User decode(ByteBuffer in) throws IOException {
+		int version = version(in);
+		if (version == 0)
+			throw new IOException("not a user record");
+		if (version > VERSION)
+			throw new IOException("user record version " + version + " is newer than " + VERSION);
+		try {
+			if (version == 1)
+				return decodeVersion1(in);
+			return new Catalogue(in).getUser();
+		} catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+			throw new IOException("damaged user record", e);
+		}
+	}
+
+	/**
+	 * Decode a whole record written by version 1 of this format.
+	 * @param in The buffer holding the record.
+	 * @return The user, with all of its albums and photos.
+	 * @throws IOException If the record is damaged.
+	 */
+	private static User decodeVersion1(ByteBuffer in) throws IOException {
+		in.position(in.position() + HEADER_BYTES);
+		String[] strings = new String[readVarint(in)];
+		for (int i = 0; i < strings.length; i++) {
+			byte[] bytes = new byte[readVarint(in)];
+			in.get(bytes);
+			strings[i] = new String(bytes, StandardCharsets.UTF_8);
+		}
+
+		User u = new User(strings[readVarint(in)]);
+		Photo[] photos = new Photo[readVarint(in)];
+		for (int i = 0; i < photos.length; i++) {
+			String dir = strings[readVarint(in)];
+			String name = strings[readVarint(in)];
+			int day = readVarint(in);
+			int caption = readVarint(in);
+			int tagCount = readVarint(in);
+			photos[i] = new Photo(dir + name, day == 0 ? Photo.NO_DATE : unzigzag(day - 1),
+					caption == 0 ? null : strings[caption - 1], u);
+			for (int t = 0; t < tagCount; t++) {
+				String key = strings[readVarint(in)];
+				photos[i].loadTag(key, strings[readVarint(in)]);
+			}
+		}
+		int albumCount = readVarint(in);
+		for (int i = 0; i < albumCount; i++) {
+			Album a = new Album(strings[readVarint(in)]);
+			int count = readVarint(in);
+			for (int j = 0; j < count; j++) {
+				Photo p = photos[readVarint(in)];
+				a.photos.add(p);
+				a.includeDate(p);
+			}
+			u.addAlbum(a);
+		}
+		return u;
+	}
+
+	/**
+	 * Find a string in the table, adding it if it isn't there yet.
+	 * @param strings The string table.
+	 * @param s The string.
+	 * @return The index of the string in the table.
+	 */
+	private static int intern(Map<String, Integer> strings, String s) {
+		Integer i = strings.get(s);
+		if (i == null) {
+			i = strings.size();
+			strings.put(s, i);
+		}
+		return i;
+	}
+
+	/**
+	 * @param cal A date.
+	 * @return The number of days from 1970-01-01 to that date.
+	 */
+	static int toEpochDay(Calendar cal) {
+		return (int)LocalDate.of(cal.get(Calendar.YEAR), cal.get(Calendar.MONTH) + 1,
+				cal.get(Calendar.DAY_OF_MONTH)).toEpochDay();
+	}
+
+	/**
+	 * @param day The number of days since 1970-01-01.
+	 * @return A calendar set to midnight of that day in the default time zone.
+	 */
+	static Calendar fromEpochDay(int day) {
+		LocalDate d = LocalDate.ofEpochDay(day);
+		Calendar cal = Calendar.getInstance();
+		cal.clear();
+		cal.set(d.getYear(), d.getMonthValue() - 1, d.getDayOfMonth());
+		return cal;
+	}
+
+	/**
+	 * Map a signed value to an unsigned one so that small negative values stay small.
+	 * @param v A signed value.
+	 * @return 0, -1, 1, -2, 2... mapped to 0, 1, 2, 3, 4...
+	 */
+	private static int zigzag(int v) {
+		return (v << 1) ^ (v >> 31);
+	}
+
+	/**
+	 * @param v A value mapped by zigzag.
+	 * @return The original signed value.
+	 */
+	static int unzigzag(int v) {
+		return (v >>> 1) ^ -(v & 1);
+	}
+
+	/**
+	 * Write an unsigned varint: seven bits per byte, lowest bits first, with the high bit set on all
+	 * but the last byte.
+	 * @param out Stream to write to.
+	 * @param v The value, which must not be negative.
+	 */
+	private static void writeVarint(ByteArrayOutputStream out, int v) {
+		while ((v & ~0x7f) != 0) {
+			out.write((v & 0x7f) | 0x80);
+			v >>>= 7;
+		}
+		out.write(v);
+	}
+
+	/**
+	 * Read an unsigned varint written by writeVarint.
+	 * @param in Buffer to read from.
+	 * @return The value.
+	 * @throws IOException If the varint is longer than five bytes.
+	 */
+	static int readVarint(ByteBuffer in) throws IOException {
+		int v = 0;
+		for (int shift = 0; shift < 35; shift += 7) {
+			byte b = in.get();
+			v |= (b & 0x7f) << shift;
+			if ((b & 0x80) == 0)
+				return v;
+		}
+		throw new IOException("damaged varint");
+	}
+}
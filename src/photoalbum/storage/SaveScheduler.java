@@ -0,0 +1,269 @@
+package photoalbum.storage;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Saves the program's state in the background. Callers mark the state as dirty, and the scheduler
+ * waits until no new changes have come in for a short while before saving, so a burst of edits is
+ * written only once. A save is never put off for longer than a fixed maximum delay.
+ * <p>
+ * Saving happens in two steps. The state is first captured on the thread that owns it (the JavaFX
+ * thread), which should only copy what is needed and produces a task that writes the captured data.
+ * That task then runs on the scheduler's own thread, where any expensive encoding should happen, so
+ * the disk is never touched by the thread that owns the state.
+ * <p>
+ * If capturing or writing fails, the state is marked dirty again and the save is retried after the
+ * maximum delay. The first failure in a row is reported on the owning thread.
+ * @author Paul Warner & Kenny Zhang
+ *
+ */
+public class SaveScheduler {
+
+	/**
+	 * Captures the state to be saved and returns the task that writes it. Must be run on the thread
+	 * that owns the state.
+	 */
+	public interface Capture {
+		/**
+		 * @return A task writing the captured state, or null if there is nothing to write.
+		 * @throws Exception If the state could not be captured.
+		 */
+		Writer capture() throws Exception;
+	}
+
+	/**
+	 * Writes captured state to disk.
+	 */
+	public interface Writer {
+		/**
+		 * Write the captured state.
+		 * @throws Exception If the state could not be written.
+		 */
+		void write() throws Exception;
+	}
+
+	/**
+	 * Captures the state.
+	 */
+	private final Capture capture;
+
+	/**
+	 * Runs tasks on the thread that owns the state.
+	 */
+	private final Executor owner;
+
+	/**
+	 * Told about failed saves, on the thread that owns the state.
+	 */
+	private final Consumer<Exception> onError;
+
+	/**
+	 * Time without new changes to wait before saving, in milliseconds.
+	 */
+	private final long quietMillis;
+
+	/**
+	 * Longest time a change can go unsaved, in milliseconds.
+	 */
+	private final long maxDelayMillis;
+
+	/**
+	 * Thread all writes are run on, in the order they were captured.
+	 */
+	private final ScheduledExecutorService writer;
+
+	/**
+	 * Whether there are changes that haven't been captured.
+	 */
+	private boolean dirty;
+
+	/**
+	 * Whether a check is already scheduled.
+	 */
+	private boolean scheduled;
+
+	/**
+	 * Time of the first change since the last capture.
+	 */
+	private long firstDirty;
+
+	/**
+	 * Time of the latest change.
+	 */
+	private long lastDirty;
+
+	/**
+	 * Earliest time the next save may start, used to wait before retrying a failed save.
+	 */
+	private long notBefore;
+
+	/**
+	 * Whether the last save failed, so that a failure is only reported once until a save works again.
+	 */
+	private boolean failing;
+
+	/**
+	 * Create a new scheduler.
+	 * @param capture Captures the state and returns the task that writes it.
+	 * @param owner Runs the capture on the thread that owns the state, e.g. Platform::runLater.
+	 * @param quietMillis How long to wait after the latest change before saving.
+	 * @param maxDelayMillis The longest any change may wait before it is saved.
+	 * @param onError Told about a failed save, on the thread that owns the state.
+	 */
+	public SaveScheduler(Capture capture, Executor owner, long quietMillis, long maxDelayMillis,
+			Consumer<Exception> onError) {
+		this.capture = capture;
+		this.owner = owner;
+		this.onError = onError;
+		this.quietMillis = quietMillis;
+		this.maxDelayMillis = maxDelayMillis;
+		ScheduledThreadPoolExecutor ex = new ScheduledThreadPoolExecutor(1, (r) -> {
+			Thread t = new Thread(r, "save-scheduler");
+			t.setDaemon(true);
+			return t;
+		});
+		this.writer = ex;
+	}
+
+	/**
+	 * Record that the state has changed and needs to be saved.
+	 */
+	public synchronized void markDirty() {
+		long now = System.currentTimeMillis();
+		if (!dirty) {
+			dirty = true;
+			firstDirty = now;
+		}
+		lastDirty = now;
+		if (!scheduled) {
+			scheduled = true;
+			writer.schedule(this::check, quietMillis, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Run on the writer thread. Saves if the state has been quiet long enough or has waited too
+	 * long, and otherwise checks again later.
+	 */
+	private synchronized void check() {
+		scheduled = false;
+		if (!dirty)
+			return;
+		long now = System.currentTimeMillis();
+		long due = Math.max(notBefore, Math.min(lastDirty + quietMillis, firstDirty + maxDelayMillis));
+		if (now < due) {
+			scheduled = true;
+			writer.schedule(this::check, due - now, TimeUnit.MILLISECONDS);
+			return;
+		}
+		owner.execute(() -> {
+			Writer w = captureNow();
+			if (w != null)
+				writer.execute(() -> write(w));
+		});
+	}
+
+	/**
+	 * Capture the state if it is dirty. Must be run on the thread that owns the state.
+	 * @return The task writing the state, or null if there is nothing to write.
+	 */
+	private Writer captureNow() {
+		synchronized (this) {
+			if (!dirty)
+				return null;
+			dirty = false;
+		}
+		try {
+			return capture.capture();
+		} catch (Exception e) {
+			failed(e);
+			return null;
+		}
+	}
+
+	/**
+	 * Write captured state, reporting any failure.
+	 * @param w The task writing the state.
+	 */
+	private void write(Writer w) {
+		try {
+			w.write();
+			synchronized (this) {
+				failing = false;
+			}
+		} catch (Exception e) {
+			failed(e);
+		}
+	}
+
+	/**
+	 * Mark the state dirty again so the save is retried after the maximum delay, and report the
+	 * failure unless the save before failed too.
+	 * @param e The reason the save failed.
+	 */
+	private void failed(Exception e) {
+		e.printStackTrace();
+		boolean report;
+		synchronized (this) {
+			report = !failing;
+			failing = true;
+			long now = System.currentTimeMillis();
+			if (!dirty) {
+				dirty = true;
+				firstDirty = now;
+				lastDirty = now;
+			}
+			notBefore = now + maxDelayMillis;
+			if (!scheduled) {
+				scheduled = true;
+				writer.schedule(this::check, maxDelayMillis, TimeUnit.MILLISECONDS);
+			}
+		}
+		if (report)
+			owner.execute(() -> onError.accept(e));
+	}
+
+	/**
+	 * Capture the state right away, whether or not it has been marked dirty, and write it in the
+	 * background. Must be called on the thread that owns the state, e.g. just before part of the
+	 * state is released from memory.
+	 */
+	public void saveNow() {
+		synchronized (this) {
+			dirty = true;
+		}
+		Writer w = captureNow();
+		if (w != null)
+			writer.execute(() -> write(w));
+	}
+
+	/**
+	 * Capture the state, whether or not it has been marked dirty, then wait until everything
+	 * captured so far has been written. Must be called on the thread that owns the state, e.g.
+	 * when the program is closing.
+	 */
+	public void flush() {
+		synchronized (this) {
+			dirty = true;
+		}
+		Writer w = captureNow();
+		Callable<Void> last = () -> {
+			if (w != null)
+				write(w);
+			return null;
+		};
+		try {
+			writer.submit(last).get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			e.printStackTrace();
+		}
+	}
+}
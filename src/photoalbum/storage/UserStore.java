@@ -0,0 +1,549 @@
+package photoalbum.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.zip.CRC32;
+
+import photoalbum.model.User;
+import photoalbum.model.UserCodec;
+
+/**
+ * Stores users on disk as one segment file per user plus a small index of all usernames. Only the
+ * index is read at startup; a user's segment is read the first time that user is needed, so
+ * startup time and memory do not grow with the number of users.
+ * <p>
+ * Each segment holds complete copies of its user, one after the other. Saving appends a new copy of
+ * every user that changed, and loading reads the last complete copy, so a crash in the middle of a
+ * write never damages the copy before it. The records are whole users rather than single changes,
+ * so saving a user still costs time and disk space in proportion to the size of that user; only
+ * users that didn't change are skipped. Once a segment grows much larger than a single copy, it is
+ * rewritten to hold only the latest one. The index and rewritten segments are written to a temporary
+ * file and renamed over the old one.
+ * <p>
+ * Segments are read by mapping them into memory, and loaded users read their photos from the
+ * mapping as they are needed. Records are written with UserCodec. Records java serialized by older versions are still read, and
+ * are rewritten in the current format the next time the store saves. Users saved in the single file
+ * format used by older versions are moved into segments the first time the store is opened.
+ * @author Paul Warner & Kenny Zhang
+ *
+ */
+public class UserStore {
+
+	/**
+	 * First int of the index file.
+	 */
+	private static final int INDEX_MAGIC = 0x50415549; // "PAUI"
+
+	/**
+	 * A segment is never rewritten while it is smaller than this many bytes.
+	 */
+	private static final long MIN_COMPACT_BYTES = 64 * 1024;
+
+	/**
+	 * Extension of segment files.
+	 */
+	private static final String SEGMENT = ".seg";
+
+	/**
+	 * Directory holding the index and all segments.
+	 */
+	private final File dir;
+
+	/**
+	 * The index of all usernames.
+	 */
+	private final File index;
+
+	/**
+	 * Save file written by older versions, containing every user.
+	 */
+	private final File legacy;
+
+	/**
+	 * Usernames in the index once every prepared commit has been written.
+	 */
+	private final TreeSet<String> savedNames = new TreeSet<String>();
+
+	/**
+	 * The user objects as of the last save, by username. Only loaded users are tracked.
+	 */
+	private final HashMap<String, User> savedUsers = new HashMap<String, User>();
+
+	/**
+	 * The modification count of each tracked user as of the last save, by username.
+	 */
+	private final HashMap<String, Integer> savedCounts = new HashMap<String, Integer>();
+
+	/**
+	 * Users that have been captured but not yet written, by username. A user loaded before its
+	 * record is written is read from here rather than from its segment.
+	 */
+	private final LinkedHashMap<String, UserCodec.Snapshot> pending = new LinkedHashMap<String, UserCodec.Snapshot>();
+
+	/**
+	 * Whether the index failed to write, in which case the next commit writes it again.
+	 */
+	private boolean indexFailed;
+
+	/**
+	 * Create a store in the given directory.
+	 * @param dir Directory holding the index and segments. Created when first saved to.
+	 * @param legacyPath Path of the single save file used by older versions.
+	 */
+	public UserStore(String dir, String legacyPath) {
+		this.dir = new File(dir);
+		this.index = new File(this.dir, "index");
+		this.legacy = new File(legacyPath);
+	}
+
+	/**
+	 * Read the index of all usernames. If there is no index but there is an old save file, all of
+	 * its users are first moved into segments and the old file is renamed with a .bak extension.
+	 * @return All stored usernames, sorted.
+	 */
+	public synchronized TreeSet<String> open() {
+		savedNames.clear();
+		if (!index.exists() && legacy.exists()) {
+			try {
+				rewrite(loadLegacy());
+				File log = new File(legacy.getPath() + ".log");
+				Files.move(legacy.toPath(), new File(legacy.getPath() + ".bak").toPath(),
+						StandardCopyOption.REPLACE_EXISTING);
+				if (log.exists())
+					Files.move(log.toPath(), new File(log.getPath() + ".bak").toPath(),
+							StandardCopyOption.REPLACE_EXISTING);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		try (DataInputStream in = new DataInputStream(new FileInputStream(index))) {
+			if (in.readInt() != INDEX_MAGIC)
+				throw new IOException("not a user index: " + index);
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				savedNames.add(in.readUTF());
+			}
+		} catch (FileNotFoundException e) {
+			// nothing saved yet
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		return new TreeSet<String>(savedNames);
+	}
+
+	/**
+	 * Load a single user from its segment. The segment is mapped into memory rather than read, and
+	 * the user's albums read their photos straight from the mapping when they are first opened, so
+	 * loading a user only touches the parts of the file that are actually used.
+	 * @param username The name of the user.
+	 * @return The user, or null if there is no stored user with that name.
+	 */
+	public synchronized User load(String username) {
+		if (!savedNames.contains(username))
+			return null;
+		UserCodec.Snapshot captured = pending.get(username);
+		try {
+			ByteBuffer body = captured != null ? ByteBuffer.wrap(UserCodec.encode(captured)) : readSegment(segment(username));
+			if (body == null)
+				return null;
+			User u = decode(body);
+			savedUsers.put(username, u);
+			if (UserCodec.version(body) == UserCodec.VERSION) {
+				savedCounts.put(username, u.getModCount());
+			} // otherwise leave its count out, so the next save rewrites it in the current format
+			return u;
+		} catch (IOException | ClassNotFoundException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	/**
+	 * Capture everything that has to be written to save the given users, without touching the disk.
+	 * Changed users are only captured with UserCodec.snapshot here; they are encoded when the commit
+	 * is written. The users may be changed again as soon as this returns, and the returned commit can
+	 * then be written on another thread. Commits must be written in the order they were prepared.
+	 * @param loaded All users currently in memory, by username. Only these can have changed.
+	 * @param usernames The names of all users, loaded or not.
+	 * @return The data to be written.
+	 */
+	public synchronized Commit prepare(Map<String, User> loaded, Set<String> usernames) {
+		for (Map.Entry<String, User> e : loaded.entrySet()) {
+			User u = e.getValue();
+			if (savedUsers.get(e.getKey()) != u || !Integer.valueOf(u.getModCount()).equals(savedCounts.get(e.getKey()))) {
+				pending.put(e.getKey(), UserCodec.snapshot(u));
+				savedUsers.put(e.getKey(), u);
+				savedCounts.put(e.getKey(), u.getModCount());
+			}
+		}
+		// users that have been released no longer need tracking
+		Iterator<String> it = savedUsers.keySet().iterator();
+		while (it.hasNext()) {
+			String name = it.next();
+			if (!loaded.containsKey(name)) {
+				it.remove();
+				savedCounts.remove(name);
+			}
+		}
+		List<String> removed = new ArrayList<String>();
+		for (String name : savedNames) {
+			if (!usernames.contains(name)) {
+				removed.add(name);
+				pending.remove(name);
+			}
+		}
+		TreeSet<String> names = null;
+		if (indexFailed || !savedNames.equals(usernames)) {
+			names = new TreeSet<String>(usernames);
+			savedNames.clear();
+			savedNames.addAll(names);
+			indexFailed = false;
+		}
+		return new Commit(new LinkedHashMap<String, UserCodec.Snapshot>(pending), names, removed);
+	}
+
+	/**
+	 * Replace everything in the store with the given users, writing every segment and the index
+	 * right away. Segments of users not in the map are deleted.
+	 * @param users All users, by username.
+	 * @throws IOException If anything could not be written.
+	 */
+	public synchronized void rewrite(Map<String, User> users) throws IOException {
+		dir.mkdirs();
+		for (Map.Entry<String, User> e : users.entrySet()) {
+			replace(segment(e.getKey()), frame(encode(e.getValue())));
+		}
+		writeIndex(new TreeSet<String>(users.keySet()));
+		File[] segments = dir.listFiles((d, name) -> name.endsWith(SEGMENT));
+		if (segments != null) {
+			for (File f : segments) {
+				if (!users.containsKey(name(f)))
+					f.delete();
+			}
+		}
+		pending.clear();
+		savedNames.clear();
+		savedNames.addAll(users.keySet());
+	}
+
+	/**
+	 * Data captured from the users by prepare, waiting to be written to disk.
+	 */
+	public class Commit {
+		/**
+		 * Each changed user, to be encoded as a new record.
+		 */
+		private final Map<String, UserCodec.Snapshot> records;
+
+		/**
+		 * The new index, or null if it hasn't changed.
+		 */
+		private final Set<String> names;
+
+		/**
+		 * Users whose segments should be deleted.
+		 */
+		private final List<String> removed;
+
+		private Commit(Map<String, UserCodec.Snapshot> records, Set<String> names, List<String> removed) {
+			this.records = records;
+			this.names = names;
+			this.removed = removed;
+		}
+
+		/**
+		 * @return True if there is nothing to write.
+		 */
+		public boolean isEmpty() {
+			return records.isEmpty() && names == null && removed.isEmpty();
+		}
+
+		/**
+		 * Encode the changed users and write this commit to disk. New segments are written before
+		 * the index that refers to them, and segments are only deleted once the index no longer does.
+		 * Anything that fails to write is written again by the next commit.
+		 * @throws IOException If the data could not be written.
+		 */
+		public void write() throws IOException {
+			dir.mkdirs();
+			for (Map.Entry<String, UserCodec.Snapshot> e : records.entrySet()) {
+				appendSegment(segment(e.getKey()), frame(UserCodec.encode(e.getValue())));
+				synchronized (UserStore.this) {
+					pending.remove(e.getKey(), e.getValue());
+				}
+			}
+			if (names != null) {
+				try {
+					writeIndex(names);
+				} catch (IOException e) {
+					synchronized (UserStore.this) {
+						indexFailed = true;
+					}
+					throw e;
+				}
+			}
+			for (String name : removed) {
+				synchronized (UserStore.this) {
+					if (savedNames.contains(name))
+						continue; // added again since
+				}
+				segment(name).delete();
+			}
+		}
+	}
+
+	/**
+	 * Write the index of usernames.
+	 * @param names All usernames.
+	 * @throws IOException If the index could not be written.
+	 */
+	private void writeIndex(Set<String> names) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(INDEX_MAGIC);
+		out.writeInt(names.size());
+		for (String name : names) {
+			out.writeUTF(name);
+		}
+		replace(index, bytes.toByteArray());
+	}
+
+	/**
+	 * Append a framed record to a segment, or rewrite the segment with only that record once the
+	 * segment has grown much larger than the record and the segment can be replaced.
+	 * @param f The segment.
+	 * @param framed The framed record.
+	 * @throws IOException If the segment could not be written.
+	 */
+	private static void appendSegment(File f, byte[] framed) throws IOException {
+		long length = f.length();
+		if (length > 0 && length + framed.length > Math.max(MIN_COMPACT_BYTES, 4L * framed.length)) {
+			try {
+				replace(f, framed);
+				return;
+			} catch (IOException e) {
+				// some platforms won't replace a file that is still mapped, so append this time
+			}
+		}
+		try (FileOutputStream fos = new FileOutputStream(f, true)) {
+			fos.write(framed);
+			fos.getChannel().force(false);
+		}
+	}
+
+	/**
+	 * Replace a file's contents by writing a temporary file and renaming it over the original.
+	 * @param f The file to replace.
+	 * @param data The new contents.
+	 * @throws IOException If the file could not be written.
+	 */
+	private static void replace(File f, byte[] data) throws IOException {
+		File tmp = new File(f.getPath() + ".tmp");
+		try (FileOutputStream fos = new FileOutputStream(tmp)) {
+			fos.write(data);
+			fos.getChannel().force(false);
+		}
+		Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Map the last good record in a segment into memory. Only the length of each record is read to
+	 * find the last one, and records are checked against their checksum from the last one back, so
+	 * only the record that is returned is read in full. An incomplete record at the end of the
+	 * segment is cut off before it is mapped, so later appends follow the last complete record.
+	 * @param f The segment.
+	 * @return The body of the last good record, backed by the mapped segment, or null if there is none.
+	 * @throws IOException If the segment could not be read.
+	 */
+	private static ByteBuffer readSegment(File f) throws IOException {
+		if (!f.exists())
+			return null;
+		try (FileChannel ch = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+			long size = ch.size();
+			ArrayList<Integer> starts = new ArrayList<Integer>();
+			ByteBuffer length = ByteBuffer.allocate(4);
+			long end = 0;
+			while (end + 8 <= size) {
+				length.clear();
+				while (length.hasRemaining() && ch.read(length, end + length.position()) > 0);
+				int n = length.getInt(0);
+				if (n <= 0 || end + 8 + n > size)
+					break;
+				starts.add((int)end);
+				end += 8L + n;
+			}
+			if (end < size) {
+				try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+					raf.setLength(end);
+				}
+			}
+			if (starts.isEmpty())
+				return null;
+			MappedByteBuffer map = ch.map(FileChannel.MapMode.READ_ONLY, 0, end);
+			for (int i = starts.size() - 1; i >= 0; i--) {
+				int start = starts.get(i);
+				int n = map.getInt(start);
+				ByteBuffer body = map.duplicate();
+				body.limit(start + 4 + n).position(start + 4);
+				body = body.slice();
+				CRC32 crc = new CRC32();
+				crc.update(body.duplicate());
+				if ((int)crc.getValue() == map.getInt(start + 4 + n))
+					return body;
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Frame a record body with its length and a checksum.
+	 * @param body The record body.
+	 * @return The framed record.
+	 */
+	private static byte[] frame(byte[] body) {
+		CRC32 crc = new CRC32();
+		crc.update(body);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(body.length + 8);
+		DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			out.writeInt(body.length);
+			out.write(body);
+			out.writeInt((int)crc.getValue());
+		} catch (IOException e) {
+			throw new IllegalStateException(e); // cannot happen writing to memory
+		}
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Read the body of the next framed record.
+	 * @param in Stream to read from.
+	 * @return The record body, or null if the stream ends here or the record is incomplete or damaged.
+	 * @throws IOException If the stream could not be read.
+	 */
+	private static byte[] readRecord(DataInputStream in) throws IOException {
+		try {
+			int length = in.readInt();
+			if (length <= 0 || length > in.available())
+				return null;
+			byte[] body = new byte[length];
+			in.readFully(body);
+			int expected = in.readInt();
+			CRC32 crc = new CRC32();
+			crc.update(body);
+			return (int)crc.getValue() == expected ? body : null;
+		} catch (EOFException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @param u A user.
+	 * @return The user serialized as a record body.
+	 * @throws IOException If the user could not be serialized.
+	 */
+	private static byte[] encode(User u) throws IOException {
+		return UserCodec.encode(u);
+	}
+
+	/**
+	 * @param body A record body, either in the binary format or java serialized by older versions.
+	 * @return The user stored in the record.
+	 * @throws IOException If the record could not be read.
+	 * @throws ClassNotFoundException If the record contains an unknown class.
+	 */
+	private static User decode(ByteBuffer body) throws IOException, ClassNotFoundException {
+		if (UserCodec.version(body) != 0)
+			return UserCodec.decode(body.duplicate());
+		byte[] bytes = new byte[body.remaining()];
+		body.duplicate().get(bytes);
+		try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+			return (User)in.readObject();
+		}
+	}
+
+	/**
+	 * @param username The name of a user.
+	 * @return The segment that user is stored in. The name is hex encoded so any username is a valid file name.
+	 */
+	private File segment(String username) {
+		StringBuilder sb = new StringBuilder();
+		for (byte b : username.getBytes(StandardCharsets.UTF_8)) {
+			sb.append(String.format("%02x", b));
+		}
+		return new File(dir, sb.append(SEGMENT).toString());
+	}
+
+	/**
+	 * @param segment A segment file.
+	 * @return The username the segment belongs to.
+	 */
+	private static String name(File segment) {
+		String hex = segment.getName().substring(0, segment.getName().length() - SEGMENT.length());
+		byte[] bytes = new byte[hex.length() / 2];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = (byte)Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+		}
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Load every user from the save file used by older versions: a serialized map of all users,
+	 * followed by an optional log of users changed since.
+	 * @return All users stored in the old save file.
+	 * @throws IOException If the file could not be read.
+	 */
+	@SuppressWarnings("unchecked")
+	private HashMap<String, User> loadLegacy() throws IOException {
+		HashMap<String, User> users;
+		try (ObjectInputStream in = new ObjectInputStream(new FileInputStream(legacy))) {
+			users = (HashMap<String, User>)in.readObject();
+		} catch (ClassNotFoundException e) {
+			throw new IOException(e);
+		}
+		File log = new File(legacy.getPath() + ".log");
+		try (DataInputStream in = new DataInputStream(new FileInputStream(log))) {
+			byte[] body;
+			while ((body = readRecord(in)) != null) {
+				DataInputStream rec = new DataInputStream(new ByteArrayInputStream(body));
+				byte type = rec.readByte();
+				String name = rec.readUTF();
+				if (type == 1) { // a newer copy of the user
+					users.put(name, (User)new ObjectInputStream(rec).readObject());
+				} else { // the user was removed
+					users.remove(name);
+				}
+			}
+		} catch (FileNotFoundException e) {
+			// no changes since the snapshot
+		} catch (ClassNotFoundException e) {
+			throw new IOException(e);
+		}
+		return users;
+	}
+}
@@ -1,13 +1,12 @@
 package photoalbum.tests;
 
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ObjectOutputStream;
 import java.util.HashMap;
 
 import photoalbum.model.Album;
 import photoalbum.model.Photo;
 import photoalbum.model.User;
+import photoalbum.storage.UserStore;
 
 /**
  * A quick and dirty utility class to generate a set of sample users 
@@ -188,9 +187,7 @@ public class GenerateUsers {
 		u.addAlbum(albums[3]);
 		users.put(usernames[2], u);
 		try {
-			ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream("./users"));
-			oos.writeObject(users);
-			oos.close();
+			new UserStore("./userdata", "./users").rewrite(users);
 			System.out.println("Users generated!");
 		} catch (IOException e) {
 			e.printStackTrace();
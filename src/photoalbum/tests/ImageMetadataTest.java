@@ -0,0 +1,146 @@
+package photoalbum.tests;
+
+import java.awt.geom.AffineTransform;
+import java.awt.image.AffineTransformOp;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import photoalbum.util.ImageMetadata;
+
+/**
+ * Checks that ImageMetadata reads each of the eight EXIF orientations and turns a picture stored
+ * that way upright. The picture is mirrored and then turned, as a JavaFX node applies its scale
+ * before its rotation, and the test checks where the stored first pixel ends up.
+ * @author Paul Warner & Kenny Zhang
+ *
+ */
+public class ImageMetadataTest {
+
+	/**
+	 * Width of the stored test picture.
+	 */
+	static final int WIDTH = 3;
+
+	/**
+	 * Height of the stored test picture.
+	 */
+	static final int HEIGHT = 2;
+
+	/**
+	 * Colour of the stored first pixel.
+	 */
+	static final int MARK = 0xffff0000;
+
+	/**
+	 * Run all tests, stopping at the first failure.
+	 * @param args ignored
+	 */
+	public static void main(String[] args) throws IOException {
+		// where the stored first pixel belongs in the upright picture, by orientation, as {x, y}
+		// with 0 for the left or top edge and 1 for the right or bottom edge
+		int[][] corners = {
+			{0, 0}, // 1: stored upright
+			{1, 0}, // 2: mirrored
+			{1, 1}, // 3: upside down
+			{0, 1}, // 4: flipped
+			{0, 0}, // 5: first row on the left, first column at the top
+			{1, 0}, // 6: first row on the right, first column at the top
+			{1, 1}, // 7: first row on the right, first column at the bottom
+			{0, 1}, // 8: first row on the left, first column at the bottom
+		};
+		File file = File.createTempFile("orientation", ".jpg");
+		file.deleteOnExit();
+		for (int o = 1; o <= 8; o++) {
+			writeJpeg(file, o);
+			ImageMetadata meta = ImageMetadata.read(file);
+			check(meta.getOrientation() == o, "orientation " + o + " is read");
+			BufferedImage upright = orient(stored(), meta.getRotation(), meta.isMirrored());
+			boolean sideways = o >= 5;
+			check(upright.getWidth() == (sideways ? HEIGHT : WIDTH), "orientation " + o + " has the upright width");
+			int x = corners[o - 1][0] * (upright.getWidth() - 1);
+			int y = corners[o - 1][1] * (upright.getHeight() - 1);
+			check(upright.getRGB(x, y) == MARK, "orientation " + o + " puts the first pixel at " + x + ", " + y);
+			if (sideways) // the stored first row runs down the side of the upright picture
+				check(upright.getRGB(x, y == 0 ? 1 : y - 1) == 0xff00ff00, "orientation " + o + " turns rows into columns");
+		}
+		System.out.println("All metadata tests passed!");
+	}
+
+	/**
+	 * @return The stored test picture: the first pixel is marked and the rest of the first row is green.
+	 */
+	static BufferedImage stored() {
+		BufferedImage img = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_ARGB);
+		for (int x = 0; x < WIDTH; x++) {
+			for (int y = 0; y < HEIGHT; y++) {
+				img.setRGB(x, y, 0xff0000ff);
+			}
+			img.setRGB(x, 0, 0xff00ff00);
+		}
+		img.setRGB(0, 0, MARK);
+		return img;
+	}
+
+	/**
+	 * Turn a picture the way a JavaFX node would, mirroring it first and then turning it about its centre.
+	 * @param img The picture.
+	 * @param degrees Degrees to turn it clockwise.
+	 * @param mirrored Whether to mirror it.
+	 * @return The turned picture.
+	 */
+	static BufferedImage orient(BufferedImage img, int degrees, boolean mirrored) {
+		boolean sideways = degrees % 180 != 0;
+		int width = sideways ? img.getHeight() : img.getWidth();
+		int height = sideways ? img.getWidth() : img.getHeight();
+		AffineTransform t = new AffineTransform();
+		t.translate(width / 2.0, height / 2.0);
+		t.rotate(Math.toRadians(degrees));
+		t.scale(mirrored ? -1 : 1, 1);
+		t.translate(-img.getWidth() / 2.0, -img.getHeight() / 2.0);
+		BufferedImage out = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+		new AffineTransformOp(t, AffineTransformOp.TYPE_NEAREST_NEIGHBOR).filter(img, out);
+		return out;
+	}
+
+	/**
+	 * Write the headers of a JPEG file with an EXIF block holding only an orientation.
+	 * @param file The file to write.
+	 * @param orientation The EXIF orientation.
+	 */
+	static void writeJpeg(File file, int orientation) throws IOException {
+		ByteArrayOutputStream exif = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(exif);
+		out.writeBytes("Exif");
+		out.writeShort(0);
+		out.writeBytes("MM"); // big endian TIFF header
+		out.writeShort(42);
+		out.writeInt(8);
+		out.writeShort(1); // one entry
+		out.writeShort(0x0112); // orientation
+		out.writeShort(3); // short
+		out.writeInt(1);
+		out.writeShort(orientation);
+		out.writeShort(0);
+		out.writeInt(0); // no more IFDs
+		try (DataOutputStream jpeg = new DataOutputStream(new FileOutputStream(file))) {
+			jpeg.writeShort(0xffd8);
+			jpeg.writeShort(0xffe1);
+			jpeg.writeShort(exif.size() + 2);
+			exif.writeTo(jpeg);
+			jpeg.writeShort(0xffd9);
+		}
+	}
+
+	/**
+	 * @param ok Whether the check passed.
+	 * @param what What was checked.
+	 */
+	static void check(boolean ok, String what) {
+		if (!ok)
+			throw new AssertionError(what);
+	}
+}
@@ -0,0 +1,96 @@
+package photoalbum.tests;
+
+import java.util.Set;
+
+import photoalbum.model.Album;
+import photoalbum.model.Photo;
+import photoalbum.model.User;
+
+/**
+ * Checks that a kept search result agrees with itself after photos are removed from the user's
+ * albums, and never picks up photos added afterwards.
+ * @author Paul Warner & Kenny Zhang
+ *
+ */
+public class PhotoSetTest {
+
+	/**
+	 * Run all tests, stopping at the first failure.
+	 * @param args ignored
+	 */
+	public static void main(String[] args) {
+		removedAfterSearch();
+		idReused();
+		System.out.println("All photo set tests passed!");
+	}
+
+	/**
+	 * A photo removed after the search is left out of the count, the iteration and contains alike.
+	 */
+	static void removedAfterSearch() {
+		User u = new User("Billy");
+		Album a = new Album("boats");
+		u.addAlbum(a);
+		Photo first = tagged("data/test1.jpg");
+		Photo second = tagged("data/test2.jpg");
+		a.addPhoto(first);
+		a.addPhoto(second);
+		Set<Photo> found = u.findTagged("location", "Westeros");
+		check(found.size() == 2, "both photos are found");
+		a.removePhoto(first);
+		check(found.size() == 1, "removed photo is not counted: " + found.size());
+		check(count(found) == found.size(), "size matches iteration");
+		check(!found.contains(first), "removed photo is not contained");
+		check(found.contains(second), "kept photo is contained");
+		a.removePhoto(second);
+		check(found.isEmpty() && found.size() == 0 && count(found) == 0, "set is empty once every photo is removed");
+	}
+
+	/**
+	 * A photo added under the id of a removed one doesn't show up in a result kept from before.
+	 */
+	static void idReused() {
+		User u = new User("Billy");
+		Album a = new Album("boats");
+		u.addAlbum(a);
+		Photo first = tagged("data/test1.jpg");
+		a.addPhoto(first);
+		Set<Photo> found = u.findTagged("location", "Westeros");
+		a.removePhoto(first);
+		Photo other = tagged("data/test2.jpg");
+		a.addPhoto(other);
+		check(found.size() == 0 && count(found) == 0, "new photo is not counted");
+		check(!found.contains(other), "new photo is not contained");
+	}
+
+	/**
+	 * @param path Path of the photo.
+	 * @return A photo tagged with location Westeros.
+	 */
+	static Photo tagged(String path) {
+		Photo p = new Photo(path);
+		p.setTag("location", "Westeros");
+		return p;
+	}
+
+	/**
+	 * @param photos A set of photos.
+	 * @return The number of photos the set's iterator returns.
+	 */
+	static int count(Set<Photo> photos) {
+		int n = 0;
+		for (@SuppressWarnings("unused") Photo p : photos) {
+			n++;
+		}
+		return n;
+	}
+
+	/**
+	 * @param ok Whether the check passed.
+	 * @param what What was checked.
+	 */
+	static void check(boolean ok, String what) {
+		if (!ok)
+			throw new AssertionError(what);
+	}
+}
@@ -0,0 +1,373 @@
+package photoalbum.tests;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+import photoalbum.model.Album;
+import photoalbum.model.Photo;
+import photoalbum.model.User;
+import photoalbum.storage.UserStore;
+
+/**
+ * Checks that UserStore reads back what it writes, recovers from a damaged or cut off segment,
+ * keeps segments from growing without bound and moves users out of the old single file format.
+ * Also checks that the photos of a loaded user, which are read from the store as they are needed,
+ * stay consistent between albums and searches.
+ * Run from the project directory, since the test photos use relative paths.
+ * @author Paul Warner & Kenny Zhang
+ *
+ */
+public class UserStoreTest {
+
+	/**
+	 * Directory every test stores its users in. Emptied before each test.
+	 */
+	static File dir = new File(System.getProperty("java.io.tmpdir"), "photoalbum-store-test");
+
+	/**
+	 * Run all tests, stopping at the first failure.
+	 * @param args ignored
+	 */
+	public static void main(String[] args) throws Exception {
+		roundTrip();
+		appendAndReload();
+		truncatedTail();
+		damagedRecord();
+		compaction();
+		legacyMigration();
+		legacyRecord();
+		sharedPhotoEdits();
+		searchUnopened();
+		System.out.println("All store tests passed!");
+	}
+
+	/**
+	 * A saved user loads back with the same albums, photos, captions and tags.
+	 */
+	static void roundTrip() throws IOException {
+		UserStore store = newStore();
+		save(store, sample("Billy"));
+		User u = reopen().load("Billy");
+		check(u != null, "user loads");
+		Album a = u.getAlbum("boats");
+		check(a != null && a.getPhotoCount() == 2, "album and photos load");
+		Photo p = a.getPhotos().iterator().next();
+		check(p.getCaption().equals("a fun day at the park"), "caption loads");
+		check("Westeros".equals(p.getTagValue("location")), "tag loads");
+	}
+
+	/**
+	 * A changed user is appended to its segment, and the newest copy is the one that loads.
+	 */
+	static void appendAndReload() throws IOException {
+		UserStore store = newStore();
+		HashMap<String, User> users = sample("Billy");
+		save(store, users);
+		long first = segment().length();
+		caption(users.get("Billy"), "changed");
+		save(store, users);
+		check(segment().length() > first, "second copy is appended");
+		check(caption(reopen().load("Billy")).equals("changed"), "newest copy loads");
+	}
+
+	/**
+	 * A copy cut off part way through is dropped, and the copy before it loads.
+	 */
+	static void truncatedTail() throws IOException {
+		UserStore store = newStore();
+		HashMap<String, User> users = sample("Billy");
+		save(store, users);
+		long first = segment().length();
+		caption(users.get("Billy"), "changed");
+		save(store, users);
+		try (RandomAccessFile raf = new RandomAccessFile(segment(), "rw")) {
+			raf.setLength(raf.length() - 5);
+		}
+		check(caption(reopen().load("Billy")).equals("a fun day at the park"), "copy before the cut loads");
+		check(segment().length() == first, "cut off copy is removed from the segment");
+	}
+
+	/**
+	 * A copy whose checksum doesn't match is skipped, and the copy before it loads.
+	 */
+	static void damagedRecord() throws IOException {
+		UserStore store = newStore();
+		HashMap<String, User> users = sample("Billy");
+		save(store, users);
+		long first = segment().length();
+		caption(users.get("Billy"), "changed");
+		save(store, users);
+		try (RandomAccessFile raf = new RandomAccessFile(segment(), "rw")) {
+			long pos = first + (raf.length() - first) / 2;
+			raf.seek(pos);
+			int b = raf.read();
+			raf.seek(pos);
+			raf.write(b ^ 0xff);
+		}
+		check(caption(reopen().load("Billy")).equals("a fun day at the park"), "copy before the damage loads");
+	}
+
+	/**
+	 * Saving over and over rewrites the segment instead of letting it grow forever.
+	 */
+	static void compaction() throws IOException {
+		UserStore store = newStore();
+		HashMap<String, User> users = sample("Billy");
+		save(store, users);
+		long record = segment().length();
+		long bound = 256 * 1024;
+		long saves = 4 * bound / record + 1;
+		for (int i = 0; i < saves; i++) {
+			caption(users.get("Billy"), "caption " + i);
+			save(store, users);
+		}
+		check(segment().length() < bound, "segment stays small: " + segment().length());
+		check(caption(reopen().load("Billy")).equals("caption " + (saves - 1)), "last copy loads after compaction");
+	}
+
+	/**
+	 * Users in the old single save file, and the log of changes after it, are moved into segments.
+	 */
+	static void legacyMigration() throws IOException {
+		clear();
+		File legacy = new File(dir, "users");
+		try (ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(legacy))) {
+			out.writeObject(sample("Billy"));
+		}
+		User cindy = sample("Cindy").get("Cindy");
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		DataOutputStream rec = new DataOutputStream(body);
+		rec.writeByte(1); // a newer copy of the user
+		rec.writeUTF("Cindy");
+		ObjectOutputStream obj = new ObjectOutputStream(rec);
+		obj.writeObject(cindy);
+		obj.flush();
+		try (FileOutputStream log = new FileOutputStream(legacy.getPath() + ".log")) {
+			log.write(frame(body.toByteArray()));
+		}
+		UserStore store = new UserStore(new File(dir, "userdata").getPath(), legacy.getPath());
+		check(store.open().size() == 2, "both users are moved");
+		check(store.load("Billy") != null && store.load("Cindy") != null, "moved users load");
+		check(!legacy.exists() && new File(legacy.getPath() + ".bak").exists(), "old file is kept as a backup");
+		check(reopen().load("Cindy").getAlbum("boats") != null, "moved users load after reopening");
+	}
+
+	/**
+	 * A user whose segment still holds a java serialized record can be saved, and the save rewrites
+	 * it in the current format.
+	 */
+	static void legacyRecord() throws IOException {
+		clear();
+		File data = new File(dir, "userdata");
+		data.mkdirs();
+		try (DataOutputStream out = new DataOutputStream(new FileOutputStream(new File(data, "index")))) {
+			out.writeInt(0x50415549);
+			out.writeInt(1);
+			out.writeUTF("Billy");
+		}
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		try (ObjectOutputStream obj = new ObjectOutputStream(body)) {
+			obj.writeObject(sample("Billy").get("Billy"));
+		}
+		try (FileOutputStream seg = new FileOutputStream(new File(data, "42696c6c79.seg"))) {
+			seg.write(frame(body.toByteArray()));
+		}
+		UserStore store = reopen();
+		User u = store.load("Billy");
+		check(u != null && caption(u).equals("a fun day at the park"), "serialized record loads");
+		HashMap<String, User> users = new HashMap<String, User>();
+		users.put("Billy", u);
+		long before = segment().length();
+		save(store, users);
+		check(segment().length() != before, "serialized record is rewritten");
+		caption(u, "changed");
+		save(store, users);
+		check(caption(reopen().load("Billy")).equals("changed"), "changes to a serialized record are saved");
+	}
+
+	/**
+	 * A photo shared by two albums and changed through one of them is seen changed through the
+	 * other, even once the first no longer holds it, and the tags of the other album agree before
+	 * it is opened.
+	 */
+	static void sharedPhotoEdits() throws IOException {
+		UserStore store = newStore();
+		HashMap<String, User> users = sample("Billy");
+		User u = users.get("Billy");
+		Album park = new Album("park");
+		for (Photo p : u.getAlbum("boats").getPhotos()) {
+			if (p.getTagValue("location") != null)
+				park.addPhoto(p);
+		}
+		u.addAlbum(park);
+		save(store, users);
+		u = reopen().load("Billy");
+		Album boats = u.getAlbum("boats");
+		Photo shared = null;
+		for (Photo p : boats.getPhotos()) {
+			if (p.getTagValue("location") != null)
+				shared = p;
+		}
+		shared.removeTag("location");
+		shared.setTag("place", "Winterfell");
+		boats.removePhoto(shared);
+		shared = null;
+		System.gc();
+		check(u.getAlbum("park").getAllTags().contains("place")
+				&& !u.getAlbum("park").getAllTags().contains("location"), "unopened album sees the new tags");
+		Photo p = u.getAlbum("park").getPhotos().iterator().next();
+		check("Winterfell".equals(p.getTagValue("place")), "opened album sees the changed photo");
+	}
+
+	/**
+	 * Searches find photos of albums that haven't been opened, and agree with the albums once
+	 * they are.
+	 */
+	static void searchUnopened() throws IOException {
+		UserStore store = newStore();
+		save(store, sample("Billy"));
+		User u = reopen().load("Billy");
+		Set<Photo> found = u.findTagged("location", "Westeros");
+		check(found.size() == 1, "search finds the tagged photo");
+		Photo p = found.iterator().next();
+		check(u.getAlbum("boats").getPhotos().contains(p), "found photo is the one in the album");
+		check(u.getAlbum("boats").getAllTags().contains("location"), "album tags come from the index");
+		p.setTag("location", "Essos");
+		check(u.findTagged("location", "Westeros").isEmpty() && u.findTagged("location", "Essos").size() == 1,
+				"changed tag is indexed");
+		check(u.importPhoto(p.getPhotoPath()) == p, "imported file is the stored photo");
+	}
+
+	/**
+	 * @param name A username.
+	 * @return A map holding a single user with one album of two photos, one of them captioned and tagged.
+	 */
+	static HashMap<String, User> sample(String name) {
+		Photo tagged = new Photo("data/test1.jpg");
+		tagged.setCaption("a fun day at the park");
+		tagged.setTag("location", "Westeros");
+		Album a = new Album("boats");
+		a.addPhoto(tagged);
+		a.addPhoto(new Photo("data/test2.jpg"));
+		User u = new User(name);
+		u.addAlbum(a);
+		HashMap<String, User> users = new HashMap<String, User>();
+		users.put(name, u);
+		return users;
+	}
+
+	/**
+	 * @param u A user made by sample.
+	 * @return The caption of the user's tagged photo.
+	 */
+	static String caption(User u) {
+		for (Photo p : u.getAlbum("boats").getPhotos()) {
+			if (p.getTagValue("location") != null)
+				return p.getCaption();
+		}
+		throw new AssertionError("tagged photo is missing");
+	}
+
+	/**
+	 * Change the caption of a user's tagged photo.
+	 * @param u A user made by sample.
+	 * @param caption The new caption.
+	 */
+	static void caption(User u, String caption) {
+		for (Photo p : u.getAlbum("boats").getPhotos()) {
+			if (p.getTagValue("location") != null)
+				p.setCaption(caption);
+		}
+	}
+
+	/**
+	 * Save every changed user, as the program does in the background.
+	 * @param store The store.
+	 * @param users All users.
+	 */
+	static void save(UserStore store, HashMap<String, User> users) throws IOException {
+		store.prepare(users, users.keySet()).write();
+	}
+
+	/**
+	 * @return An opened store in an empty directory.
+	 */
+	static UserStore newStore() {
+		clear();
+		UserStore store = new UserStore(new File(dir, "userdata").getPath(), new File(dir, "users").getPath());
+		store.open();
+		return store;
+	}
+
+	/**
+	 * @return A new store opened over the same directory, as if the program had been restarted.
+	 */
+	static UserStore reopen() {
+		UserStore store = new UserStore(new File(dir, "userdata").getPath(), new File(dir, "users").getPath());
+		store.open();
+		return store;
+	}
+
+	/**
+	 * @return The only segment in the store.
+	 */
+	static File segment() {
+		File[] segments = new File(dir, "userdata").listFiles((d, name) -> name.endsWith(".seg"));
+		check(segments != null && segments.length == 1, "store has one segment");
+		return segments[0];
+	}
+
+	/**
+	 * Frame a record body the way the store does, with its length and a checksum.
+	 * @param body The record body.
+	 * @return The framed record.
+	 */
+	static byte[] frame(byte[] body) throws IOException {
+		CRC32 crc = new CRC32();
+		crc.update(body);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(body.length);
+		out.write(body);
+		out.writeInt((int)crc.getValue());
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Delete everything in the test directory.
+	 */
+	static void clear() {
+		delete(dir);
+		dir.mkdirs();
+	}
+
+	/**
+	 * @param f A file or directory to delete, with everything in it.
+	 */
+	static void delete(File f) {
+		File[] children = f.listFiles();
+		if (children != null) {
+			for (File c : children) {
+				delete(c);
+			}
+		}
+		f.delete();
+	}
+
+	/**
+	 * @param ok Whether the check passed.
+	 * @param what What was checked.
+	 */
+	static void check(boolean ok, String what) {
+		if (!ok)
+			throw new AssertionError(what);
+	}
+}
@@ -0,0 +1,157 @@
+package photoalbum.util;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A BK-tree of 64 bit hashes, for finding all values whose hash differs from a given one in at
+ * most a few bits. Each child of a node holds the values at one particular distance from the
+ * node, so by the triangle inequality a search only has to visit children whose distance is
+ * within the search radius of the query's own distance to the node, and skips the rest of the tree.
+ * @author Paul Warner & Kenny Zhang
+ *
+ */
+public final class BKTree<T> {
+
+	/**
+	 * A single value in the tree.
+	 */
+	private static final class Node<T> {
+		/**
+		 * Hash of the value.
+		 */
+		final long hash;
+
+		/**
+		 * The value.
+		 */
+		final T value;
+
+		/**
+		 * Distance from this node of each child, in the same order as children.
+		 */
+		int[] distances = new int[0];
+
+		/**
+		 * Children of this node.
+		 */
+		Node<?>[] children = new Node<?>[0];
+
+		Node(long hash, T value) {
+			this.hash = hash;
+			this.value = value;
+		}
+
+		/**
+		 * @param distance A distance from this node.
+		 * @return The child at that distance, or null if there is none.
+		 */
+		@SuppressWarnings("unchecked")
+		Node<T> child(int distance) {
+			for (int i = 0; i < distances.length; i++) {
+				if (distances[i] == distance)
+					return (Node<T>)children[i];
+			}
+			return null;
+		}
+
+		/**
+		 * @param distance The distance of a new child from this node.
+		 * @param child The child.
+		 */
+		void addChild(int distance, Node<T> child) {
+			distances = Arrays.copyOf(distances, distances.length + 1);
+			children = Arrays.copyOf(children, children.length + 1);
+			distances[distances.length - 1] = distance;
+			children[children.length - 1] = child;
+		}
+	}
+
+	/**
+	 * The first value added, or null if the tree is empty.
+	 */
+	private Node<T> root;
+
+	/**
+	 * Number of values in the tree.
+	 */
+	private int size;
+
+	/**
+	 * @param a A hash.
+	 * @param b Another hash.
+	 * @return The number of bits that differ between the two.
+	 */
+	public static int distance(long a, long b) {
+		return Long.bitCount(a ^ b);
+	}
+
+	/**
+	 * Add a value. Values with the same hash are all kept.
+	 * @param hash The hash of the value.
+	 * @param value The value.
+	 */
+	public void add(long hash, T value) {
+		Node<T> node = new Node<T>(hash, value);
+		size++;
+		if (root == null) {
+			root = node;
+			return;
+		}
+		Node<T> n = root;
+		while (true) {
+			int d = distance(n.hash, hash);
+			Node<T> child = n.child(d);
+			if (child == null) {
+				n.addChild(d, node);
+				return;
+			}
+			n = child;
+		}
+	}
+
+	/**
+	 * @return The number of values in the tree.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Find every value whose hash is within a distance of the given one.
+	 * @param hash The hash to search around.
+	 * @param maxDistance The largest number of bits that may differ.
+	 * @return The values found, closest first.
+	 */
+	@SuppressWarnings("unchecked")
+	public List<T> find(long hash, int maxDistance) {
+		List<Node<T>> found = new ArrayList<Node<T>>();
+		if (root == null)
+			return new ArrayList<T>();
+		ArrayDeque<Node<T>> stack = new ArrayDeque<Node<T>>();
+		stack.push(root);
+		while (!stack.isEmpty()) {
+			Node<T> n = stack.pop();
+			int d = distance(n.hash, hash);
+			if (d <= maxDistance)
+				found.add(n);
+			for (int i = 0; i < n.distances.length; i++) {
+				if (Math.abs(n.distances[i] - d) <= maxDistance)
+					stack.push((Node<T>)n.children[i]);
+			}
+		}
+		found.sort((a, b) -> distance(a.hash, hash) - distance(b.hash, hash));
+		List<T> result = new ArrayList<T>(found.size());
+		for (Node<T> n : found) {
+			result.add(n.value);
+		}
+		return result;
+	}
+
+	@Override
+	public String toString() {
+		return "BKTree[" + size + " values]";
+	}
+}
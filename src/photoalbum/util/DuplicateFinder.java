@@ -0,0 +1,502 @@
+package photoalbum.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import javafx.application.Platform;
+import photoalbum.model.Photo;
+
+/**
+ * Finds photos whose files have exactly the same contents, such as the same picture imported twice
+ * under different names. Files are compared in three passes so that most are never read in full:
+ * first by size, then by a hash of their first and last few KB, and only files that still match
+ * are hashed completely with SHA-256. Hashes are stored on disk with the size and last-modified
+ * time of each file, so files that haven't changed are never read again. All file access runs on a
+ * small fixed number of threads, which keeps several reads in flight without making the disk seek
+ * between dozens of files at once.
+ * @author Paul Warner & Kenny Zhang
+ *
+ */
+public class DuplicateFinder {
+
+	/**
+	 * Default file the hashes are stored in, next to the users save file.
+	 */
+	public static final String DEFAULT_PATH = "./hashes";
+
+	/**
+	 * Number of bytes read from each end of a file for the quick check.
+	 */
+	private static final int SAMPLE_BYTES = 4096;
+
+	/**
+	 * Number of files read at the same time.
+	 */
+	private static final int THREADS = 4;
+
+	/**
+	 * First four bytes of the hash file, followed by its version.
+	 */
+	private static final int MAGIC = 0x50414448; // "PADH"
+
+	/**
+	 * Version of the hash file written by this class.
+	 */
+	private static final int VERSION = 1;
+
+	/**
+	 * The finder shared by the whole program.
+	 */
+	private static DuplicateFinder instance;
+
+	/**
+	 * File the hashes are stored in.
+	 */
+	private final File file;
+
+	/**
+	 * Executor that reads and hashes files.
+	 */
+	private final ExecutorService readers;
+
+	/**
+	 * Executor that runs whole searches, one at a time, so the caller doesn't have to wait.
+	 */
+	private final ExecutorService searches;
+
+	/**
+	 * Stored hashes by canonical path, or null until they are first needed.
+	 */
+	private HashMap<String, Entry> entries;
+
+	/**
+	 * Whether entries has changed since it was last written.
+	 */
+	private boolean dirty;
+
+	/**
+	 * The stored hashes of a single file.
+	 */
+	private static class Entry {
+		/**
+		 * Size of the file in bytes when it was hashed.
+		 */
+		final long size;
+
+		/**
+		 * Last-modified time of the file when it was hashed.
+		 */
+		final long modified;
+
+		/**
+		 * Hash of the first and last SAMPLE_BYTES of the file.
+		 */
+		final byte[] sample;
+
+		/**
+		 * Hash of the whole file, or null if it hasn't been needed yet.
+		 */
+		byte[] full;
+
+		Entry(long size, long modified, byte[] sample, byte[] full) {
+			this.size = size;
+			this.modified = modified;
+			this.sample = sample;
+			this.full = full;
+		}
+	}
+
+	/**
+	 * A file being compared, with every photo that points to it.
+	 */
+	private static class Candidate {
+		/**
+		 * Canonical path of the file.
+		 */
+		final String path;
+
+		/**
+		 * Photos pointing to the file, in the order they were given.
+		 */
+		final List<Photo> photos = new ArrayList<Photo>();
+
+		/**
+		 * Size of the file in bytes.
+		 */
+		long size;
+
+		/**
+		 * Last-modified time of the file.
+		 */
+		long modified;
+
+		/**
+		 * The file's stored hashes, or null until its sample has been hashed.
+		 */
+		Entry entry;
+
+		Candidate(String path) {
+			this.path = path;
+		}
+	}
+
+	/**
+	 * Create a new finder storing its hashes in the given file.
+	 * @param path The file hashes are stored in. It is created the first time hashes are saved.
+	 */
+	public DuplicateFinder(String path) {
+		this.file = new File(path);
+		readers = new ThreadPoolExecutor(THREADS, THREADS, 0L, TimeUnit.MILLISECONDS,
+				new LinkedBlockingQueue<Runnable>(), (r) -> {
+					Thread t = new Thread(r, "duplicate-reader");
+					t.setDaemon(true);
+					return t;
+				});
+		searches = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+				(r) -> {
+					Thread t = new Thread(r, "duplicate-finder");
+					t.setDaemon(true);
+					return t;
+				});
+	}
+
+	/**
+	 * @return The finder shared by the whole program.
+	 */
+	public static synchronized DuplicateFinder getInstance() {
+		if (instance == null) {
+			instance = new DuplicateFinder(DEFAULT_PATH);
+		}
+		return instance;
+	}
+
+	/**
+	 * Look for duplicates in the background.
+	 * @param photos The photos to compare.
+	 * @param callback Receives the groups of duplicates on the JavaFX thread, as returned by find.
+	 */
+	public void findLater(Collection<Photo> photos, Consumer<List<List<Photo>>> callback) {
+		List<Photo> copy = new ArrayList<Photo>(photos);
+		searches.submit(() -> {
+			List<List<Photo>> groups = find(copy);
+			Platform.runLater(() -> callback.accept(groups));
+		});
+	}
+
+	/**
+	 * Find all groups of photos whose files have the same contents. Files that can't be read are
+	 * left out. Photos pointing to the very same file are always in the same group.
+	 * @param photos The photos to compare.
+	 * @return Each group of two or more photos with the same contents, with the photos of each
+	 * group and the groups themselves in the order the photos were given.
+	 */
+	public List<List<Photo>> find(Collection<Photo> photos) {
+		List<Candidate> files = stat(photos);
+
+		List<Candidate> sampled = new ArrayList<Candidate>();
+		for (List<Candidate> sameSize : group(files, (c) -> c.size)) {
+			sampled.addAll(sameSize);
+		}
+		hash(sampled, false);
+
+		List<Candidate> hashed = new ArrayList<Candidate>();
+		for (List<Candidate> sameSample : group(sampled, (c) -> c.entry == null ? null
+				: c.size + ":" + Arrays.toString(c.entry.sample))) {
+			hashed.addAll(sameSample);
+		}
+		hash(hashed, true);
+
+		List<List<Photo>> result = new ArrayList<List<Photo>>();
+		Set<Candidate> grouped = Collections.newSetFromMap(new IdentityHashMap<Candidate, Boolean>());
+		for (List<Candidate> same : group(hashed, (c) -> c.entry == null || c.entry.full == null ? null
+				: Arrays.toString(c.entry.full))) {
+			List<Photo> group = new ArrayList<Photo>();
+			for (Candidate c : same) {
+				group.addAll(c.photos);
+				grouped.add(c);
+			}
+			result.add(group);
+		}
+		for (Candidate c : files) {
+			if (c.photos.size() > 1 && !grouped.contains(c))
+				result.add(c.photos); // the same file added more than once
+		}
+		save();
+		IdentityHashMap<Photo, Integer> position = new IdentityHashMap<Photo, Integer>();
+		for (Photo p : photos) {
+			position.putIfAbsent(p, position.size());
+		}
+		for (List<Photo> group : result) {
+			group.sort((a, b) -> position.get(a) - position.get(b));
+		}
+		result.sort((a, b) -> position.get(a.get(0)) - position.get(b.get(0)));
+		return result;
+	}
+
+	/**
+	 * Find the file of each photo along with its size and last-modified time, reading them in parallel.
+	 * @param photos The photos.
+	 * @return Every file that exists, in the order their photos were given.
+	 */
+	private List<Candidate> stat(Collection<Photo> photos) {
+		LinkedHashMap<String, Candidate> files = new LinkedHashMap<String, Candidate>();
+		List<Callable<Candidate>> tasks = new ArrayList<Callable<Candidate>>();
+		for (Photo p : photos) {
+			tasks.add(() -> {
+				Candidate c = new Candidate(new File(p.getPhotoPath()).getCanonicalPath());
+				BasicFileAttributes attrs = Files.readAttributes(new File(c.path).toPath(), BasicFileAttributes.class);
+				if (!attrs.isRegularFile())
+					return null;
+				c.size = attrs.size();
+				c.modified = attrs.lastModifiedTime().toMillis();
+				c.photos.add(p);
+				return c;
+			});
+		}
+		for (Candidate c : run(tasks)) {
+			if (c == null)
+				continue;
+			Candidate old = files.putIfAbsent(c.path, c);
+			if (old != null)
+				old.photos.addAll(c.photos);
+		}
+		return new ArrayList<Candidate>(files.values());
+	}
+
+	/**
+	 * Hash files in parallel, using stored hashes wherever the file hasn't changed. Files that
+	 * can't be read are left with no entry.
+	 * @param files The files to hash.
+	 * @param full Whether to hash whole files, rather than just the sample at each end.
+	 */
+	private void hash(List<Candidate> files, boolean full) {
+		List<Callable<Candidate>> tasks = new ArrayList<Callable<Candidate>>();
+		for (Candidate c : files) {
+			Entry stored = stored(c);
+			if (stored != null && (!full || stored.full != null)) {
+				c.entry = stored;
+				continue;
+			}
+			tasks.add(() -> {
+				if (full) {
+					c.entry.full = digest(c.path, 0, c.size);
+				} else {
+					byte[] sample = digest(c.path, 0, Math.min(c.size, SAMPLE_BYTES));
+					if (c.size > SAMPLE_BYTES) {
+						long tail = Math.max(SAMPLE_BYTES, c.size - SAMPLE_BYTES);
+						byte[] end = digest(c.path, tail, c.size - tail);
+						sample = Arrays.copyOf(sample, sample.length + end.length);
+						System.arraycopy(end, 0, sample, sample.length - end.length, end.length);
+					}
+					// the sample of a file this small covers all of it
+					c.entry = new Entry(c.size, c.modified, sample, c.size <= 2 * SAMPLE_BYTES ? sample : null);
+				}
+				return c;
+			});
+		}
+		for (Candidate c : run(tasks)) {
+			if (c != null)
+				store(c);
+		}
+		for (Candidate c : files) {
+			if (c.entry != null && full && c.entry.full == null)
+				c.entry = null;
+		}
+	}
+
+	/**
+	 * Hash part of a file.
+	 * @param path The file.
+	 * @param from Offset of the first byte to hash.
+	 * @param length Number of bytes to hash.
+	 * @return The SHA-256 hash of those bytes.
+	 * @throws IOException If the file can't be read.
+	 */
+	private static byte[] digest(String path, long from, long length) throws IOException {
+		MessageDigest md;
+		try {
+			md = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+		ByteBuffer buf = ByteBuffer.allocate((int)Math.min(64 * 1024, Math.max(length, 1)));
+		try (FileChannel ch = FileChannel.open(new File(path).toPath(), StandardOpenOption.READ)) {
+			long pos = from;
+			long end = from + length;
+			while (pos < end) {
+				buf.clear();
+				buf.limit((int)Math.min(buf.capacity(), end - pos));
+				int n = ch.read(buf, pos);
+				if (n < 0)
+					throw new IOException(path + " changed while it was being read");
+				buf.flip();
+				md.update(buf);
+				pos += n;
+			}
+		}
+		return md.digest();
+	}
+
+	/**
+	 * Run tasks on the readers and collect their results. Tasks that fail give null.
+	 * @param tasks The tasks.
+	 * @return The result of each task, in order.
+	 */
+	private <T> List<T> run(List<Callable<T>> tasks) {
+		List<T> results = new ArrayList<T>(tasks.size());
+		try {
+			for (Future<T> f : readers.invokeAll(tasks)) {
+				try {
+					results.add(f.get());
+				} catch (ExecutionException e) {
+					results.add(null); // unreadable files simply can't be compared
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		return results;
+	}
+
+	/**
+	 * Group files by a key, keeping only groups of two or more.
+	 * @param files The files.
+	 * @param key Gives the key of each file, or null to leave it out.
+	 * @return The groups, in the order of their first file.
+	 */
+	private static List<List<Candidate>> group(List<Candidate> files, Function<Candidate, Object> key) {
+		LinkedHashMap<Object, List<Candidate>> groups = new LinkedHashMap<Object, List<Candidate>>();
+		for (Candidate c : files) {
+			Object k = key.apply(c);
+			if (k != null)
+				groups.computeIfAbsent(k, (x) -> new ArrayList<Candidate>()).add(c);
+		}
+		List<List<Candidate>> result = new ArrayList<List<Candidate>>();
+		for (List<Candidate> g : groups.values()) {
+			if (g.size() > 1)
+				result.add(g);
+		}
+		return result;
+	}
+
+	/**
+	 * @param c A file.
+	 * @return The stored hashes of the file if it hasn't changed since they were made, otherwise null.
+	 */
+	private synchronized Entry stored(Candidate c) {
+		Entry e = entries().get(c.path);
+		return e != null && e.size == c.size && e.modified == c.modified ? e : null;
+	}
+
+	/**
+	 * Store the hashes of a file.
+	 * @param c The file, with its new entry.
+	 */
+	private synchronized void store(Candidate c) {
+		entries().put(c.path, c.entry);
+		dirty = true;
+	}
+
+	/**
+	 * Get all stored hashes, reading the hash file the first time they are needed. A missing or
+	 * damaged file just means every file has to be hashed again.
+	 * @return Stored hashes by canonical path.
+	 */
+	private HashMap<String, Entry> entries() {
+		if (entries != null)
+			return entries;
+		entries = new HashMap<String, Entry>();
+		if (!file.exists())
+			return entries;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			if (in.readInt() != MAGIC || in.readByte() != VERSION)
+				return entries;
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				String path = in.readUTF();
+				long size = in.readLong();
+				long modified = in.readLong();
+				byte[] sample = new byte[in.readUnsignedByte()];
+				in.readFully(sample);
+				byte[] full = null;
+				int fullLength = in.readUnsignedByte();
+				if (fullLength > 0) {
+					full = new byte[fullLength];
+					in.readFully(full);
+				}
+				entries.put(path, new Entry(size, modified, sample, full));
+			}
+		} catch (IOException e) {
+			entries.clear();
+		}
+		return entries;
+	}
+
+	/**
+	 * Write the stored hashes to the hash file if they have changed. Failure to write is not an
+	 * error, the files are simply hashed again next time.
+	 */
+	private synchronized void save() {
+		if (!dirty)
+			return;
+		try {
+			File dir = file.getAbsoluteFile().getParentFile();
+			dir.mkdirs();
+			File tmp = File.createTempFile(file.getName(), ".tmp", dir);
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+				out.writeInt(MAGIC);
+				out.writeByte(VERSION);
+				out.writeInt(entries.size());
+				for (Map.Entry<String, Entry> me : entries.entrySet()) {
+					Entry e = me.getValue();
+					out.writeUTF(me.getKey());
+					out.writeLong(e.size);
+					out.writeLong(e.modified);
+					out.writeByte(e.sample.length);
+					out.write(e.sample);
+					out.writeByte(e.full == null ? 0 : e.full.length);
+					if (e.full != null)
+						out.write(e.full);
+				}
+			}
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+			dirty = false;
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+}
@@ -0,0 +1,375 @@
+package photoalbum.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javafx.application.Platform;
+import photoalbum.model.Album;
+import photoalbum.model.Photo;
+import photoalbum.model.User;
+
+/**
+ * Imports every picture in a folder and its subfolders into an album in the background. One
+ * thread walks the folder tree and hands the pictures it finds to a few worker threads through a
+ * short queue, so the walk never gets far ahead of the work. The workers create each photo, which
+ * reads its date from the file's EXIF data, work out its visual hash and store its thumbnail.
+ * Finished photos are added to the album on the JavaFX thread in batches, so the view is
+ * refreshed once per batch rather than once per photo.
+ * An import can be cancelled at any time; photos already added stay in the album, and once it has
+ * been cancelled on the JavaFX thread no more photos are added.
+ * @author Paul Warner & Kenny Zhang
+ *
+ */
+public class FolderImporter {
+
+	/**
+	 * File extensions of the pictures that are imported.
+	 */
+	private static final String[] EXTENSIONS = { ".png", ".jpg", ".jpeg", ".gif", ".jpe" };
+
+	/**
+	 * Number of threads preparing photos. Decoding is mostly CPU bound, so there is little point
+	 * in having more threads than cores.
+	 */
+	private static final int THREADS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() - 1));
+
+	/**
+	 * Number of found pictures that may wait for a worker before the walk pauses.
+	 */
+	private static final int QUEUE_SIZE = 256;
+
+	/**
+	 * Number of finished photos that are added to the album at once.
+	 */
+	private static final int BATCH_SIZE = 100;
+
+	/**
+	 * Longest time finished photos wait before they are added, in milliseconds.
+	 */
+	private static final long BATCH_MILLIS = 250;
+
+	/**
+	 * Marks the end of the walk in the queue.
+	 */
+	private static final Path END = new File("").toPath();
+
+	/**
+	 * The user the photos are imported for.
+	 */
+	private final User user;
+
+	/**
+	 * The album the photos are added to.
+	 */
+	private final Album album;
+
+	/**
+	 * The folder being imported.
+	 */
+	private final Path root;
+
+	/**
+	 * Width and height of the thumbnails stored for each photo.
+	 */
+	private final int thumbnailSize;
+
+	/**
+	 * Pictures found by the walk and not yet taken by a worker.
+	 */
+	private final BlockingQueue<Path> found = new ArrayBlockingQueue<Path>(QUEUE_SIZE);
+
+	/**
+	 * Photos prepared by the workers and not yet added to the album.
+	 */
+	private final ConcurrentLinkedQueue<Photo> ready = new ConcurrentLinkedQueue<Photo>();
+
+	/**
+	 * Whether an update of the album has been posted to the JavaFX thread and not run yet.
+	 */
+	private final AtomicBoolean flushPending = new AtomicBoolean();
+
+	/**
+	 * Time the album was last updated, from System.nanoTime.
+	 */
+	private volatile long lastFlush = System.nanoTime();
+
+	/**
+	 * Number of pictures found so far.
+	 */
+	private final AtomicInteger foundCount = new AtomicInteger();
+
+	/**
+	 * Number of pictures prepared so far.
+	 */
+	private final AtomicInteger preparedCount = new AtomicInteger();
+
+	/**
+	 * Number of workers that are still running.
+	 */
+	private final AtomicInteger running = new AtomicInteger();
+
+	/**
+	 * Number of photos added to the album. Only used on the JavaFX thread.
+	 */
+	private int addedCount;
+
+	/**
+	 * Whether the walk has finished.
+	 */
+	private volatile boolean walked;
+
+	/**
+	 * Whether the import has been cancelled.
+	 */
+	private volatile boolean cancelled;
+
+	/**
+	 * Run on the JavaFX thread after each batch is added.
+	 */
+	private Runnable onBatch;
+
+	/**
+	 * Run on the JavaFX thread once the import is over.
+	 */
+	private Runnable onFinish;
+
+	/**
+	 * Create an import of a folder. Nothing happens until start is called.
+	 * @param user The user the photos are imported for.
+	 * @param album The album to add the photos to.
+	 * @param folder The folder to import.
+	 * @param thumbnailSize Width and height of the thumbnails to store for each photo.
+	 */
+	public FolderImporter(User user, Album album, File folder, int thumbnailSize) {
+		this.user = user;
+		this.album = album;
+		this.root = folder.toPath();
+		this.thumbnailSize = thumbnailSize;
+	}
+
+	/**
+	 * Start the import in the background. Must be called on the JavaFX thread.
+	 * @param onBatch Run on the JavaFX thread after each batch of photos is added to the album.
+	 * @param onFinish Run on the JavaFX thread once the import has finished or been cancelled.
+	 */
+	public void start(Runnable onBatch, Runnable onFinish) {
+		this.onBatch = onBatch;
+		this.onFinish = onFinish;
+		running.set(THREADS);
+		for (int i = 0; i < THREADS; i++) {
+			Thread t = new Thread(this::work, "folder-importer-" + (i + 1));
+			t.setDaemon(true);
+			t.setPriority(Thread.NORM_PRIORITY - 1);
+			t.start();
+		}
+		Thread walker = new Thread(this::walk, "folder-walker");
+		walker.setDaemon(true);
+		walker.start();
+	}
+
+	/**
+	 * Stop the import. Photos already added to the album stay there.
+	 */
+	public void cancel() {
+		cancelled = true;
+	}
+
+	/**
+	 * @return Whether the import has been cancelled.
+	 */
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	/**
+	 * @return Whether the whole folder tree has been walked, so that getFound is final.
+	 */
+	public boolean isWalked() {
+		return walked;
+	}
+
+	/**
+	 * @return Number of pictures found so far.
+	 */
+	public int getFound() {
+		return foundCount.get();
+	}
+
+	/**
+	 * @return Number of pictures looked at so far.
+	 */
+	public int getPrepared() {
+		return preparedCount.get();
+	}
+
+	/**
+	 * @return Number of photos added to the album so far. Pictures already in the album aren't counted.
+	 */
+	public int getAdded() {
+		return addedCount;
+	}
+
+	/**
+	 * Walk the folder tree, handing each picture to the workers.
+	 */
+	private void walk() {
+		try {
+			Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+				@Override
+				public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+					if (cancelled)
+						return FileVisitResult.TERMINATE;
+					if (attrs.isRegularFile() && isPicture(file)) {
+						foundCount.incrementAndGet();
+						if (!offer(file))
+							return FileVisitResult.TERMINATE;
+					}
+					return FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult visitFileFailed(Path file, IOException e) {
+					return cancelled ? FileVisitResult.TERMINATE : FileVisitResult.CONTINUE;
+				}
+			});
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		walked = true;
+		for (int i = 0; i < THREADS; i++) {
+			offer(END);
+		}
+	}
+
+	/**
+	 * Put a path in the queue, waiting while it is full.
+	 * @param p The path.
+	 * @return False if the import was cancelled while waiting.
+	 */
+	private boolean offer(Path p) {
+		try {
+			while (!found.offer(p, 100, TimeUnit.MILLISECONDS)) {
+				if (!cancelled)
+					continue;
+				if (p != END)
+					return false;
+				found.poll(); // the workers may be gone, so make room for END
+			}
+			return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	/**
+	 * Take pictures from the queue and prepare a photo for each of them, until the walk is over.
+	 */
+	private void work() {
+		try {
+			while (!cancelled) {
+				Path file = found.take();
+				if (file == END)
+					break;
+				Photo p = prepare(file);
+				if (p != null)
+					ready.add(p);
+				preparedCount.incrementAndGet();
+				if (ready.size() >= BATCH_SIZE || System.nanoTime() - lastFlush > BATCH_MILLIS * 1000000L)
+					requestFlush();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			if (running.decrementAndGet() == 0) {
+				Platform.runLater(() -> {
+					flush();
+					onFinish.run();
+				});
+			}
+		}
+	}
+
+	/**
+	 * Create the photo for a picture, with its visual hash, and store its thumbnail. A picture
+	 * whose hash or thumbnail can't be made is still imported.
+	 * @param file The picture.
+	 * @return The photo, or null if the file is gone.
+	 */
+	private Photo prepare(Path file) {
+		Photo p;
+		try {
+			p = new Photo(file.toRealPath().toString());
+		} catch (IOException e) {
+			return null;
+		}
+		p.getCanonicalPath();
+		try {
+			p.setVisualHash(SimilarityFinder.hash(file.toFile()));
+		} catch (IOException | RuntimeException e) {
+			// worked out later, when the user searches for similar photos
+		}
+		try {
+			ThumbnailLoader.getInstance().prepare(p, thumbnailSize, thumbnailSize);
+		} catch (RuntimeException e) {
+			// made when the photo is first shown instead
+		}
+		return p;
+	}
+
+	/**
+	 * Ask the JavaFX thread to add the finished photos, unless it has already been asked.
+	 */
+	private void requestFlush() {
+		if (flushPending.compareAndSet(false, true))
+			Platform.runLater(this::flush);
+	}
+
+	/**
+	 * Add all finished photos to the album. Runs on the JavaFX thread.
+	 */
+	private void flush() {
+		flushPending.set(false);
+		lastFlush = System.nanoTime();
+		List<Photo> batch = new ArrayList<Photo>();
+		for (Photo p = ready.poll(); p != null; p = ready.poll()) {
+			batch.add(p);
+		}
+		if (cancelled || batch.isEmpty())
+			return;
+		batch.sort(Comparator.comparing(Photo::getPhotoPath));
+		for (int i = 0; i < batch.size(); i++) {
+			batch.set(i, user.importPhoto(batch.get(i)));
+		}
+		addedCount += album.addAll(batch);
+		onBatch.run();
+	}
+
+	/**
+	 * @param file A file.
+	 * @return Whether the file has the extension of a picture.
+	 */
+	private static boolean isPicture(Path file) {
+		String name = file.getFileName().toString().toLowerCase(Locale.ROOT);
+		for (String ext : EXTENSIONS) {
+			if (name.endsWith(ext))
+				return true;
+		}
+		return false;
+	}
+}
@@ -0,0 +1,553 @@
+package photoalbum.util;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+
+/**
+ * A compressed set of non-negative ints, laid out like a roaring bitmap. Ids are split by their
+ * upper 16 bits into chunks of 65536, and each chunk that holds any ids is stored either as a
+ * sorted array of its lower 16 bits, while it holds at most 4096 ids, or as a plain bitmap of
+ * 1024 longs once it holds more. Sparse sets therefore cost two bytes per id and dense sets one
+ * bit per id, and intersections, unions and differences work a chunk at a time.
+ * @author Paul Warner & Kenny Zhang
+ *
+ */
+public final class IdBitmap implements Iterable<Integer> {
+
+	/**
+	 * Most ids a chunk holds as an array.
+	 */
+	private static final int ARRAY_MAX = 4096;
+
+	/**
+	 * Number of longs in a bitmap chunk.
+	 */
+	private static final int WORDS = 1024;
+
+	/**
+	 * Upper 16 bits of the ids in each chunk, in increasing order.
+	 */
+	private char[] keys = new char[4];
+
+	/**
+	 * Each chunk, either a char[] of sorted lower bits or a long[] bitmap.
+	 */
+	private Object[] chunks = new Object[4];
+
+	/**
+	 * Number of ids in each chunk.
+	 */
+	private int[] counts = new int[4];
+
+	/**
+	 * Number of chunks in use.
+	 */
+	private int size;
+
+	/**
+	 * Add an id to the set.
+	 * @param id The id, which must not be negative.
+	 * @return True if the id was not already in the set.
+	 */
+	public boolean add(int id) {
+		char lo = (char)id;
+		int i = find((char)(id >>> 16));
+		if (i < 0) {
+			i = -i - 1;
+			insert(i, (char)(id >>> 16), new char[4], 0);
+		}
+		Object chunk = chunks[i];
+		if (chunk instanceof long[]) {
+			long[] words = (long[])chunk;
+			if ((words[lo >>> 6] & (1L << lo)) != 0)
+				return false;
+			words[lo >>> 6] |= 1L << lo;
+			counts[i]++;
+			return true;
+		}
+		char[] array = (char[])chunk;
+		int n = counts[i];
+		int j = Arrays.binarySearch(array, 0, n, lo);
+		if (j >= 0)
+			return false;
+		j = -j - 1;
+		if (n == ARRAY_MAX) {
+			long[] words = toBitmap(array, n);
+			words[lo >>> 6] |= 1L << lo;
+			chunks[i] = words;
+		} else {
+			if (n == array.length) {
+				array = Arrays.copyOf(array, Math.min(ARRAY_MAX, 2 * n));
+				chunks[i] = array;
+			}
+			System.arraycopy(array, j, array, j + 1, n - j);
+			array[j] = lo;
+		}
+		counts[i]++;
+		return true;
+	}
+
+	/**
+	 * Remove an id from the set.
+	 * @param id The id.
+	 * @return True if the id was in the set.
+	 */
+	public boolean remove(int id) {
+		if (id < 0)
+			return false;
+		char lo = (char)id;
+		int i = find((char)(id >>> 16));
+		if (i < 0)
+			return false;
+		Object chunk = chunks[i];
+		if (chunk instanceof long[]) {
+			long[] words = (long[])chunk;
+			if ((words[lo >>> 6] & (1L << lo)) == 0)
+				return false;
+			words[lo >>> 6] &= ~(1L << lo);
+			counts[i]--;
+			// convert back well below the limit, so a chunk near it doesn't keep switching
+			if (counts[i] <= ARRAY_MAX / 2)
+				chunks[i] = toArray(words, counts[i]);
+		} else {
+			char[] array = (char[])chunk;
+			int n = counts[i];
+			int j = Arrays.binarySearch(array, 0, n, lo);
+			if (j < 0)
+				return false;
+			System.arraycopy(array, j + 1, array, j, n - j - 1);
+			counts[i]--;
+		}
+		if (counts[i] == 0) {
+			System.arraycopy(keys, i + 1, keys, i, size - i - 1);
+			System.arraycopy(chunks, i + 1, chunks, i, size - i - 1);
+			System.arraycopy(counts, i + 1, counts, i, size - i - 1);
+			size--;
+			chunks[size] = null;
+		}
+		return true;
+	}
+
+	/**
+	 * @param id An id.
+	 * @return True if the id is in the set.
+	 */
+	public boolean contains(int id) {
+		if (id < 0)
+			return false;
+		char lo = (char)id;
+		int i = find((char)(id >>> 16));
+		if (i < 0)
+			return false;
+		Object chunk = chunks[i];
+		if (chunk instanceof long[])
+			return (((long[])chunk)[lo >>> 6] & (1L << lo)) != 0;
+		return Arrays.binarySearch((char[])chunk, 0, counts[i], lo) >= 0;
+	}
+
+	/**
+	 * @return Number of ids in the set.
+	 */
+	public int cardinality() {
+		int n = 0;
+		for (int i = 0; i < size; i++) {
+			n += counts[i];
+		}
+		return n;
+	}
+
+	/**
+	 * @return True if the set holds no ids.
+	 */
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * @return The smallest id in the set, or -1 if it is empty.
+	 */
+	public int first() {
+		if (size == 0)
+			return -1;
+		Object chunk = chunks[0];
+		int lo;
+		if (chunk instanceof long[]) {
+			long[] words = (long[])chunk;
+			int w = 0;
+			while (words[w] == 0) {
+				w++;
+			}
+			lo = w * 64 + Long.numberOfTrailingZeros(words[w]);
+		} else {
+			lo = ((char[])chunk)[0];
+		}
+		return keys[0] << 16 | lo;
+	}
+
+	/**
+	 * @return A copy of this set.
+	 */
+	public IdBitmap copy() {
+		IdBitmap copy = new IdBitmap();
+		for (int i = 0; i < size; i++) {
+			copy.append(keys[i], copyChunk(chunks[i], counts[i]));
+		}
+		return copy;
+	}
+
+	/**
+	 * @param a A set.
+	 * @param b Another set.
+	 * @return A new set of the ids in both sets.
+	 */
+	public static IdBitmap and(IdBitmap a, IdBitmap b) {
+		IdBitmap result = new IdBitmap();
+		int i = 0, j = 0;
+		while (i < a.size && j < b.size) {
+			if (a.keys[i] < b.keys[j]) {
+				i++;
+			} else if (a.keys[i] > b.keys[j]) {
+				j++;
+			} else {
+				result.append(a.keys[i], andChunks(a.chunks[i], a.counts[i], b.chunks[j], b.counts[j]));
+				i++;
+				j++;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @param a A set.
+	 * @param b Another set.
+	 * @return A new set of the ids in either set.
+	 */
+	public static IdBitmap or(IdBitmap a, IdBitmap b) {
+		IdBitmap result = new IdBitmap();
+		int i = 0, j = 0;
+		while (i < a.size || j < b.size) {
+			if (j == b.size || (i < a.size && a.keys[i] < b.keys[j])) {
+				result.append(a.keys[i], copyChunk(a.chunks[i], a.counts[i]));
+				i++;
+			} else if (i == a.size || a.keys[i] > b.keys[j]) {
+				result.append(b.keys[j], copyChunk(b.chunks[j], b.counts[j]));
+				j++;
+			} else {
+				result.append(a.keys[i], orChunks(a.chunks[i], a.counts[i], b.chunks[j], b.counts[j]));
+				i++;
+				j++;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @param a A set.
+	 * @param b Another set.
+	 * @return A new set of the ids in a but not in b.
+	 */
+	public static IdBitmap andNot(IdBitmap a, IdBitmap b) {
+		IdBitmap result = new IdBitmap();
+		int j = 0;
+		for (int i = 0; i < a.size; i++) {
+			while (j < b.size && b.keys[j] < a.keys[i]) {
+				j++;
+			}
+			if (j < b.size && b.keys[j] == a.keys[i])
+				result.append(a.keys[i], andNotChunks(a.chunks[i], a.counts[i], b.chunks[j], b.counts[j]));
+			else
+				result.append(a.keys[i], copyChunk(a.chunks[i], a.counts[i]));
+		}
+		return result;
+	}
+
+	/**
+	 * @return An iterator over the ids in increasing order.
+	 */
+	@Override
+	public PrimitiveIterator.OfInt iterator() {
+		return new PrimitiveIterator.OfInt() {
+			/**
+			 * Index of the current chunk.
+			 */
+			private int i;
+
+			/**
+			 * Position within the current chunk: an array index, or a bit index in a bitmap.
+			 */
+			private int j;
+
+			/**
+			 * Id returned by the next call to nextInt, or -1 if there are no more.
+			 */
+			private int next = advance();
+
+			/**
+			 * Find the next id from the current position, moving to later chunks as needed.
+			 * @return The id, or -1 if there are none left.
+			 */
+			private int advance() {
+				while (i < size) {
+					Object chunk = chunks[i];
+					if (chunk instanceof long[]) {
+						long[] words = (long[])chunk;
+						while (j < WORDS * 64) {
+							long word = words[j >>> 6] & (-1L << j);
+							if (word != 0) {
+								int bit = (j & ~63) + Long.numberOfTrailingZeros(word);
+								j = bit + 1;
+								return keys[i] << 16 | bit;
+							}
+							j = (j & ~63) + 64;
+						}
+					} else if (j < counts[i]) {
+						return keys[i] << 16 | ((char[])chunk)[j++];
+					}
+					i++;
+					j = 0;
+				}
+				return -1;
+			}
+
+			@Override
+			public boolean hasNext() {
+				return next >= 0;
+			}
+
+			@Override
+			public int nextInt() {
+				if (next < 0)
+					throw new NoSuchElementException();
+				int id = next;
+				next = advance();
+				return id;
+			}
+		};
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("[");
+		PrimitiveIterator.OfInt it = iterator();
+		while (it.hasNext()) {
+			sb.append(it.nextInt());
+			if (it.hasNext())
+				sb.append(", ");
+		}
+		return sb.append(']').toString();
+	}
+
+	/**
+	 * @param key The upper bits of a chunk.
+	 * @return The index of the chunk, or -(insertion point) - 1 if there is no such chunk.
+	 */
+	private int find(char key) {
+		return Arrays.binarySearch(keys, 0, size, key);
+	}
+
+	/**
+	 * Insert a chunk at the given index.
+	 * @param i The index.
+	 * @param key The upper bits of the chunk.
+	 * @param chunk The chunk.
+	 * @param count Number of ids in the chunk.
+	 */
+	private void insert(int i, char key, Object chunk, int count) {
+		if (size == keys.length) {
+			keys = Arrays.copyOf(keys, 2 * size);
+			chunks = Arrays.copyOf(chunks, 2 * size);
+			counts = Arrays.copyOf(counts, 2 * size);
+		}
+		System.arraycopy(keys, i, keys, i + 1, size - i);
+		System.arraycopy(chunks, i, chunks, i + 1, size - i);
+		System.arraycopy(counts, i, counts, i + 1, size - i);
+		keys[i] = key;
+		chunks[i] = chunk;
+		counts[i] = count;
+		size++;
+	}
+
+	/**
+	 * Add a chunk after all existing chunks, converting it to the right kind for its size. Empty
+	 * chunks are dropped.
+	 * @param key The upper bits of the chunk, greater than that of any existing chunk.
+	 * @param chunk A char[] holding exactly the chunk's ids, or a long[] bitmap.
+	 */
+	private void append(char key, Object chunk) {
+		int count;
+		if (chunk instanceof long[]) {
+			count = 0;
+			for (long word : (long[])chunk) {
+				count += Long.bitCount(word);
+			}
+			if (count <= ARRAY_MAX)
+				chunk = toArray((long[])chunk, count);
+		} else {
+			count = ((char[])chunk).length;
+			if (count > ARRAY_MAX)
+				chunk = toBitmap((char[])chunk, count);
+		}
+		if (count > 0)
+			insert(size, key, chunk, count);
+	}
+
+	/**
+	 * @return A copy of the chunk, with arrays trimmed to their count.
+	 */
+	private static Object copyChunk(Object chunk, int count) {
+		if (chunk instanceof long[])
+			return ((long[])chunk).clone();
+		return Arrays.copyOf((char[])chunk, count);
+	}
+
+	/**
+	 * @return The ids in both chunks.
+	 */
+	private static Object andChunks(Object a, int na, Object b, int nb) {
+		if (a instanceof long[] && b instanceof long[]) {
+			long[] x = (long[])a, y = (long[])b, words = new long[WORDS];
+			for (int w = 0; w < WORDS; w++) {
+				words[w] = x[w] & y[w];
+			}
+			return words;
+		}
+		if (a instanceof long[])
+			return andChunks(b, nb, a, na);
+		char[] x = (char[])a;
+		char[] out = new char[Math.min(na, nb)];
+		int n = 0;
+		if (b instanceof long[]) {
+			long[] y = (long[])b;
+			for (int i = 0; i < na; i++) {
+				if ((y[x[i] >>> 6] & (1L << x[i])) != 0)
+					out[n++] = x[i];
+			}
+		} else {
+			char[] y = (char[])b;
+			int i = 0, j = 0;
+			while (i < na && j < nb) {
+				if (x[i] < y[j]) {
+					i++;
+				} else if (x[i] > y[j]) {
+					j++;
+				} else {
+					out[n++] = x[i];
+					i++;
+					j++;
+				}
+			}
+		}
+		return Arrays.copyOf(out, n);
+	}
+
+	/**
+	 * @return The ids in either chunk.
+	 */
+	private static Object orChunks(Object a, int na, Object b, int nb) {
+		if (a instanceof char[] && b instanceof char[]) {
+			char[] x = (char[])a, y = (char[])b;
+			char[] out = new char[na + nb];
+			int i = 0, j = 0, n = 0;
+			while (i < na || j < nb) {
+				if (j == nb || (i < na && x[i] < y[j])) {
+					out[n++] = x[i++];
+				} else if (i == na || x[i] > y[j]) {
+					out[n++] = y[j++];
+				} else {
+					out[n++] = x[i++];
+					j++;
+				}
+			}
+			return Arrays.copyOf(out, n);
+		}
+		if (a instanceof char[])
+			return orChunks(b, nb, a, na);
+		long[] words = ((long[])a).clone();
+		if (b instanceof long[]) {
+			long[] y = (long[])b;
+			for (int w = 0; w < WORDS; w++) {
+				words[w] |= y[w];
+			}
+		} else {
+			char[] y = (char[])b;
+			for (int j = 0; j < nb; j++) {
+				words[y[j] >>> 6] |= 1L << y[j];
+			}
+		}
+		return words;
+	}
+
+	/**
+	 * @return The ids in chunk a but not in chunk b.
+	 */
+	private static Object andNotChunks(Object a, int na, Object b, int nb) {
+		if (a instanceof long[]) {
+			long[] words = ((long[])a).clone();
+			if (b instanceof long[]) {
+				long[] y = (long[])b;
+				for (int w = 0; w < WORDS; w++) {
+					words[w] &= ~y[w];
+				}
+			} else {
+				char[] y = (char[])b;
+				for (int j = 0; j < nb; j++) {
+					words[y[j] >>> 6] &= ~(1L << y[j]);
+				}
+			}
+			return words;
+		}
+		char[] x = (char[])a;
+		char[] out = new char[na];
+		int n = 0;
+		if (b instanceof long[]) {
+			long[] y = (long[])b;
+			for (int i = 0; i < na; i++) {
+				if ((y[x[i] >>> 6] & (1L << x[i])) == 0)
+					out[n++] = x[i];
+			}
+		} else {
+			char[] y = (char[])b;
+			int j = 0;
+			for (int i = 0; i < na; i++) {
+				while (j < nb && y[j] < x[i]) {
+					j++;
+				}
+				if (j == nb || y[j] != x[i])
+					out[n++] = x[i];
+			}
+		}
+		return Arrays.copyOf(out, n);
+	}
+
+	/**
+	 * @param array Sorted lower bits.
+	 * @param count Number of ids in the array.
+	 * @return The same ids as a bitmap.
+	 */
+	private static long[] toBitmap(char[] array, int count) {
+		long[] words = new long[WORDS];
+		for (int j = 0; j < count; j++) {
+			words[array[j] >>> 6] |= 1L << array[j];
+		}
+		return words;
+	}
+
+	/**
+	 * @param words A bitmap.
+	 * @param count Number of ids in the bitmap.
+	 * @return The same ids as a sorted array.
+	 */
+	private static char[] toArray(long[] words, int count) {
+		char[] array = new char[count];
+		int n = 0;
+		for (int w = 0; w < WORDS; w++) {
+			long word = words[w];
+			while (word != 0) {
+				array[n++] = (char)(w * 64 + Long.numberOfTrailingZeros(word));
+				word &= word - 1;
+			}
+		}
+		return array;
+	}
+}
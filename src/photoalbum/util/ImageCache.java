@@ -0,0 +1,308 @@
+package photoalbum.util;
+
+import java.io.File;
+import java.lang.ref.SoftReference;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javafx.scene.image.Image;
+import photoalbum.model.Photo;
+
+/**
+ * A process-wide cache of decoded images shared by the thumbnail, slideshow and single photo views,
+ * so that moving back and forth between them does not decode the same file again. The cache is
+ * limited by the number of bytes its bitmaps take up rather than by the number of images, and the
+ * least recently used images are evicted first. Evicted images can optionally be kept behind soft
+ * references, letting the garbage collector decide when they are really gone.
+ * <p>
+ * Looking an image up never touches the file system, so it is cheap enough for the JavaFX thread.
+ * The last-modified time of each file is recorded when its images are stored, and checked again
+ * whenever an image is loaded or {@link #revalidate(Photo)} is called, both on loader threads;
+ * images of a file that has changed since are dropped.
+ * @author Paul Warner & Kenny Zhang
+ *
+ */
+public class ImageCache {
+
+	/**
+	 * The cache shared by all views.
+	 */
+	private static ImageCache instance;
+
+	/**
+	 * Maximum number of bytes of decoded pixels held strongly by the cache.
+	 */
+	private final long maxBytes;
+
+	/**
+	 * Whether evicted images are kept behind soft references.
+	 */
+	private final boolean keepSoft;
+
+	/**
+	 * All images held by the cache, from least to most recently used.
+	 */
+	private final LinkedHashMap<String, Image> images = new LinkedHashMap<String, Image>(16, 0.75f, true);
+
+	/**
+	 * Images that have been evicted but may not yet have been collected.
+	 */
+	private final HashMap<String, SoftReference<Image>> evicted = new HashMap<String, SoftReference<Image>>();
+
+	/**
+	 * Last-modified time of the file of each path with images in the cache, as it was when they
+	 * were stored.
+	 */
+	private final HashMap<String, Long> modified = new HashMap<String, Long>();
+
+	/**
+	 * Total weight of all images in the cache.
+	 */
+	private long totalBytes;
+
+	/**
+	 * Number of requests that found their image in the cache.
+	 */
+	private long hits;
+
+	/**
+	 * Number of requests that did not find their image in the cache.
+	 */
+	private long misses;
+
+	/**
+	 * Number of images evicted to stay under the byte budget.
+	 */
+	private long evictions;
+
+	/**
+	 * Number of hits that were served from an evicted, softly referenced image.
+	 */
+	private long softHits;
+
+	/**
+	 * Create a new cache.
+	 * @param maxBytes The budget for decoded pixels, in bytes.
+	 * @param keepSoft Whether evicted images should be kept behind soft references.
+	 */
+	public ImageCache(long maxBytes, boolean keepSoft) {
+		this.maxBytes = maxBytes;
+		this.keepSoft = keepSoft;
+	}
+
+	/**
+	 * @return The cache shared by the whole program. Its budget is a quarter of the maximum heap.
+	 */
+	public static synchronized ImageCache getInstance() {
+		if (instance == null) {
+			instance = new ImageCache(Runtime.getRuntime().maxMemory() / 4, true);
+		}
+		return instance;
+	}
+
+	/**
+	 * Get the image for the given photo at the given size, decoding and storing it if it is not
+	 * cached or its file has changed. Decoding happens on the calling thread.
+	 * @param p The photo to get the image of.
+	 * @param width The maximum width of the image, or 0 for the image's own width.
+	 * @param height The maximum height of the image, or 0 for the image's own height.
+	 * @return The decoded image, or null if the photo could not be read.
+	 */
+	public Image get(Photo p, double width, double height) {
+		revalidate(p);
+		Image img = getIfPresent(p, width, height);
+		if (img == null) {
+			img = p.getImage(width, height);
+			if (img == null || img.isError())
+				return null;
+			put(p, width, height, img);
+		}
+		return img;
+	}
+
+	/**
+	 * Get the image for the given photo at the given size if it is cached. Never decodes, and
+	 * never asks the file system whether the file has changed.
+	 * @param p The photo to get the image of.
+	 * @param width The maximum width of the image.
+	 * @param height The maximum height of the image.
+	 * @return The cached image, or null if it is not cached.
+	 */
+	public synchronized Image getIfPresent(Photo p, double width, double height) {
+		String key = key(p, width, height);
+		Image img = images.get(key);
+		if (img != null) {
+			hits++;
+			return img;
+		}
+		SoftReference<Image> ref = evicted.remove(key);
+		img = ref == null ? null : ref.get();
+		if (img != null) {
+			hits++;
+			softHits++;
+			store(key, img);
+			return img;
+		}
+		misses++;
+		return null;
+	}
+
+	/**
+	 * Store an image that was decoded elsewhere. Reads the last-modified time of the file, so it
+	 * should be called on the thread that decoded the image rather than the JavaFX thread.
+	 * @param p The photo the image was decoded from.
+	 * @param width The maximum width the image was requested at.
+	 * @param height The maximum height the image was requested at.
+	 * @param img The decoded image.
+	 */
+	public void put(Photo p, double width, double height, Image img) {
+		long time = new File(p.getPhotoPath()).lastModified();
+		synchronized (this) {
+			changed(p, time);
+			String key = key(p, width, height);
+			evicted.remove(key);
+			store(key, img);
+		}
+	}
+
+	/**
+	 * Check whether the file of a photo has changed since its images were stored, and drop them if
+	 * it has. Reads the last-modified time of the file, so it should be called on a loader thread.
+	 * @param p The photo.
+	 * @return Whether images of the photo were dropped.
+	 */
+	public boolean revalidate(Photo p) {
+		long time = new File(p.getPhotoPath()).lastModified();
+		synchronized (this) {
+			return changed(p, time);
+		}
+	}
+
+	/**
+	 * Record the last-modified time of a photo's file, dropping its images if they were stored
+	 * when the file had another time.
+	 * @param p The photo.
+	 * @param time The last-modified time of its file now.
+	 * @return Whether images of the photo were dropped.
+	 */
+	private boolean changed(Photo p, long time) {
+		Long old = modified.put(p.getPhotoPath(), time);
+		if (old == null || old == time)
+			return false;
+		invalidate(p);
+		modified.put(p.getPhotoPath(), time);
+		return true;
+	}
+
+	/**
+	 * Remove all images of the given photo, at all sizes.
+	 * @param p The photo whose images should be removed.
+	 */
+	public synchronized void invalidate(Photo p) {
+		modified.remove(p.getPhotoPath());
+		String prefix = p.getPhotoPath() + "@";
+		Iterator<Map.Entry<String, Image>> it = images.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<String, Image> e = it.next();
+			if (e.getKey().startsWith(prefix)) {
+				totalBytes -= weight(e.getValue());
+				it.remove();
+			}
+		}
+		evicted.keySet().removeIf((k) -> k.startsWith(prefix));
+	}
+
+	/**
+	 * Add an image to the cache and evict older images until the cache is back within its budget.
+	 * @param key The key of the image.
+	 * @param img The image.
+	 */
+	private void store(String key, Image img) {
+		Image old = images.put(key, img);
+		if (old != null)
+			totalBytes -= weight(old);
+		totalBytes += weight(img);
+		Iterator<Map.Entry<String, Image>> it = images.entrySet().iterator();
+		// always keep the newest image, even if it alone is over budget
+		while (totalBytes > maxBytes && images.size() > 1 && it.hasNext()) {
+			Map.Entry<String, Image> e = it.next();
+			it.remove();
+			totalBytes -= weight(e.getValue());
+			evictions++;
+			if (keepSoft)
+				evicted.put(e.getKey(), new SoftReference<Image>(e.getValue()));
+		}
+		if (keepSoft && evicted.size() > 2 * images.size() + 64) {
+			evicted.values().removeIf((r) -> r.get() == null);
+		}
+		if (modified.size() > 2 * (images.size() + evicted.size()) + 64) {
+			HashSet<String> paths = new HashSet<String>();
+			for (String k : images.keySet()) {
+				paths.add(k.substring(0, k.lastIndexOf('@')));
+			}
+			for (String k : evicted.keySet()) {
+				paths.add(k.substring(0, k.lastIndexOf('@')));
+			}
+			modified.keySet().retainAll(paths);
+		}
+	}
+
+	/**
+	 * @param img An image.
+	 * @return The approximate number of bytes the image's pixels take up.
+	 */
+	private static long weight(Image img) {
+		return (long)img.getWidth() * (long)img.getHeight() * 4L;
+	}
+
+	/**
+	 * @return The key an image of the given photo at the given size is stored under.
+	 */
+	private static String key(Photo p, double width, double height) {
+		return p.getPhotoPath() + "@" + (int)width + "x" + (int)height;
+	}
+
+	/**
+	 * @return Number of requests that found their image in the cache.
+	 */
+	public synchronized long getHitCount() {
+		return hits;
+	}
+
+	/**
+	 * @return Number of requests that did not find their image in the cache.
+	 */
+	public synchronized long getMissCount() {
+		return misses;
+	}
+
+	/**
+	 * @return Number of images evicted to stay within the budget.
+	 */
+	public synchronized long getEvictionCount() {
+		return evictions;
+	}
+
+	/**
+	 * @return Number of hits served by images that had already been evicted.
+	 */
+	public synchronized long getSoftHitCount() {
+		return softHits;
+	}
+
+	/**
+	 * @return Number of bytes of decoded pixels currently held by the cache.
+	 */
+	public synchronized long getSize() {
+		return totalBytes;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format("ImageCache[%d images, %d/%d KB, hits=%d (soft %d), misses=%d, evictions=%d]",
+				images.size(), totalBytes / 1024, maxBytes / 1024, hits, softHits, misses, evictions);
+	}
+}
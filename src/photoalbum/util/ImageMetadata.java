@@ -0,0 +1,278 @@
+package photoalbum.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+
+import javafx.scene.image.ImageView;
+
+/**
+ * The date a picture was taken, its orientation and its size, read from the headers of a JPEG or
+ * PNG file without decoding any pixels. Only the few bytes that describe each segment of the file
+ * are read, plus the EXIF block itself, and reading stops where the image data starts, so this is
+ * cheap enough to run over thousands of files.
+ * @author Paul Warner & Kenny Zhang
+ *
+ */
+public final class ImageMetadata {
+
+	/**
+	 * Largest EXIF block that is read.
+	 */
+	private static final int MAX_EXIF_BYTES = 64 * 1024;
+
+	/**
+	 * Format of EXIF dates.
+	 */
+	private static final DateTimeFormatter EXIF_DATE = DateTimeFormatter.ofPattern("yyyy:MM:dd HH:mm:ss");
+
+	/**
+	 * EXIF tags read by this class.
+	 */
+	private static final int TAG_ORIENTATION = 0x0112, TAG_DATE_TIME = 0x0132, TAG_EXIF_IFD = 0x8769,
+			TAG_DATE_TIME_ORIGINAL = 0x9003, TAG_DATE_TIME_DIGITIZED = 0x9004;
+
+	/**
+	 * The date the picture was taken, or null if the file doesn't say.
+	 */
+	private LocalDateTime dateTaken;
+
+	/**
+	 * Date the file was last changed according to its EXIF block, used if it has no date taken.
+	 */
+	private LocalDateTime dateChanged;
+
+	/**
+	 * EXIF orientation, 1 to 8. 1 means the picture is stored upright.
+	 */
+	private int orientation = 1;
+
+	/**
+	 * Width of the picture in pixels, or 0 if unknown.
+	 */
+	private int width;
+
+	/**
+	 * Height of the picture in pixels, or 0 if unknown.
+	 */
+	private int height;
+
+	private ImageMetadata() {}
+
+	/**
+	 * Read the metadata of a picture. Files that aren't JPEG or PNG, or whose headers are
+	 * damaged, give whatever could be read before the problem, which may be nothing.
+	 * @param file The picture.
+	 * @return The metadata. Never null.
+	 */
+	public static ImageMetadata read(File file) {
+		ImageMetadata m = new ImageMetadata();
+		try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+			int magic = in.readInt();
+			if ((magic >>> 16) == 0xffd8)
+				m.readJpeg(in);
+			else if (magic == 0x89504e47)
+				m.readPng(in);
+		} catch (IOException | RuntimeException e) {
+			// keep what was read
+		}
+		return m;
+	}
+
+	/**
+	 * Read the segments of a JPEG file up to the start of the image data.
+	 * @param in The file, positioned just after the first marker.
+	 * @throws IOException If the file can't be read.
+	 */
+	private void readJpeg(RandomAccessFile in) throws IOException {
+		long pos = 2;
+		boolean exif = false;
+		while (true) {
+			in.seek(pos);
+			if (in.readUnsignedByte() != 0xff)
+				return;
+			int marker = in.readUnsignedByte();
+			while (marker == 0xff) { // fill bytes
+				marker = in.readUnsignedByte();
+				pos++;
+			}
+			if (marker == 0xda || marker == 0xd9) // image data or end of image
+				return;
+			if (marker == 0x01 || (marker >= 0xd0 && marker <= 0xd7)) { // markers without a length
+				pos += 2;
+				continue;
+			}
+			int length = in.readUnsignedShort();
+			if (marker == 0xe1 && !exif && length > 8) {
+				byte[] data = new byte[Math.min(length - 2, MAX_EXIF_BYTES)];
+				in.readFully(data);
+				if (data[0] == 'E' && data[1] == 'x' && data[2] == 'i' && data[3] == 'f' && data[4] == 0) {
+					readTiff(ByteBuffer.wrap(data, 6, data.length - 6).slice());
+					exif = true;
+				}
+			} else if (marker >= 0xc0 && marker <= 0xcf && marker != 0xc4 && marker != 0xc8 && marker != 0xcc) {
+				in.readUnsignedByte(); // sample precision
+				height = in.readUnsignedShort();
+				width = in.readUnsignedShort();
+				return; // the EXIF block comes before the frame header
+			}
+			pos += 2 + length;
+		}
+	}
+
+	/**
+	 * Read the chunks of a PNG file up to the start of the image data.
+	 * @param in The file, positioned just after the first four bytes of the signature.
+	 * @throws IOException If the file can't be read.
+	 */
+	private void readPng(RandomAccessFile in) throws IOException {
+		long pos = 8;
+		while (true) {
+			in.seek(pos);
+			long length = in.readInt() & 0xffffffffL;
+			byte[] type = new byte[4];
+			in.readFully(type);
+			String name = new String(type, StandardCharsets.US_ASCII);
+			if (name.equals("IHDR")) {
+				width = in.readInt();
+				height = in.readInt();
+			} else if (name.equals("eXIf") && length <= MAX_EXIF_BYTES) {
+				byte[] data = new byte[(int)length];
+				in.readFully(data);
+				readTiff(ByteBuffer.wrap(data));
+			} else if (name.equals("IDAT") || name.equals("IEND")) {
+				return;
+			}
+			pos += 12 + length; // length, type, data and crc
+		}
+	}
+
+	/**
+	 * Read the tags this class uses from an EXIF block.
+	 * @param tiff The block, starting at its TIFF header.
+	 */
+	private void readTiff(ByteBuffer tiff) {
+		if (tiff.get(0) == 'I' && tiff.get(1) == 'I')
+			tiff.order(ByteOrder.LITTLE_ENDIAN);
+		else if (tiff.get(0) != 'M' || tiff.get(1) != 'M')
+			return;
+		if (tiff.getShort(2) != 42)
+			return;
+		int exifIfd = 0;
+		int ifd = tiff.getInt(4);
+		for (int i = 0, n = tiff.getShort(ifd) & 0xffff; i < n; i++) {
+			int entry = ifd + 2 + 12 * i;
+			int tag = tiff.getShort(entry) & 0xffff;
+			if (tag == TAG_ORIENTATION) {
+				int o = tiff.getShort(entry + 8) & 0xffff;
+				if (o >= 1 && o <= 8)
+					orientation = o;
+			} else if (tag == TAG_DATE_TIME) {
+				dateChanged = date(tiff, entry);
+			} else if (tag == TAG_EXIF_IFD) {
+				exifIfd = tiff.getInt(entry + 8);
+			}
+		}
+		if (exifIfd <= 0)
+			return;
+		LocalDateTime digitized = null;
+		for (int i = 0, n = tiff.getShort(exifIfd) & 0xffff; i < n; i++) {
+			int entry = exifIfd + 2 + 12 * i;
+			int tag = tiff.getShort(entry) & 0xffff;
+			if (tag == TAG_DATE_TIME_ORIGINAL)
+				dateTaken = date(tiff, entry);
+			else if (tag == TAG_DATE_TIME_DIGITIZED)
+				digitized = date(tiff, entry);
+		}
+		if (dateTaken == null)
+			dateTaken = digitized;
+	}
+
+	/**
+	 * Read a date from an EXIF entry.
+	 * @param tiff The EXIF block.
+	 * @param entry Offset of the entry.
+	 * @return The date, or null if it is blank or not a valid date.
+	 */
+	private static LocalDateTime date(ByteBuffer tiff, int entry) {
+		int count = tiff.getInt(entry + 4);
+		if (count < 19 || count > 64)
+			return null;
+		int offset = tiff.getInt(entry + 8);
+		byte[] text = new byte[19];
+		for (int i = 0; i < text.length; i++) {
+			text[i] = tiff.get(offset + i);
+		}
+		try {
+			return LocalDateTime.parse(new String(text, StandardCharsets.US_ASCII), EXIF_DATE);
+		} catch (DateTimeParseException e) {
+			return null; // cameras without a clock write spaces or zeros
+		}
+	}
+
+	/**
+	 * @return The date the picture was taken, or null if the file doesn't say.
+	 */
+	public LocalDateTime getDateTaken() {
+		return dateTaken != null ? dateTaken : dateChanged;
+	}
+
+	/**
+	 * @return The EXIF orientation, 1 to 8. 1 means the picture is stored upright.
+	 */
+	public int getOrientation() {
+		return orientation;
+	}
+
+	/**
+	 * @return Width of the picture as stored in pixels, or 0 if unknown.
+	 */
+	public int getWidth() {
+		return width;
+	}
+
+	/**
+	 * @return Height of the picture as stored in pixels, or 0 if unknown.
+	 */
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * @return Degrees clockwise the stored picture must be turned to be upright, after it has been
+	 * mirrored if isMirrored says so. A mirrored picture stored with its first row on the left
+	 * (orientation 5) is turned by 270 degrees, and one with its first row on the right
+	 * (orientation 7) by 90.
+	 */
+	public int getRotation() {
+		switch (orientation) {
+		case 3: case 4: return 180;
+		case 6: case 7: return 90;
+		case 5: case 8: return 270;
+		default: return 0;
+		}
+	}
+
+	/**
+	 * @return Whether the stored picture must also be mirrored to be upright.
+	 */
+	public boolean isMirrored() {
+		return orientation == 2 || orientation == 4 || orientation == 5 || orientation == 7;
+	}
+
+	/**
+	 * Turn a view so that the picture it shows is upright. A view applies its scale before its
+	 * rotation, so the picture is mirrored first and then turned.
+	 * @param view The view showing the picture.
+	 */
+	public void orient(ImageView view) {
+		view.setRotate(getRotation());
+		view.setScaleX(isMirrored() ? -1 : 1);
+	}
+}
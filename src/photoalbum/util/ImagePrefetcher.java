@@ -0,0 +1,369 @@
+package photoalbum.util;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import javafx.application.Platform;
+import javafx.scene.image.Image;
+import photoalbum.model.Photo;
+
+/**
+ * Decodes full size images in the background and stores them in the ImageCache, so that paging
+ * through a slideshow does not have to wait for each photo to be decoded after it is selected.
+ * A window of photos around the one being shown is decoded ahead of time, and decodes that fall
+ * outside the window when the user jumps elsewhere are cancelled. Decodes the user is waiting
+ * for, of the photo being shown, run on a thread of their own so they never queue behind
+ * prefetches, unless a prefetch of that photo is already running, in which case they wait for it
+ * instead of decoding the photo twice at once. The metadata of each photo, which says how it has
+ * to be turned, is read on the same threads and kept for the most recent photos, so the JavaFX
+ * thread never reads a file.
+ * @author Paul Warner & Kenny Zhang
+ *
+ */
+public class ImagePrefetcher {
+
+	/**
+	 * The prefetcher shared by all views.
+	 */
+	private static ImagePrefetcher instance;
+
+	/**
+	 * Executor that runs prefetches. Full size decodes are memory hungry, so only one runs at a time.
+	 */
+	private final ExecutorService executor;
+
+	/**
+	 * Executor that runs decodes of the photo being shown.
+	 */
+	private final ExecutorService foreground;
+
+	/**
+	 * Number of photos whose metadata is kept.
+	 */
+	private static final int METADATA_ENTRIES = 64;
+
+	/**
+	 * Metadata of recently shown or prefetched photos, from least to most recently used.
+	 */
+	private final LinkedHashMap<Photo, ImageMetadata> metadata = new LinkedHashMap<Photo, ImageMetadata>(16, 0.75f, true);
+
+	/**
+	 * Decodes that have been submitted but not finished, by photo.
+	 */
+	private final Map<Photo, Future<?>> pending = new ConcurrentHashMap<Photo, Future<?>>();
+
+	/**
+	 * Create a new prefetcher with its own background threads.
+	 */
+	public ImagePrefetcher() {
+		executor = executor("image-prefetcher");
+		foreground = executor("image-loader");
+	}
+
+	/**
+	 * @param name Name of the thread.
+	 * @return An executor with a single daemon thread.
+	 */
+	private static ExecutorService executor(String name) {
+		return new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+				(r) -> {
+					Thread t = new Thread(r, name);
+					t.setDaemon(true);
+					return t;
+				});
+	}
+
+	/**
+	 * @return The prefetcher shared by the whole program.
+	 */
+	public static synchronized ImagePrefetcher getInstance() {
+		if (instance == null) {
+			instance = new ImagePrefetcher();
+		}
+		return instance;
+	}
+
+	/**
+	 * Get the full size image of the given photo. If it is already cached, the callback is run
+	 * immediately, otherwise it is run on the JavaFX thread once the photo has been decoded. A
+	 * cached image is checked against the file in the background, and the callback is run again
+	 * with a new image if the file has changed.
+	 * @param p The photo to load.
+	 * @param callback Receives the decoded image.
+	 */
+	public void load(Photo p, Consumer<Image> callback) {
+		Image img = ImageCache.getInstance().getIfPresent(p, 0, 0);
+		if (img != null) {
+			callback.accept(img);
+			checkChanged(p, () -> submit(p, callback));
+			return;
+		}
+		submit(p, callback);
+	}
+
+	/**
+	 * Get an image of the given photo that fits within width by height. If it is already cached,
+	 * the callback is run immediately, otherwise it is run on the JavaFX thread once the photo has
+	 * been decoded. Unlike full size decodes, these are not cancelled by prefetch. A cached image
+	 * is checked against the file in the background, and loaded again if the file has changed.
+	 * @param p The photo to load.
+	 * @param width The maximum width of the image.
+	 * @param height The maximum height of the image.
+	 * @param callback Receives the decoded image.
+	 * @return A future that can be used to cancel the decode, or null if the image was cached.
+	 */
+	public Future<?> load(Photo p, double width, double height, Consumer<Image> callback) {
+		Image img = ImageCache.getInstance().getIfPresent(p, width, height);
+		if (img != null) {
+			callback.accept(img);
+			checkChanged(p, () -> load(p, width, height, callback));
+			return null;
+		}
+		return foreground.submit(() -> {
+			if (Thread.currentThread().isInterrupted())
+				return;
+			Image scaled = ImageCache.getInstance().get(p, width, height);
+			if (scaled != null && !Thread.currentThread().isInterrupted())
+				Platform.runLater(() -> callback.accept(scaled));
+		});
+	}
+
+	/**
+	 * Check in the background whether the file of a photo has changed since its images were
+	 * cached. If it has, they are dropped and the callback is run on the JavaFX thread, so a view
+	 * that showed a cached image can load it again.
+	 * @param p The photo.
+	 * @param onChanged Run if the file has changed.
+	 */
+	public void checkChanged(Photo p, Runnable onChanged) {
+		foreground.execute(() -> {
+			if (ImageCache.getInstance().revalidate(p)) {
+				synchronized (metadata) {
+					metadata.remove(p);
+				}
+				Platform.runLater(onChanged);
+			}
+		});
+	}
+
+	/**
+	 * Get the metadata of the given photo. If it is already known, the callback is run
+	 * immediately, otherwise it is run on the JavaFX thread once the file's headers have been read.
+	 * @param p The photo.
+	 * @param callback Receives the metadata.
+	 */
+	public void metadata(Photo p, Consumer<ImageMetadata> callback) {
+		ImageMetadata meta = cachedMetadata(p);
+		if (meta != null) {
+			callback.accept(meta);
+			return;
+		}
+		foreground.execute(() -> {
+			ImageMetadata read = readMetadata(p);
+			Platform.runLater(() -> callback.accept(read));
+		});
+	}
+
+	/**
+	 * @param p A photo.
+	 * @return The photo's metadata if it has been read recently, otherwise null.
+	 */
+	private ImageMetadata cachedMetadata(Photo p) {
+		synchronized (metadata) {
+			return metadata.get(p);
+		}
+	}
+
+	/**
+	 * Read the metadata of a photo and keep it, dropping the least recently used if there are too
+	 * many. Runs on one of the background threads.
+	 * @param p A photo.
+	 * @return The photo's metadata.
+	 */
+	private ImageMetadata readMetadata(Photo p) {
+		ImageMetadata meta = ImageMetadata.read(new File(p.getPhotoPath()));
+		synchronized (metadata) {
+			metadata.put(p, meta);
+			Iterator<Photo> it = metadata.keySet().iterator();
+			while (metadata.size() > METADATA_ENTRIES && it.hasNext()) {
+				it.next();
+				it.remove();
+			}
+		}
+		return meta;
+	}
+
+	/**
+	 * Decode the photos around the given index in the background. Any decode still waiting for a
+	 * photo outside of the window is cancelled.
+	 * @param photos The photos being shown, in the order they are shown.
+	 * @param index The index of the photo currently shown.
+	 * @param ahead The number of photos after index to decode.
+	 * @param behind The number of photos before index to decode.
+	 */
+	public void prefetch(List<Photo> photos, int index, int ahead, int behind) {
+		Set<Photo> window = new HashSet<Photo>();
+		for (int i = Math.max(0, index - behind); i <= Math.min(photos.size() - 1, index + ahead); i++) {
+			window.add(photos.get(i));
+		}
+		Iterator<Map.Entry<Photo, Future<?>>> it = pending.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<Photo, Future<?>> e = it.next();
+			if (e.getValue().isDone() || !window.contains(e.getKey())) {
+				e.getValue().cancel(true);
+				it.remove();
+			}
+		}
+		// nearest photos first, favouring the direction the user is most likely to go
+		for (int d = 1; d <= Math.max(ahead, behind); d++) {
+			if (d <= ahead && index + d < photos.size())
+				submit(photos.get(index + d), null);
+			if (d <= behind && index - d >= 0)
+				submit(photos.get(index - d), null);
+		}
+	}
+
+	/**
+	 * Cancel all decodes that haven't finished.
+	 */
+	public void cancelAll() {
+		for (Future<?> f : pending.values()) {
+			f.cancel(true);
+		}
+		pending.clear();
+	}
+
+	/**
+	 * Submit a decode of the given photo unless it is already cached or being decoded. Decodes
+	 * with a callback are for the photo being shown and run on the foreground thread. If a prefetch
+	 * of the same photo is already running, the callback waits for it rather than decoding the photo
+	 * a second time alongside it; one that is only queued is cancelled and replaced.
+	 * @param p The photo to decode.
+	 * @param callback Receives the image on the JavaFX thread once it's done. May be null.
+	 */
+	private void submit(Photo p, Consumer<Image> callback) {
+		Future<?> running = pending.get(p);
+		if (callback == null && (running != null || ImageCache.getInstance().getIfPresent(p, 0, 0) != null))
+			return;
+		if (running instanceof Decode && ((Decode) running).attach(callback))
+			return;
+		if (running != null)
+			running.cancel(false);
+		Decode d = new Decode(p, callback);
+		pending.put(p, d);
+		(callback != null ? foreground : executor).execute(d);
+	}
+
+	/**
+	 * A full size decode of one photo, along with the callbacks waiting for its image.
+	 */
+	private final class Decode extends FutureTask<Image> {
+
+		/**
+		 * The photo being decoded.
+		 */
+		private final Photo photo;
+
+		/**
+		 * Callbacks to run on the JavaFX thread with the decoded image. Guarded by this.
+		 */
+		private final List<Consumer<Image>> callbacks = new ArrayList<Consumer<Image>>();
+
+		/**
+		 * Whether the decode has started running. Guarded by this.
+		 */
+		private boolean started;
+
+		/**
+		 * Whether the decode has finished and its callbacks have been handed the image. Guarded by this.
+		 */
+		private boolean finished;
+
+		/**
+		 * The decoded image, or null if it couldn't be decoded. Guarded by this.
+		 */
+		private Image image;
+
+		/**
+		 * @param p The photo to decode.
+		 * @param callback Receives the image once it's done. May be null.
+		 */
+		Decode(Photo p, Consumer<Image> callback) {
+			super(() -> {
+				if (Thread.currentThread().isInterrupted())
+					return null;
+				if (callback == null && cachedMetadata(p) == null)
+					readMetadata(p); // so the slideshow can turn the photo as soon as it is selected
+				return ImageCache.getInstance().get(p, 0, 0);
+			});
+			photo = p;
+			if (callback != null)
+				callbacks.add(callback);
+		}
+
+		/**
+		 * Wait for this decode rather than starting another, provided it is already running.
+		 * @param callback Receives the image on the JavaFX thread once it's done.
+		 * @return True if the callback will be run, false if the decode hasn't started or was cancelled.
+		 */
+		synchronized boolean attach(Consumer<Image> callback) {
+			if (!started || isCancelled())
+				return false;
+			if (!finished) {
+				callbacks.add(callback);
+			} else if (image != null) {
+				Image img = image;
+				Platform.runLater(() -> callback.accept(img));
+			}
+			return true;
+		}
+
+		@Override
+		public void run() {
+			synchronized (this) {
+				started = true;
+			}
+			super.run();
+		}
+
+		@Override
+		protected void done() {
+			pending.remove(photo, this); // a later decode of the same photo may have replaced this one
+			Image img = null;
+			if (!isCancelled()) {
+				try {
+					img = get();
+				} catch (InterruptedException | ExecutionException e) {
+					e.printStackTrace();
+				}
+			}
+			List<Consumer<Image>> waiting;
+			synchronized (this) {
+				finished = true;
+				image = img;
+				waiting = new ArrayList<Consumer<Image>>(callbacks);
+			}
+			if (img != null) {
+				Image decoded = img;
+				for (Consumer<Image> c : waiting) {
+					Platform.runLater(() -> c.accept(decoded));
+				}
+			}
+		}
+	}
+}
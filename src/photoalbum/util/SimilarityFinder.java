@@ -0,0 +1,225 @@
+package photoalbum.util;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+import javafx.application.Platform;
+import photoalbum.model.Photo;
+import photoalbum.model.User;
+
+/**
+ * Finds photos that look like a given picture, such as copies that have been resized or saved
+ * again at a different quality. Each picture gets a 64 bit difference hash: it is shrunk to 9x8
+ * grey pixels, and each bit records whether a pixel is darker than its right hand neighbour.
+ * Copies of the same picture have hashes that differ in only a few bits. Pictures are decoded at
+ * a reduced size to work out the hash, and each photo's hash is stored with the photo so it is
+ * only worked out once.
+ * @author Paul Warner & Kenny Zhang
+ *
+ */
+public class SimilarityFinder {
+
+	/**
+	 * Smallest size of the decoded picture a hash is worked out from, in pixels.
+	 */
+	private static final int DECODE_SIZE = 64;
+
+	/**
+	 * The finder shared by the whole program.
+	 */
+	private static SimilarityFinder instance;
+
+	/**
+	 * Executor that decodes and hashes pictures.
+	 */
+	private final ExecutorService hashers;
+
+	/**
+	 * Executor that runs whole searches, one at a time, so the caller doesn't have to wait.
+	 */
+	private final ExecutorService searches;
+
+	/**
+	 * Create a new finder with its own background threads.
+	 */
+	public SimilarityFinder() {
+		int threads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+		hashers = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+				new LinkedBlockingQueue<Runnable>(), (r) -> {
+					Thread t = new Thread(r, "similarity-hasher");
+					t.setDaemon(true);
+					return t;
+				});
+		searches = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+				(r) -> {
+					Thread t = new Thread(r, "similarity-finder");
+					t.setDaemon(true);
+					return t;
+				});
+	}
+
+	/**
+	 * @return The finder shared by the whole program.
+	 */
+	public static synchronized SimilarityFinder getInstance() {
+		if (instance == null) {
+			instance = new SimilarityFinder();
+		}
+		return instance;
+	}
+
+	/**
+	 * Find a user's photos that look like a picture in the background. Photos that haven't been
+	 * hashed yet are hashed first, and their hashes are stored with them.
+	 * @param u The user.
+	 * @param picture The picture to look for.
+	 * @param maxDistance The largest number of bits in which a photo's hash may differ.
+	 * @param callback Receives the photos found on the JavaFX thread, most similar first, or null
+	 * if the picture could not be read.
+	 */
+	public void findLater(User u, File picture, int maxDistance, Consumer<Set<Photo>> callback) {
+		List<Photo> unhashed = new ArrayList<Photo>();
+		for (Photo p : u.getAllPhotos()) {
+			if (!p.hasVisualHash())
+				unhashed.add(p);
+		}
+		searches.submit(() -> {
+			long hash;
+			try {
+				hash = hash(picture);
+			} catch (IOException e) {
+				Platform.runLater(() -> callback.accept(null));
+				return;
+			}
+			long[] hashes = hashAll(unhashed);
+			Platform.runLater(() -> {
+				for (int i = 0; i < hashes.length; i += 2) {
+					unhashed.get((int)hashes[i]).setVisualHash(hashes[i + 1]);
+				}
+				callback.accept(u.findSimilar(hash, maxDistance));
+			});
+		});
+	}
+
+	/**
+	 * Work out the hashes of many photos at once, leaving out any that can't be read.
+	 * @param photos The photos.
+	 * @return Pairs of the position of a photo in the list and its hash.
+	 */
+	private long[] hashAll(List<Photo> photos) {
+		List<Callable<Long>> tasks = new ArrayList<Callable<Long>>();
+		for (Photo p : photos) {
+			tasks.add(() -> hash(new File(p.getPhotoPath())));
+		}
+		long[] result = new long[2 * photos.size()];
+		int n = 0;
+		try {
+			List<Future<Long>> done = hashers.invokeAll(tasks);
+			for (int i = 0; i < done.size(); i++) {
+				try {
+					result[n + 1] = done.get(i).get();
+					result[n] = i;
+					n += 2;
+				} catch (ExecutionException e) {
+					// unreadable pictures simply aren't compared
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		return Arrays.copyOf(result, n);
+	}
+
+	/**
+	 * Work out the difference hash of a picture.
+	 * @param file The picture.
+	 * @return The hash.
+	 * @throws IOException If the picture can't be read.
+	 */
+	public static long hash(File file) throws IOException {
+		BufferedImage img = decodeSmall(file);
+		double[][] grey = shrink(img, 9, 8);
+		long hash = 0;
+		for (int y = 0; y < 8; y++) {
+			for (int x = 0; x < 8; x++) {
+				hash = (hash << 1) | (grey[y][x] < grey[y][x + 1] ? 1 : 0);
+			}
+		}
+		return hash;
+	}
+
+	/**
+	 * Decode a picture, skipping rows and columns so it is only a little larger than DECODE_SIZE.
+	 * @param file The picture.
+	 * @return The decoded picture.
+	 * @throws IOException If the picture can't be read.
+	 */
+	private static BufferedImage decodeSmall(File file) throws IOException {
+		try (ImageInputStream in = ImageIO.createImageInputStream(file)) {
+			if (in == null)
+				throw new IOException("cannot open " + file);
+			Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+			if (!readers.hasNext())
+				throw new IOException("unknown image format: " + file);
+			ImageReader reader = readers.next();
+			try {
+				reader.setInput(in, true, true);
+				int step = Math.max(1, Math.min(reader.getWidth(0), reader.getHeight(0)) / DECODE_SIZE);
+				ImageReadParam param = reader.getDefaultReadParam();
+				param.setSourceSubsampling(step, step, 0, 0);
+				return reader.read(0, param);
+			} finally {
+				reader.dispose();
+			}
+		}
+	}
+
+	/**
+	 * Shrink a picture to a few grey pixels, each the average brightness of the area it covers.
+	 * @param img The picture.
+	 * @param width The width to shrink to.
+	 * @param height The height to shrink to.
+	 * @return The brightness of each pixel, by row.
+	 */
+	private static double[][] shrink(BufferedImage img, int width, int height) {
+		double[][] sum = new double[height][width];
+		int[][] count = new int[height][width];
+		int w = img.getWidth();
+		int h = img.getHeight();
+		for (int y = 0; y < h; y++) {
+			int gy = y * height / h;
+			for (int x = 0; x < w; x++) {
+				int rgb = img.getRGB(x, y);
+				int gx = x * width / w;
+				sum[gy][gx] += 0.299 * ((rgb >> 16) & 0xff) + 0.587 * ((rgb >> 8) & 0xff) + 0.114 * (rgb & 0xff);
+				count[gy][gx]++;
+			}
+		}
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				if (count[y][x] > 0)
+					sum[y][x] /= count[y][x];
+			}
+		}
+		return sum;
+	}
+}
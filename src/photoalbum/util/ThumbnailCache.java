@@ -0,0 +1,286 @@
+package photoalbum.util;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.imageio.ImageIO;
+
+import javafx.embed.swing.SwingFXUtils;
+import javafx.scene.image.Image;
+import photoalbum.model.Photo;
+
+/**
+ * A cache of small encoded thumbnails stored on disk, so that reopening an album only has to read
+ * a few KB per photo instead of decoding every original file again. Entries are keyed by the
+ * photo's path, the size of the thumbnail and the last-modified time of the original, so an entry
+ * is never used once its source file has changed. The total size of the cache is capped, and the
+ * least recently used entries are removed once the cap is exceeded.
+ * @author Paul Warner & Kenny Zhang
+ *
+ */
+public class ThumbnailCache {
+
+	/**
+	 * Default directory thumbnails are stored in, next to the users save file.
+	 */
+	public static final String DEFAULT_PATH = "./thumbnails";
+
+	/**
+	 * Default cap on the total size of all stored thumbnails.
+	 */
+	public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+
+	/**
+	 * Extension of each thumbnail file. It is distinct from a plain .jpg so that the cache only
+	 * ever touches files it wrote itself.
+	 */
+	private static final String EXTENSION = ".thumb.jpg";
+
+	/**
+	 * Directory thumbnails are stored in.
+	 */
+	private final File dir;
+
+	/**
+	 * Maximum number of bytes all thumbnails may take up together.
+	 */
+	private final long maxBytes;
+
+	/**
+	 * All entries currently on disk, ordered from least to most recently used. Keyed by the hash of
+	 * the photo path and the thumbnail size.
+	 */
+	private LinkedHashMap<String, Entry> entries;
+
+	/**
+	 * Total size of all entries in bytes.
+	 */
+	private long totalBytes;
+
+	/**
+	 * A single thumbnail file stored in the cache.
+	 */
+	private static class Entry {
+		/**
+		 * The file the thumbnail is stored in.
+		 */
+		final File file;
+
+		/**
+		 * Last-modified time of the original photo when the thumbnail was made.
+		 */
+		final long sourceModified;
+
+		/**
+		 * Size of the thumbnail file in bytes.
+		 */
+		final long bytes;
+
+		Entry(File file, long sourceModified, long bytes) {
+			this.file = file;
+			this.sourceModified = sourceModified;
+			this.bytes = bytes;
+		}
+	}
+
+	/**
+	 * Create a new cache in the given directory.
+	 * @param path The directory thumbnails are stored in. It is created if it does not exist.
+	 * @param maxBytes The maximum total size of all thumbnails.
+	 */
+	public ThumbnailCache(String path, long maxBytes) {
+		this.dir = new File(path);
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Find a stored thumbnail for the given photo. If the original file has changed since the
+	 * thumbnail was made, the old thumbnail is deleted and null is returned.
+	 * @param p The photo to find a thumbnail for.
+	 * @param width The width the thumbnail was requested at.
+	 * @param height The height the thumbnail was requested at.
+	 * @return The stored thumbnail, or null if there is none.
+	 */
+	public Image get(Photo p, int width, int height) {
+		long modified = new File(p.getPhotoPath()).lastModified();
+		String key = key(p.getPhotoPath(), width, height);
+		Entry e;
+		synchronized (this) {
+			e = index().get(key);
+			if (e == null)
+				return null;
+			if (e.sourceModified != modified) {
+				remove(key);
+				return null;
+			}
+		}
+		try (InputStream in = new FileInputStream(e.file)) {
+			Image img = new Image(in);
+			if (img.isError()) {
+				synchronized (this) {
+					remove(key);
+				}
+				return null;
+			}
+			e.file.setLastModified(System.currentTimeMillis()); // remember use across runs
+			return img;
+		} catch (IOException ex) {
+			synchronized (this) {
+				remove(key);
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Store a thumbnail for the given photo, evicting the least recently used thumbnails if the
+	 * cache grows past its cap. Failure to write is not an error, the thumbnail simply isn't cached.
+	 * @param p The photo the thumbnail was made from.
+	 * @param width The width the thumbnail was requested at.
+	 * @param height The height the thumbnail was requested at.
+	 * @param img The thumbnail.
+	 */
+	public void put(Photo p, int width, int height, Image img) {
+		long modified = new File(p.getPhotoPath()).lastModified();
+		if (modified == 0L)
+			return; // original is missing
+		String key = key(p.getPhotoPath(), width, height);
+		File file = new File(dir, key + "_" + modified + EXTENSION);
+		try {
+			BufferedImage argb = SwingFXUtils.fromFXImage(img, null);
+			// jpeg has no alpha channel, so flatten onto white first
+			BufferedImage rgb = new BufferedImage(argb.getWidth(), argb.getHeight(), BufferedImage.TYPE_INT_RGB);
+			Graphics2D g = rgb.createGraphics();
+			g.setColor(java.awt.Color.WHITE);
+			g.fillRect(0, 0, rgb.getWidth(), rgb.getHeight());
+			g.drawImage(argb, 0, 0, null);
+			g.dispose();
+			dir.mkdirs();
+			File tmp = File.createTempFile(key, ".tmp", dir);
+			if (!ImageIO.write(rgb, "jpg", tmp)) {
+				tmp.delete();
+				return;
+			}
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			return;
+		}
+		synchronized (this) {
+			Entry old = index().remove(key);
+			if (old != null) {
+				totalBytes -= old.bytes;
+				if (!old.file.equals(file))
+					old.file.delete();
+			}
+			Entry e = new Entry(file, modified, file.length());
+			entries.put(key, e);
+			totalBytes += e.bytes;
+			evict();
+		}
+	}
+
+	/**
+	 * Remove entries, least recently used first, until the cache is within its cap.
+	 */
+	private void evict() {
+		Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+		while (totalBytes > maxBytes && it.hasNext()) {
+			Entry e = it.next().getValue();
+			it.remove();
+			totalBytes -= e.bytes;
+			e.file.delete();
+		}
+	}
+
+	/**
+	 * Remove a single entry from the cache and delete its file.
+	 * @param key The key of the entry.
+	 */
+	private void remove(String key) {
+		Entry e = entries.remove(key);
+		if (e != null) {
+			totalBytes -= e.bytes;
+			e.file.delete();
+		}
+	}
+
+	/**
+	 * Get the index of all entries, reading the cache directory the first time it is needed. Files
+	 * are ordered by their last-modified time, which is updated whenever a thumbnail is used.
+	 * @return Map of all entries, in least to most recently used order.
+	 */
+	private LinkedHashMap<String, Entry> index() {
+		if (entries != null)
+			return entries;
+		entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+		totalBytes = 0;
+		File[] files = dir.listFiles((d, name) -> name.endsWith(EXTENSION));
+		if (files == null)
+			return entries;
+		Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+		for (File f : files) {
+			String name = f.getName();
+			int split = name.lastIndexOf('_');
+			try {
+				String key = name.substring(0, split);
+				if (!key.matches("[0-9a-f]+-[0-9]+x[0-9]+"))
+					continue; // not one of ours, leave it alone
+				long modified = Long.parseLong(name.substring(split + 1, name.length() - EXTENSION.length()));
+				Entry old = entries.put(key, new Entry(f, modified, f.length()));
+				if (old != null) { // an older thumbnail of the same photo
+					old.file.delete();
+					totalBytes -= old.bytes;
+				}
+				totalBytes += f.length();
+			} catch (RuntimeException e) {
+				// not one of ours, leave it alone
+			}
+		}
+		evict();
+		return entries;
+	}
+
+	/**
+	 * Build the key used for a thumbnail.
+	 * @param path The path to the original photo.
+	 * @param width The width of the thumbnail.
+	 * @param height The height of the thumbnail.
+	 * @return A key unique to this path and size.
+	 */
+	private static String key(String path, int width, int height) {
+		return hash(path) + "-" + width + "x" + height;
+	}
+
+	/**
+	 * Hash a path so that it is safe to use as a file name.
+	 * @param path The path to the original photo.
+	 * @return The hash, in hex.
+	 */
+	static String hash(String path) {
+		StringBuilder sb = new StringBuilder();
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-1");
+			for (byte b : md.digest(path.getBytes(StandardCharsets.UTF_8))) {
+				sb.append(String.format("%02x", b));
+			}
+		} catch (NoSuchAlgorithmException e) {
+			sb.append(Integer.toHexString(path.hashCode()));
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,155 @@
+package photoalbum.util;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import javafx.application.Platform;
+import javafx.scene.image.Image;
+import javafx.scene.image.PixelWriter;
+import javafx.scene.image.WritableImage;
+import photoalbum.model.Photo;
+
+/**
+ * Decodes thumbnails off the JavaFX thread. Images are decoded at the size they will be
+ * displayed at, so a thumbnail never holds the full resolution bitmap in memory. Thumbnails are
+ * looked up in the shared ImageCache and then the ThumbnailCache before anything is decoded.
+ * A single loader with a small, fixed number of worker threads is shared by the whole program.
+ * @author Paul Warner & Kenny Zhang
+ *
+ */
+public class ThumbnailLoader {
+
+	/**
+	 * Number of threads used to decode thumbnails. Decoding is mostly CPU bound, so there is
+	 * little point in having more threads than cores.
+	 */
+	private static final int THREADS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() - 1));
+
+	/**
+	 * The loader shared by all views.
+	 */
+	private static ThumbnailLoader instance;
+
+	/**
+	 * Placeholder shown while a thumbnail is being loaded, created on first use.
+	 */
+	private static Image placeholder;
+
+	/**
+	 * Executor that runs all decode jobs.
+	 */
+	private final ExecutorService executor;
+
+	/**
+	 * Thumbnails stored on disk by previous loads, or null if thumbnails are not cached.
+	 */
+	private final ThumbnailCache cache;
+
+	/**
+	 * Create a new loader with the given number of worker threads.
+	 * @param threads The number of threads used for decoding.
+	 * @param cache Disk cache to read thumbnails from and store new thumbnails in. May be null.
+	 */
+	public ThumbnailLoader(int threads, ThumbnailCache cache) {
+		this.cache = cache;
+		AtomicInteger count = new AtomicInteger();
+		ThreadFactory factory = (r) -> {
+			Thread t = new Thread(r, "thumbnail-loader-" + count.incrementAndGet());
+			t.setDaemon(true);
+			t.setPriority(Thread.NORM_PRIORITY - 1);
+			return t;
+		};
+		executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+				new LinkedBlockingQueue<Runnable>(), factory);
+	}
+
+	/**
+	 * @return The loader shared by the whole program.
+	 */
+	public static synchronized ThumbnailLoader getInstance() {
+		if (instance == null) {
+			instance = new ThumbnailLoader(THREADS,
+					new ThumbnailCache(ThumbnailCache.DEFAULT_PATH, ThumbnailCache.DEFAULT_MAX_BYTES));
+		}
+		return instance;
+	}
+
+	/**
+	 * Get the image that should be displayed while a thumbnail is loading. Must be called on the
+	 * JavaFX thread.
+	 * @param size The width and height of the placeholder.
+	 * @return A plain grey square.
+	 */
+	public static Image getPlaceholder(int size) {
+		if (placeholder == null || placeholder.getWidth() != size) {
+			WritableImage img = new WritableImage(size, size);
+			PixelWriter w = img.getPixelWriter();
+			for (int x = 0; x < size; x++) {
+				for (int y = 0; y < size; y++) {
+					w.setArgb(x, y, 0xffdddddd);
+				}
+			}
+			placeholder = img;
+		}
+		return placeholder;
+	}
+
+	/**
+	 * Make sure a thumbnail of the given photo is stored on disk, decoding it on the calling
+	 * thread if it isn't. Used by background jobs that add many photos at once, so the thumbnails
+	 * are ready by the time they are shown.
+	 * @param p The photo.
+	 * @param width The maximum width of the thumbnail.
+	 * @param height The maximum height of the thumbnail.
+	 */
+	public void prepare(Photo p, double width, double height) {
+		if (cache == null || cache.get(p, (int)width, (int)height) != null)
+			return;
+		Image img = p.getImage(width, height);
+		if (img != null && !img.isError())
+			cache.put(p, (int)width, (int)height, img);
+	}
+
+	/**
+	 * Decode the given photo in the background so that it fits within width by height, and then
+	 * pass the result to the callback on the JavaFX thread. The callback is not run if the job
+	 * is cancelled or the photo cannot be read.
+	 * @param p The photo to be loaded.
+	 * @param width The maximum width of the thumbnail.
+	 * @param height The maximum height of the thumbnail.
+	 * @param callback Receives the decoded image on the JavaFX thread.
+	 * @return A future that can be used to cancel the job when its result is no longer wanted.
+	 */
+	public Future<?> load(Photo p, double width, double height, Consumer<Image> callback) {
+		return executor.submit(() -> {
+			if (Thread.currentThread().isInterrupted())
+				return;
+			ImageCache memory = ImageCache.getInstance();
+			memory.revalidate(p);
+			Image img = memory.getIfPresent(p, width, height);
+			if (img == null && cache != null) {
+				img = cache.get(p, (int)width, (int)height);
+				if (img != null)
+					memory.put(p, width, height, img);
+			}
+			if (img == null) {
+				img = p.getImage(width, height);
+				if (img == null || img.isError())
+					return;
+				memory.put(p, width, height, img);
+				if (cache != null)
+					cache.put(p, (int)width, (int)height, img);
+			}
+			if (Thread.currentThread().isInterrupted())
+				return;
+			final Image result = img;
+			Platform.runLater(() -> callback.accept(result));
+		});
+	}
+}
@@ -0,0 +1,480 @@
+package photoalbum.util;
+
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+import javafx.application.Platform;
+import javafx.scene.image.Image;
+import photoalbum.model.Photo;
+
+/**
+ * Tiles of a very large picture at several zoom levels, stored on disk so that a viewer only has
+ * to load the few tiles in view instead of decoding the whole picture. Level 0 is the picture at
+ * full size and each level after it is half the size of the one before, down to a level that fits
+ * in a single tile. Level 0 is cut from the original a strip of rows at a time, and every other
+ * level is shrunk from the tiles of the level below it, so building a pyramid never holds more
+ * than one strip in memory. Pyramids are keyed by the photo's path and the last-modified time of
+ * the original, like the ThumbnailCache, and the least recently opened pyramids are removed once
+ * the total size of the cache passes its cap.
+ * @author Paul Warner & Kenny Zhang
+ *
+ */
+public class TilePyramid {
+
+	/**
+	 * Directory pyramids are stored in, next to the users save file.
+	 */
+	public static final String DEFAULT_PATH = "./tiles";
+
+	/**
+	 * Cap on the total size of all stored pyramids.
+	 */
+	public static final long DEFAULT_MAX_BYTES = 1024L * 1024 * 1024;
+
+	/**
+	 * Width and height of each tile in pixels. Tiles on the right and bottom edges may be smaller.
+	 */
+	public static final int TILE_SIZE = 256;
+
+	/**
+	 * Number of pixels above which a picture is shown tiled instead of as a single image.
+	 */
+	public static final long LARGE_PIXELS = 24L * 1000 * 1000;
+
+	/**
+	 * Largest strip of the original decoded at once while building level 0, in bytes.
+	 */
+	private static final long STRIP_BYTES = 32L * 1024 * 1024;
+
+	/**
+	 * Extension of each tile file.
+	 */
+	private static final String EXTENSION = ".jpg";
+
+	/**
+	 * File in each pyramid holding the size of the original. It is written last, so a pyramid
+	 * without it is incomplete.
+	 */
+	private static final String INFO = "pyramid.txt";
+
+	/**
+	 * Builds pyramids. Building decodes the original, which is memory hungry, so only one runs at a time.
+	 */
+	private static final ExecutorService BUILDER = executor(1, "tile-pyramid-builder");
+
+	/**
+	 * Reads tiles from disk.
+	 */
+	private static final ExecutorService LOADER = executor(2, "tile-loader");
+
+	/**
+	 * The directory this pyramid is stored in.
+	 */
+	private final File dir;
+
+	/**
+	 * Width of the original in pixels.
+	 */
+	private final int width;
+
+	/**
+	 * Height of the original in pixels.
+	 */
+	private final int height;
+
+	/**
+	 * Number of levels in the pyramid.
+	 */
+	private final int levels;
+
+	/**
+	 * Create a pyramid stored in the given directory.
+	 * @param dir The directory of the pyramid.
+	 * @param width Width of the original in pixels.
+	 * @param height Height of the original in pixels.
+	 */
+	private TilePyramid(File dir, int width, int height) {
+		this.dir = dir;
+		this.width = width;
+		this.height = height;
+		this.levels = levels(width, height);
+	}
+
+	/**
+	 * @param meta The metadata of a picture.
+	 * @return Whether the picture is big enough that it should be shown tiled.
+	 */
+	public static boolean isLarge(ImageMetadata meta) {
+		return (long)meta.getWidth() * meta.getHeight() > LARGE_PIXELS;
+	}
+
+	/**
+	 * Open the pyramid of the given photo in the background, building it first if it isn't stored
+	 * yet, and then pass it to the callback on the JavaFX thread.
+	 * @param p The photo.
+	 * @param callback Receives the pyramid, or null if it couldn't be built. Not run if the job is cancelled.
+	 * @return A future that can be used to cancel the job when its result is no longer wanted.
+	 */
+	public static Future<?> open(Photo p, Consumer<TilePyramid> callback) {
+		return BUILDER.submit(() -> {
+			TilePyramid pyramid = null;
+			try {
+				pyramid = openOrBuild(new File(p.getPhotoPath()), new File(DEFAULT_PATH));
+			} catch (InterruptedIOException e) {
+				return;
+			} catch (IOException | RuntimeException e) {
+				e.printStackTrace();
+			}
+			if (Thread.currentThread().isInterrupted())
+				return;
+			final TilePyramid result = pyramid;
+			Platform.runLater(() -> callback.accept(result));
+		});
+	}
+
+	/**
+	 * Read a tile in the background and pass it to the callback on the JavaFX thread. The callback
+	 * is not run if the job is cancelled or the tile cannot be read.
+	 * @param level The level of the tile.
+	 * @param column The column of the tile.
+	 * @param row The row of the tile.
+	 * @param callback Receives the tile.
+	 * @return A future that can be used to cancel the job when its result is no longer wanted.
+	 */
+	public Future<?> loadTile(int level, int column, int row, Consumer<Image> callback) {
+		File file = tile(dir, level, column, row);
+		return LOADER.submit(() -> {
+			if (Thread.currentThread().isInterrupted())
+				return;
+			try (InputStream in = new FileInputStream(file)) {
+				Image img = new Image(in);
+				if (img.isError() || Thread.currentThread().isInterrupted())
+					return;
+				Platform.runLater(() -> callback.accept(img));
+			} catch (IOException e) {
+				// the cache was cleared under us, the tile just stays blank
+			}
+		});
+	}
+
+	/**
+	 * @return Width of the original in pixels.
+	 */
+	public int getWidth() {
+		return width;
+	}
+
+	/**
+	 * @return Height of the original in pixels.
+	 */
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * @return Number of levels in the pyramid. The last level is a single tile.
+	 */
+	public int getLevels() {
+		return levels;
+	}
+
+	/**
+	 * @param level A level of the pyramid.
+	 * @return Number of columns of tiles in the level.
+	 */
+	public int getColumns(int level) {
+		return (scale(width, level) + TILE_SIZE - 1) / TILE_SIZE;
+	}
+
+	/**
+	 * @param level A level of the pyramid.
+	 * @return Number of rows of tiles in the level.
+	 */
+	public int getRows(int level) {
+		return (scale(height, level) + TILE_SIZE - 1) / TILE_SIZE;
+	}
+
+	/**
+	 * Open a stored pyramid, or build it if there is none for the current version of the original.
+	 * @param source The original picture.
+	 * @param root The directory pyramids are stored in.
+	 * @return The pyramid.
+	 * @throws IOException If the original can't be read or the pyramid can't be written.
+	 */
+	static TilePyramid openOrBuild(File source, File root) throws IOException {
+		long modified = source.lastModified();
+		if (modified == 0L)
+			throw new FileNotFoundException(source.getPath());
+		String hash = ThumbnailCache.hash(source.getPath());
+		File dir = new File(root, hash + "_" + modified);
+		TilePyramid pyramid = read(dir);
+		if (pyramid != null) {
+			dir.setLastModified(System.currentTimeMillis()); // remember use across runs
+			return pyramid;
+		}
+		File[] old = root.listFiles((d, name) -> name.startsWith(hash + "_"));
+		if (old != null) { // older versions of the same picture, or a build that was cut short
+			for (File f : old) {
+				delete(f);
+			}
+		}
+		File tmp = new File(root, hash + "_" + modified + ".tmp");
+		build(source, tmp);
+		Files.move(tmp.toPath(), dir.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		evict(root, dir);
+		return read(dir);
+	}
+
+	/**
+	 * Read a stored pyramid.
+	 * @param dir The directory of the pyramid.
+	 * @return The pyramid, or null if it is missing or incomplete.
+	 */
+	private static TilePyramid read(File dir) {
+		File info = new File(dir, INFO);
+		if (!info.isFile())
+			return null;
+		try {
+			String[] size = new String(Files.readAllBytes(info.toPath()), StandardCharsets.US_ASCII).trim().split(" ");
+			return new TilePyramid(dir, Integer.parseInt(size[0]), Integer.parseInt(size[1]));
+		} catch (IOException | RuntimeException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Build the pyramid of a picture.
+	 * @param source The original picture.
+	 * @param dir The directory to store the pyramid in.
+	 * @throws IOException If the original can't be read or the pyramid can't be written.
+	 * @throws InterruptedIOException If the thread is interrupted while building.
+	 */
+	private static void build(File source, File dir) throws IOException {
+		int width, height;
+		try (ImageInputStream in = ImageIO.createImageInputStream(source)) {
+			if (in == null)
+				throw new FileNotFoundException(source.getPath());
+			Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+			if (!readers.hasNext())
+				throw new IOException("Unsupported image format: " + source);
+			ImageReader reader = readers.next();
+			try {
+				reader.setInput(in, false, true);
+				width = reader.getWidth(0);
+				height = reader.getHeight(0);
+				int stripRows = (int)Math.max(1, STRIP_BYTES / (4L * width) / TILE_SIZE) * TILE_SIZE;
+				for (int y = 0; y < height; y += stripRows) {
+					checkInterrupted();
+					ImageReadParam param = reader.getDefaultReadParam();
+					param.setSourceRegion(new Rectangle(0, y, width, Math.min(stripRows, height - y)));
+					BufferedImage strip = reader.read(0, param);
+					for (int ty = 0; ty < strip.getHeight(); ty += TILE_SIZE) {
+						for (int tx = 0; tx < width; tx += TILE_SIZE) {
+							BufferedImage t = strip.getSubimage(tx, ty, Math.min(TILE_SIZE, width - tx),
+									Math.min(TILE_SIZE, strip.getHeight() - ty));
+							write(t, t.getWidth(), t.getHeight(), tile(dir, 0, tx / TILE_SIZE, (y + ty) / TILE_SIZE));
+						}
+					}
+				}
+			} finally {
+				reader.dispose();
+			}
+		}
+		TilePyramid pyramid = new TilePyramid(dir, width, height);
+		for (int level = 1; level < pyramid.levels; level++) {
+			checkInterrupted();
+			pyramid.shrink(level);
+		}
+		Files.write(new File(dir, INFO).toPath(), (width + " " + height).getBytes(StandardCharsets.US_ASCII));
+	}
+
+	/**
+	 * Build a level from the tiles of the level below it. Each tile is made from the four tiles
+	 * under it, drawn at half size.
+	 * @param level The level to build. Must be at least 1.
+	 * @throws IOException If a tile can't be read or written.
+	 */
+	private void shrink(int level) throws IOException {
+		int levelWidth = scale(width, level), levelHeight = scale(height, level);
+		for (int row = 0; row < getRows(level); row++) {
+			for (int column = 0; column < getColumns(level); column++) {
+				int w = Math.min(TILE_SIZE, levelWidth - column * TILE_SIZE);
+				int h = Math.min(TILE_SIZE, levelHeight - row * TILE_SIZE);
+				BufferedImage t = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+				Graphics2D g = t.createGraphics();
+				g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+				for (int dy = 0; dy < 2; dy++) {
+					for (int dx = 0; dx < 2; dx++) {
+						File f = tile(dir, level - 1, 2 * column + dx, 2 * row + dy);
+						if (!f.isFile())
+							continue; // past the right or bottom edge
+						BufferedImage below = ImageIO.read(f);
+						g.drawImage(below, dx * TILE_SIZE / 2, dy * TILE_SIZE / 2, (below.getWidth() + 1) / 2,
+								(below.getHeight() + 1) / 2, null);
+					}
+				}
+				g.dispose();
+				write(t, w, h, tile(dir, level, column, row));
+			}
+		}
+	}
+
+	/**
+	 * Write a tile, flattened onto white since jpeg has no alpha channel.
+	 * @param img The tile.
+	 * @param w Width of the tile.
+	 * @param h Height of the tile.
+	 * @param file The file to write it to.
+	 * @throws IOException If the tile can't be written.
+	 */
+	private static void write(BufferedImage img, int w, int h, File file) throws IOException {
+		BufferedImage rgb = img;
+		if (img.getType() != BufferedImage.TYPE_INT_RGB) {
+			rgb = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+			Graphics2D g = rgb.createGraphics();
+			g.setColor(java.awt.Color.WHITE);
+			g.fillRect(0, 0, w, h);
+			g.drawImage(img, 0, 0, null);
+			g.dispose();
+		}
+		file.getParentFile().mkdirs();
+		if (!ImageIO.write(rgb, "jpg", file))
+			throw new IOException("No jpeg writer");
+	}
+
+	/**
+	 * Remove pyramids, least recently opened first, until the cache is within its cap.
+	 * @param root The directory pyramids are stored in.
+	 * @param keep A pyramid that is never removed.
+	 */
+	private static void evict(File root, File keep) {
+		File[] dirs = root.listFiles(File::isDirectory);
+		if (dirs == null)
+			return;
+		Arrays.sort(dirs, Comparator.comparingLong(File::lastModified));
+		long[] sizes = new long[dirs.length];
+		long total = 0;
+		for (int i = 0; i < dirs.length; i++) {
+			sizes[i] = size(dirs[i]);
+			total += sizes[i];
+		}
+		for (int i = 0; i < dirs.length && total > DEFAULT_MAX_BYTES; i++) {
+			if (dirs[i].equals(keep))
+				continue;
+			delete(dirs[i]);
+			total -= sizes[i];
+		}
+	}
+
+	/**
+	 * @param f A file or directory.
+	 * @return The total size of the file, or of every file in the directory, in bytes.
+	 */
+	private static long size(File f) {
+		File[] children = f.listFiles();
+		if (children == null)
+			return f.length();
+		long total = 0;
+		for (File c : children) {
+			total += size(c);
+		}
+		return total;
+	}
+
+	/**
+	 * Delete a file, or a directory and everything in it.
+	 * @param f The file or directory.
+	 */
+	private static void delete(File f) {
+		File[] children = f.listFiles();
+		if (children != null) {
+			for (File c : children) {
+				delete(c);
+			}
+		}
+		f.delete();
+	}
+
+	/**
+	 * @throws InterruptedIOException If the current thread has been interrupted.
+	 */
+	private static void checkInterrupted() throws InterruptedIOException {
+		if (Thread.currentThread().isInterrupted())
+			throw new InterruptedIOException();
+	}
+
+	/**
+	 * @param dir The directory of a pyramid.
+	 * @param level The level of a tile.
+	 * @param column The column of the tile.
+	 * @param row The row of the tile.
+	 * @return The file the tile is stored in.
+	 */
+	private static File tile(File dir, int level, int column, int row) {
+		return new File(new File(dir, Integer.toString(level)), column + "_" + row + EXTENSION);
+	}
+
+	/**
+	 * @param size A width or height of the original.
+	 * @param level A level of a pyramid.
+	 * @return The width or height at that level, rounded up.
+	 */
+	private static int scale(int size, int level) {
+		return (int)((size + (1L << level) - 1) >> level);
+	}
+
+	/**
+	 * @param width Width of the original.
+	 * @param height Height of the original.
+	 * @return Number of levels needed until the picture fits in a single tile.
+	 */
+	private static int levels(int width, int height) {
+		int n = 1;
+		while (scale(width, n - 1) > TILE_SIZE || scale(height, n - 1) > TILE_SIZE) {
+			n++;
+		}
+		return n;
+	}
+
+	/**
+	 * @param threads Number of threads.
+	 * @param name Name of the threads.
+	 * @return An executor with that many daemon threads.
+	 */
+	private static ExecutorService executor(int threads, String name) {
+		AtomicInteger count = new AtomicInteger();
+		return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+				(r) -> {
+					Thread t = new Thread(r, threads == 1 ? name : name + "-" + count.incrementAndGet());
+					t.setDaemon(true);
+					t.setPriority(Thread.NORM_PRIORITY - 1);
+					return t;
+				});
+	}
+}